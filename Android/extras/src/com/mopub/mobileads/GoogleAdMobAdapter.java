@@ -32,10 +32,6 @@
 
 package com.mopub.mobileads;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.JSONTokener;
-
 import android.location.Location;
 import android.util.Log;
 import android.view.Gravity;
@@ -56,14 +52,10 @@ public class GoogleAdMobAdapter extends BaseAdapter implements AdListener {
         if (isInvalidated()) return;
 
         // Get the parameters to pass to AdMob
-        JSONObject object; 
-        String adUnitId; 
-        try { 
-            object = (JSONObject) new JSONTokener(mJsonParams).nextValue(); 
-            adUnitId = object.getString("adUnitID"); 
-        } catch (JSONException e) { 
-            mMoPubView.adFailed(); 
-            return; 
+        String adUnitId = mParams.getAdUnitId();
+        if (adUnitId == null) {
+            mMoPubView.adFailed();
+            return;
         }
 
         mAdMobView = new com.google.ads.AdView(mMoPubView.getActivity(), AdSize.BANNER, adUnitId);
@@ -35,10 +35,6 @@ package com.mopub.mobileads;
 import android.location.Location;
 import android.util.Log;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.JSONTokener;
-
 import com.google.ads.Ad;
 import com.google.ads.AdListener;
 import com.google.ads.AdRequest;
@@ -52,18 +48,14 @@ public class GoogleAdMobInterstitialAdapter extends BaseInterstitialAdapter impl
     private boolean mHasAlreadyRegisteredClick;
     
     @Override
-    public void init(MoPubInterstitial interstitial, String jsonParams) {
-        super.init(interstitial, jsonParams);
+    public void init(MoPubInterstitial interstitial, NativeAdParams params) {
+        super.init(interstitial, params);
         
         // The following parameters are required. Fail if they aren't set. 
-        JSONObject object; 
-        String pubId;
-        try { 
-            object = (JSONObject) new JSONTokener(mJsonParams).nextValue(); 
-            pubId = object.getString("adUnitID");
-        } catch (JSONException e) { 
-            mInterstitial.interstitialFailed(); 
-            return; 
+        String pubId = mParams.getAdUnitId();
+        if (pubId == null) {
+            mInterstitial.interstitialFailed();
+            return;
         }
 
         mInterstitialAd = new InterstitialAd(mInterstitial.getActivity(), pubId);
@@ -84,6 +76,11 @@ public class GoogleAdMobInterstitialAdapter extends BaseInterstitialAdapter impl
         mInterstitialAd.loadAd(adRequest);
     }
 
+    @Override
+    public boolean isPrefetchSupported() {
+        return true;
+    }
+
     @Override
     public void showInterstitial() {
         if (isInvalidated()) return;
@@ -126,7 +123,8 @@ public class GoogleAdMobInterstitialAdapter extends BaseInterstitialAdapter impl
         if (isInvalidated()) return;
         
         Log.d("MoPub", "Google AdMob interstitial received an ad successfully.");
+        
+        // MoPubInterstitial calls back into showInterstitial() unless the ad is being prefetched.
         mInterstitial.interstitialLoaded();
-        mInterstitialAd.show();
     }
 }
@@ -40,10 +40,6 @@ import android.view.Gravity;
 import android.view.View;
 import android.widget.FrameLayout;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.JSONTokener;
-
 import com.millennialmedia.android.MMAdView;
 import com.millennialmedia.android.MMAdView.MMAdListener;
 import com.millennialmedia.android.MMAdViewSDK;
@@ -68,8 +64,8 @@ public class MillennialAdapter extends BaseAdapter implements MMAdListener {
     private final Handler mHandler = new Handler();
     
     @Override
-    public void init(MoPubView view, String jsonParams) {
-        super.init(view, jsonParams);
+    public void init(MoPubView view, NativeAdParams params) {
+        super.init(view, params);
         mActivityReference = new WeakReference<Activity>((Activity)view.getContext());
     }
 
@@ -78,18 +74,13 @@ public class MillennialAdapter extends BaseAdapter implements MMAdListener {
         if (isInvalidated()) return;
         
         // The following parameters are required. Fail if they aren't set.
-        JSONObject object; 
-        String pubId;
-        double adWidth, adHeight;
-        try { 
-            object = (JSONObject) new JSONTokener(mJsonParams).nextValue(); 
-            pubId = object.getString("adUnitID");
-            adWidth = object.getDouble("adWidth");
-            adHeight = object.getDouble("adHeight");
-        } catch (JSONException e) { 
-            mMoPubView.adFailed(); 
-            return; 
+        String pubId = mParams.getAdUnitId();
+        if (pubId == null || !mParams.hasAdSize()) {
+            mMoPubView.adFailed();
+            return;
         }
+        double adWidth = mParams.getAdWidth();
+        double adHeight = mParams.getAdHeight();
 
         String mmAdType = MMAdView.BANNER_AD_TOP;
         if (adWidth == 300.0 && adHeight == 250.0) mmAdType = MMAdView.BANNER_AD_RECTANGLE;
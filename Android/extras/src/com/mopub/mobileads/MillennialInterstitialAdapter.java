@@ -34,10 +34,6 @@ package com.mopub.mobileads;
 
 import java.lang.ref.WeakReference;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.JSONTokener;
-
 import com.millennialmedia.android.MMAdView;
 import com.millennialmedia.android.MMAdView.MMAdListener;
 import com.millennialmedia.android.MMAdViewSDK;
@@ -63,18 +59,14 @@ public class MillennialInterstitialAdapter extends BaseInterstitialAdapter imple
     private final Handler mHandler = new Handler();
 
     @Override
-    public void init(MoPubInterstitial interstitial, String jsonParams) {
-        super.init(interstitial, jsonParams);
+    public void init(MoPubInterstitial interstitial, NativeAdParams params) {
+        super.init(interstitial, params);
         mActivityReference = new WeakReference<Activity>(interstitial.getActivity());
         
         // The following parameters are required. Fail if they aren't set. 
-        JSONObject object; 
-        String pubId;
-        try { 
-            object = (JSONObject) new JSONTokener(mJsonParams).nextValue(); 
-            pubId = object.getString("adUnitID");
-        } catch (JSONException e) { 
-            mInterstitial.interstitialFailed(); 
+        String pubId = mParams.getAdUnitId();
+        if (pubId == null) {
+            mInterstitial.interstitialFailed();
             return;
         }
 
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads.benchmarks;
+
+import com.mopub.mobileads.AdRequestEngine;
+import com.mopub.mobileads.AdResponse;
+import com.mopub.mobileads.NativeAdParams;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * A whole ad load through AdRequestEngine -- URL generation, request, header and body parsing, 
+ * and the listener callback -- with recorded responses standing in for the ad server. Both 
+ * executors run tasks inline, so each loadAd() call completes before it returns.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AdRequestEngineBenchmark {
+    private static final String HOST = "ads.mopub.com";
+    private static final String HANDLER = "/m/ad";
+    private static final String AD_UNIT_ID = "agltb3B1Yi1pbmNyDAsSBFNpdGUY8fgRDA";
+    private static final String KEYWORDS = "m_age:24,m_gender:f,m_marital:single,games & puzzles";
+    private static final String USER_AGENT = "Mozilla/5.0 (Linux; U; Android 2.3.4; en-us; " + 
+            "Nexus S Build/GRJ22) AppleWebKit/533.1 (KHTML, like Gecko) Version/4.0 " + 
+            "Mobile Safari/533.1";
+
+    private static final Executor INLINE_EXECUTOR = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static final AdRequestEngine.Scheduler NO_REFRESH_SCHEDULER = 
+            new AdRequestEngine.Scheduler() {
+        public void schedule(Runnable task, long delayMilliseconds) {
+        }
+
+        public void cancel(Runnable task) {
+        }
+    };
+
+    private static final AdRequestEngine.DeviceInfo DEVICE_INFO = new AdRequestEngine.DeviceInfo() {
+        public String getUdidDigest() {
+            return "8a8f6d3d24a0d5e83a3b7c0e2c3b5b1bdd8a4b61";
+        }
+
+        public String getTimeZoneOffset() {
+            return "-0700";
+        }
+
+        public String getOrientation() {
+            return "p";
+        }
+
+        public String getDensity() {
+            return "1.5";
+        }
+
+        public String getConnectionType() {
+            return "wifi";
+        }
+    };
+
+    /*
+     * Reports every ad as loaded, the way AdView does once it has rendered, and remembers how the 
+     * last load ended.
+     */
+    private static class RenderingListener implements AdRequestEngine.Listener {
+        AdRequestEngine mEngine;
+        String mUrl;
+        String mOutcome;
+
+        public void onAdRequest(String url) {
+            mUrl = url;
+        }
+
+        public void onAdResponse(AdResponse adResponse) {
+        }
+
+        public void onHtmlAd(AdResponse adResponse, String html) {
+            mOutcome = "html";
+            mEngine.adDidLoad();
+        }
+
+        public void onNativeAd(AdResponse adResponse, NativeAdParams nativeParams) {
+            mOutcome = "native";
+            mEngine.recordLoadOutcome(true);
+        }
+
+        public void onCustomEvent(AdResponse adResponse) {
+            mOutcome = "custom";
+            mEngine.recordLoadOutcome(true);
+        }
+
+        public void onAdFailed() {
+            mOutcome = "failed";
+        }
+
+        public void onAdSkipped(String reason) {
+            mOutcome = "skipped";
+        }
+
+        public void onRefresh() {
+        }
+
+        public void onLog(String message) {
+        }
+    }
+
+    private AdRequestEngine mEngine;
+    private RenderingListener mListener;
+
+    @Setup
+    public void setUp() {
+        FixtureHttpClient client = new FixtureHttpClient();
+        mListener = new RenderingListener();
+        mEngine = new AdRequestEngine(HOST, HANDLER, DEVICE_INFO, INLINE_EXECUTOR, 
+                INLINE_EXECUTOR, NO_REFRESH_SCHEDULER);
+        mEngine.setHttpClient(client);
+        mEngine.setListener(mListener);
+        mEngine.setUserAgent(USER_AGENT);
+        mEngine.setAdUnitId(AD_UNIT_ID);
+        mEngine.setKeywords(KEYWORDS);
+        mEngine.setLocation(37.7793, -122.4192);
+        mListener.mEngine = mEngine;
+
+        // Learn the request URL from a first load, then serve the fixture for it.
+        mEngine.loadAd();
+        client.put(mListener.mUrl, Fixture.load("html-ad.http"));
+
+        mEngine.loadAd();
+        if (!"html".equals(mListener.mOutcome) || mEngine.isLoading()) {
+            throw new IllegalStateException("Expected a loaded HTML ad, got: " + 
+                    mListener.mOutcome);
+        }
+    }
+
+    @Benchmark
+    public String loadHtmlAd() {
+        mEngine.loadAd();
+        return mListener.mOutcome;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads.benchmarks;
+
+import com.mopub.mobileads.AdResponse;
+import com.mopub.mobileads.ResponseBodyReader;
+
+import org.apache.http.HttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Parsing ad server response headers, and the whole HTML ad response as AdView handles it.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AdResponseBenchmark {
+    private Fixture mHtmlAd;
+    private HttpResponse mHtmlResponse;
+    private HttpResponse mNativeResponse;
+    private HttpResponse mClearResponse;
+
+    @Setup
+    public void setUp() {
+        mHtmlAd = Fixture.load("html-ad.http");
+        mHtmlResponse = mHtmlAd.toHttpResponse();
+        mNativeResponse = Fixture.load("native-ad.http").toHttpResponse();
+        mClearResponse = Fixture.load("clear.http").toHttpResponse();
+    }
+
+    @Benchmark
+    public AdResponse parseHtmlAdHeaders() {
+        return AdResponse.fromHttpResponse(mHtmlResponse);
+    }
+
+    @Benchmark
+    public AdResponse parseNativeAdHeaders() {
+        return AdResponse.fromHttpResponse(mNativeResponse);
+    }
+
+    @Benchmark
+    public AdResponse parseClearHeaders() {
+        return AdResponse.fromHttpResponse(mClearResponse);
+    }
+
+    /*
+     * Headers and body of an uncompressed HTML ad, starting from a freshly received response.
+     */
+    @Benchmark
+    public void processHtmlAd(Blackhole blackhole) throws IOException {
+        HttpResponse response = mHtmlAd.toHttpResponse();
+        blackhole.consume(AdResponse.fromHttpResponse(response));
+        blackhole.consume(ResponseBodyReader.readBody(response.getEntity()));
+    }
+}
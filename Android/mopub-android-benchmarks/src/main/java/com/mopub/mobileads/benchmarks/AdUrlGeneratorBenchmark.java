@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads.benchmarks;
+
+import com.mopub.mobileads.AdUrlGenerator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Building ad request URLs, as AdView.generateAdUrl() does before every request.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AdUrlGeneratorBenchmark {
+    private static final String HOST = "ads.mopub.com";
+    private static final String HANDLER = "/m/ad";
+    private static final String AD_UNIT_ID = "agltb3B1Yi1pbmNyDAsSBFNpdGUY8fgRDA";
+    private static final String UDID_DIGEST = "8a8f6d3d24a0d5e83a3b7c0e2c3b5b1bdd8a4b61";
+    private static final String KEYWORDS = "m_age:24,m_gender:f,m_marital:single,games & puzzles";
+    private static final String LOCATION = "37.7793,-122.4192";
+
+    private AdUrlGenerator mGenerator;
+    private List<String> mBatchAdUnitIds;
+    private List<String> mBatchKeywords;
+
+    @Setup
+    public void setUp() {
+        mGenerator = new AdUrlGenerator(HOST, HANDLER);
+        mBatchAdUnitIds = Arrays.asList(AD_UNIT_ID, "agltb3B1Yi1pbmNyDAsSBFNpdGUYgYkTDA", 
+                "agltb3B1Yi1pbmNyDAsSBFNpdGUYlbgUDA", "agltb3B1Yi1pbmNyDAsSBFNpdGUY2fAVDA");
+        mBatchKeywords = Arrays.asList(KEYWORDS, null, "m_age:24", KEYWORDS);
+    }
+
+    /*
+     * A refresh: the same ad view asking again, so the prefix and keywords are already encoded.
+     */
+    @Benchmark
+    public String generateRepeated() {
+        return mGenerator.generate(AD_UNIT_ID, UDID_DIGEST, KEYWORDS, LOCATION, "-0700", "p", 
+                "1.5");
+    }
+
+    /*
+     * A first request from a new ad view.
+     */
+    @Benchmark
+    public String generateFirst() {
+        return new AdUrlGenerator(HOST, HANDLER).generate(AD_UNIT_ID, UDID_DIGEST, KEYWORDS, 
+                LOCATION, "-0700", "p", "1.5");
+    }
+
+    @Benchmark
+    public String generateBatch() {
+        return AdUrlGenerator.generateBatch(HOST, "/m/ads", mBatchAdUnitIds, mBatchKeywords, 
+                UDID_DIGEST, LOCATION, "-0700", "p", "1.5");
+    }
+
+    @Benchmark
+    public String encodeKeywords() {
+        return AdUrlGenerator.encode(KEYWORDS);
+    }
+}
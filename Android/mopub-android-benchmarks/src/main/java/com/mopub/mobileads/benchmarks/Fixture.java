@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads.benchmarks;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * A recorded HTTP response, loaded from src/main/resources/fixtures. A fixture file is the raw 
+ * response as it came off the wire: the status line, the headers, a blank line and the body. 
+ * Content-Length is taken from the body actually present.
+ */
+public class Fixture {
+    private final int mStatusCode;
+    private final String mReasonPhrase;
+    private final Header[] mHeaders;
+    private final byte[] mBody;
+
+    private Fixture(int statusCode, String reasonPhrase, Header[] headers, byte[] body) {
+        mStatusCode = statusCode;
+        mReasonPhrase = reasonPhrase;
+        mHeaders = headers;
+        mBody = body;
+    }
+
+    public static Fixture load(String name) {
+        InputStream in = Fixture.class.getResourceAsStream("/fixtures/" + name);
+        if (in == null) throw new IllegalArgumentException("No such fixture: " + name);
+        try {
+            try {
+                return parse(readFully(in));
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't read fixture " + name, e);
+        }
+    }
+
+    static Fixture parse(byte[] raw) throws IOException {
+        int position = 0;
+        List<String> lines = new ArrayList<String>();
+        while (position < raw.length) {
+            int lineEnd = position;
+            while (lineEnd < raw.length && raw[lineEnd] != '\n') lineEnd++;
+            int contentEnd = (lineEnd > position && raw[lineEnd - 1] == '\r') ? 
+                    lineEnd - 1 : lineEnd;
+            String line = new String(raw, position, contentEnd - position, "ISO-8859-1");
+            position = lineEnd + 1;
+            if (line.length() == 0) break;
+            lines.add(line);
+        }
+        if (lines.isEmpty()) throw new IOException("Fixture has no status line.");
+
+        String[] statusLine = lines.get(0).split(" ", 3);
+        int statusCode = Integer.parseInt(statusLine[1]);
+        String reasonPhrase = (statusLine.length > 2) ? statusLine[2] : "";
+
+        List<Header> headers = new ArrayList<Header>();
+        for (int i = 1; i < lines.size(); i++) {
+            String line = lines.get(i);
+            int colon = line.indexOf(':');
+            if (colon <= 0) throw new IOException("Malformed fixture header: " + line);
+            String name = line.substring(0, colon).trim();
+            if (name.equalsIgnoreCase("Content-Length")) continue;
+            headers.add(new BasicHeader(name, line.substring(colon + 1).trim()));
+        }
+
+        int bodyLength = Math.max(raw.length - position, 0);
+        byte[] body = new byte[bodyLength];
+        System.arraycopy(raw, Math.min(position, raw.length), body, 0, bodyLength);
+        return new Fixture(statusCode, reasonPhrase, headers.toArray(new Header[headers.size()]), 
+                body);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1) out.write(buffer, 0, count);
+        return out.toByteArray();
+    }
+
+    /*
+     * Builds a fresh response, as the client would hand it over: headers parsed, body unread.
+     */
+    public HttpResponse toHttpResponse() {
+        return toHttpResponse(mBody, null);
+    }
+
+    /*
+     * Same, but with the body replaced, e.g. by a compressed copy along with its Content-Encoding.
+     */
+    public HttpResponse toHttpResponse(byte[] body, String contentEncoding) {
+        BasicHttpResponse response = 
+                new BasicHttpResponse(HttpVersion.HTTP_1_1, mStatusCode, mReasonPhrase);
+        response.setHeaders(mHeaders);
+        ByteArrayEntity entity = new ByteArrayEntity(body);
+        Header contentType = response.getFirstHeader("Content-Type");
+        if (contentType != null) entity.setContentType(contentType);
+        if (contentEncoding != null) {
+            entity.setContentEncoding(contentEncoding);
+            response.setHeader("Content-Encoding", contentEncoding);
+        }
+        response.setEntity(entity);
+        return response;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+
+    public Header[] getHeaders() {
+        return mHeaders.clone();
+    }
+
+    public byte[] getBody() {
+        return mBody.clone();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads.benchmarks;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+/*
+ * An HttpClient that answers from recorded fixtures instead of the network, so that code taking 
+ * an HttpClient (such as RedirectResolver) can be measured without I/O noise. Requests for URLs 
+ * with no fixture fail with an IOException, like an unreachable host.
+ */
+public class FixtureHttpClient implements HttpClient {
+    private final HashMap<String, Fixture> mFixtures = new HashMap<String, Fixture>();
+    private final HttpParams mParams = new BasicHttpParams();
+    private int mRequestCount;
+
+    public FixtureHttpClient put(String url, Fixture fixture) {
+        mFixtures.put(url, fixture);
+        return this;
+    }
+
+    private HttpResponse respond(String url) throws IOException {
+        mRequestCount++;
+        Fixture fixture = mFixtures.get(url);
+        if (fixture == null) throw new IOException("No fixture for " + url);
+        return fixture.toHttpResponse();
+    }
+
+    public HttpResponse execute(HttpUriRequest request) throws IOException {
+        return respond(request.getURI().toString());
+    }
+
+    public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+        return execute(request);
+    }
+
+    public HttpResponse execute(HttpHost target, HttpRequest request) throws IOException {
+        return respond(target.toURI() + request.getRequestLine().getUri());
+    }
+
+    public HttpResponse execute(HttpHost target, HttpRequest request, HttpContext context) 
+            throws IOException {
+        return execute(target, request);
+    }
+
+    public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> handler) 
+            throws IOException, ClientProtocolException {
+        return handler.handleResponse(execute(request));
+    }
+
+    public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> handler, 
+            HttpContext context) throws IOException, ClientProtocolException {
+        return handler.handleResponse(execute(request));
+    }
+
+    public <T> T execute(HttpHost target, HttpRequest request, 
+            ResponseHandler<? extends T> handler) throws IOException, ClientProtocolException {
+        return handler.handleResponse(execute(target, request));
+    }
+
+    public <T> T execute(HttpHost target, HttpRequest request, 
+            ResponseHandler<? extends T> handler, HttpContext context) 
+            throws IOException, ClientProtocolException {
+        return handler.handleResponse(execute(target, request));
+    }
+
+    public HttpParams getParams() {
+        return mParams;
+    }
+
+    public ClientConnectionManager getConnectionManager() {
+        return null;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    public int getRequestCount() {
+        return mRequestCount;
+    }
+}
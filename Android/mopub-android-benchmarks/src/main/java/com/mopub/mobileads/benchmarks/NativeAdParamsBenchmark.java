@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads.benchmarks;
+
+import com.mopub.mobileads.NativeAdParams;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Parsing X-Nativeparams. NativeAdParams keeps a small cache of recently parsed values, so 
+ * parseRepeated measures a refresh of the same network ad and parseDistinct a cache miss.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NativeAdParamsBenchmark {
+    // More than the cache holds, so that cycling through them always misses.
+    private static final int DISTINCT_PARAMS = 64;
+
+    private String mParams;
+    private String[] mDistinctParams;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        Fixture fixture = Fixture.load("native-ad.http");
+        mParams = fixture.toHttpResponse().getFirstHeader("X-Nativeparams").getValue();
+        mDistinctParams = new String[DISTINCT_PARAMS];
+        for (int i = 0; i < DISTINCT_PARAMS; i++) {
+            mDistinctParams[i] = mParams.replace("\"testing\": false", 
+                    "\"testing\": false, \"seq\": " + i);
+        }
+    }
+
+    @Benchmark
+    public NativeAdParams parseRepeated() throws JSONException {
+        return NativeAdParams.parse(mParams);
+    }
+
+    @Benchmark
+    public NativeAdParams parseDistinct() throws JSONException {
+        String params = mDistinctParams[mNext];
+        mNext = (mNext + 1) % DISTINCT_PARAMS;
+        return NativeAdParams.parse(params);
+    }
+}
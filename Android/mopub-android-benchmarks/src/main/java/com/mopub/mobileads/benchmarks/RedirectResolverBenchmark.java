@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads.benchmarks;
+
+import com.mopub.mobileads.RedirectResolver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Following a click URL through its redirects, with recorded responses standing in for the 
+ * network: ad server click tracker (302) -> third-party tracker (301) -> landing page (200).
+ * Measures the resolver's own overhead per hop, not network latency.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RedirectResolverBenchmark {
+    private static final String CLICK_URL = "http://ads.mopub.com/m/aclk?id=agltb3B1Yi1pbmNy" + 
+            "DAsSBFNpdGUY8fgRDA&cid=agltb3B1Yi1pbmNyEAsSCEFkR3JvdXAY4bMVDA&r=http%3A%2F%2F" + 
+            "www.mopub.com%2F";
+    private static final String TRACKER_URL = 
+            "http://clk.example.net/track?c=8841&u=http%3A%2F%2Fwww.mopub.com%2F";
+    private static final String LANDING_URL = "http://www.mopub.com/";
+    private static final String MARKET_URL = "market://details?id=com.mopub.simpleadsdemo";
+    private static final String USER_AGENT = "Mozilla/5.0 (Linux; U; Android 2.3.4; en-us; " + 
+            "Nexus S Build/GRJ22) AppleWebKit/533.1 (KHTML, like Gecko) Version/4.0 " + 
+            "Mobile Safari/533.1";
+
+    private RedirectResolver mResolver;
+
+    @Setup
+    public void setUp() {
+        FixtureHttpClient client = new FixtureHttpClient()
+                .put(CLICK_URL, Fixture.load("click-redirect.http"))
+                .put(TRACKER_URL, Fixture.load("tracker-redirect.http"))
+                .put(LANDING_URL, Fixture.load("landing-page.http"));
+        mResolver = new RedirectResolver(client);
+
+        RedirectResolver.Result result = mResolver.resolve(CLICK_URL, USER_AGENT);
+        if (result.getStatus() != RedirectResolver.Result.STATUS_RESOLVED || 
+                !LANDING_URL.equals(result.getUrl())) {
+            throw new IllegalStateException("Fixtures don't resolve to the landing page: " + 
+                    result.getUrl());
+        }
+    }
+
+    @Benchmark
+    public RedirectResolver.Result resolveClickChain() {
+        return mResolver.resolve(CLICK_URL, USER_AGENT);
+    }
+
+    @Benchmark
+    public RedirectResolver.Result resolveMarketUrl() {
+        return mResolver.resolve(MARKET_URL, USER_AGENT);
+    }
+}
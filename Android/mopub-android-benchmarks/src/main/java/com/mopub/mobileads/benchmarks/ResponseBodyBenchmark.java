@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads.benchmarks;
+
+import com.mopub.mobileads.DecompressingEntity;
+import com.mopub.mobileads.ResponseBodyReader;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Reading an HTML creative's body: plain, and gzip- or deflate-encoded as the shared client 
+ * receives it (decoded by DecompressingEntity while it is read).
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseBodyBenchmark {
+    private byte[] mBody;
+    private byte[] mGzippedBody;
+    private byte[] mDeflatedBody;
+
+    @Setup
+    public void setUp() throws IOException {
+        mBody = Fixture.load("html-ad.http").getBody();
+
+        ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+        gzip.write(mBody);
+        gzip.close();
+        mGzippedBody = gzipped.toByteArray();
+
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        DeflaterOutputStream deflate = new DeflaterOutputStream(deflated);
+        deflate.write(mBody);
+        deflate.close();
+        mDeflatedBody = deflated.toByteArray();
+    }
+
+    private static ByteArrayEntity entity(byte[] body, String contentEncoding) {
+        ByteArrayEntity entity = new ByteArrayEntity(body);
+        entity.setContentType("text/html; charset=utf-8");
+        if (contentEncoding != null) entity.setContentEncoding(contentEncoding);
+        return entity;
+    }
+
+    @Benchmark
+    public String readPlainBody() throws IOException {
+        return ResponseBodyReader.readBody(entity(mBody, null));
+    }
+
+    @Benchmark
+    public String readGzipBody() throws IOException {
+        return ResponseBodyReader.readBody(
+                new DecompressingEntity(entity(mGzippedBody, "gzip"), "gzip"));
+    }
+
+    @Benchmark
+    public String readDeflateBody() throws IOException {
+        return ResponseBodyReader.readBody(
+                new DecompressingEntity(entity(mDeflatedBody, "deflate"), "deflate"));
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * Measures where the time of each ad load goes. Every load is broken into phases:
+ * - URL_GENERATION: building the ad request URL;
+ * - CONNECT: setting up the connection (close to 0 when a pooled connection is reused);
+ * - FIRST_BYTE: from sending the request to receiving the response headers;
+ * - BODY: reading and parsing the response;
+ * - RENDER: from handing an HTML creative to the WebView to its mopub://finishLoad;
+ * - ADAPTER: from starting a native network adapter to it loading or failing;
+ * - TOTAL: from the start of the load to the end of its waterfall.
+ * CONNECT, FIRST_BYTE and BODY are recorded for each failover hop, ADAPTER for each adapter tried.
+ * 
+ * Durations are aggregated per ad unit into LatencyHistograms, from which the app can read 
+ * p50/p95/p99 and such. Apps that want every load's breakdown can also set a Listener, which 
+ * gets an AdLoadRecord on the main thread at the end of each load.
+ * 
+ * Disabled by default. While disabled, each instrumentation point costs one volatile read.
+ */
+public class AdLoadMetrics {
+    public enum Phase {
+        URL_GENERATION, CONNECT, FIRST_BYTE, BODY, RENDER, ADAPTER, TOTAL
+    }
+    
+    public interface Listener {
+        public void onAdLoadFinished(AdLoadRecord record);
+    }
+    
+    // HttpContext attribute set by the shared client once a request's connection is established.
+    static final String CONNECTED_TIME_ATTRIBUTE = "com.mopub.mobileads.connected";
+    
+    private static final Phase[] PHASES = Phase.values();
+    
+    private static volatile boolean sIsEnabled;
+    private static volatile Listener sListener;
+    private static final HashMap<String, LatencyHistogram[]> sHistograms = 
+            new HashMap<String, LatencyHistogram[]>();
+    
+    private AdLoadMetrics() {}
+    
+    public static boolean isEnabled() {
+        return sIsEnabled;
+    }
+    
+    public static void setEnabled(boolean enabled) {
+        sIsEnabled = enabled;
+    }
+    
+    static boolean hasListener() {
+        return sListener != null;
+    }
+    
+    /*
+     * Sets the listener to receive a record of every ad load, or null. Records are only built 
+     * while instrumentation is enabled and a listener is set.
+     */
+    public static void setListener(Listener listener) {
+        sListener = listener;
+    }
+    
+    public static Listener getListener() {
+        return sListener;
+    }
+    
+    static void notifyListener(AdLoadRecord record) {
+        Listener listener = sListener;
+        if (listener != null) listener.onAdLoadFinished(record);
+    }
+    
+    static long nanosToMicros(long nanos) {
+        return nanos / 1000;
+    }
+    
+    /*
+     * Adds one duration, in nanoseconds, to the given ad unit's histogram for the given phase.
+     */
+    static void record(String adUnitId, Phase phase, long nanos) {
+        if (adUnitId == null) return;
+        getHistograms(adUnitId)[phase.ordinal()].record(nanosToMicros(nanos));
+    }
+    
+    private static LatencyHistogram[] getHistograms(String adUnitId) {
+        synchronized (sHistograms) {
+            LatencyHistogram[] histograms = sHistograms.get(adUnitId);
+            if (histograms == null) {
+                histograms = new LatencyHistogram[PHASES.length];
+                for (int i = 0; i < PHASES.length; i++) histograms[i] = new LatencyHistogram();
+                sHistograms.put(adUnitId, histograms);
+            }
+            return histograms;
+        }
+    }
+    
+    /*
+     * Returns a snapshot of the given ad unit's histogram for the given phase, or null if no load 
+     * has been measured for the ad unit.
+     */
+    public static LatencyHistogram getHistogram(String adUnitId, Phase phase) {
+        synchronized (sHistograms) {
+            LatencyHistogram[] histograms = sHistograms.get(adUnitId);
+            return (histograms != null) ? histograms[phase.ordinal()].snapshot() : null;
+        }
+    }
+    
+    /*
+     * Returns the given percentile of a phase's duration for an ad unit, in milliseconds, or 0 if 
+     * it hasn't been measured.
+     */
+    public static double getPercentile(String adUnitId, Phase phase, double percentile) {
+        LatencyHistogram[] histograms;
+        synchronized (sHistograms) {
+            histograms = sHistograms.get(adUnitId);
+        }
+        return (histograms != null) ? histograms[phase.ordinal()].getPercentile(percentile) : 0;
+    }
+    
+    /*
+     * Returns the IDs of every ad unit measured so far.
+     */
+    public static Set<String> getAdUnitIds() {
+        synchronized (sHistograms) {
+            return new HashSet<String>(sHistograms.keySet());
+        }
+    }
+    
+    public static void reset() {
+        synchronized (sHistograms) {
+            sHistograms.clear();
+        }
+    }
+    
+    /*
+     * Returns a one-line p50/p95/p99 summary of every phase for an ad unit, for logging.
+     */
+    public static String getSummary(String adUnitId) {
+        StringBuilder summary = new StringBuilder(adUnitId).append(':');
+        for (int i = 0; i < PHASES.length; i++) {
+            LatencyHistogram histogram = getHistogram(adUnitId, PHASES[i]);
+            if (histogram == null || histogram.getCount() == 0) continue;
+            summary.append(' ').append(PHASES[i].name().toLowerCase()).append('=')
+                    .append(format(histogram.getPercentile(50))).append('/')
+                    .append(format(histogram.getPercentile(95))).append('/')
+                    .append(format(histogram.getPercentile(99)));
+        }
+        return summary.append(" (p50/p95/p99 ms)").toString();
+    }
+    
+    private static String format(double milliseconds) {
+        return String.valueOf(Math.round(milliseconds * 10) / 10.0);
+    }
+}
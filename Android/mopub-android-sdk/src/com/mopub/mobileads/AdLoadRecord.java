@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import com.mopub.mobileads.AdLoadMetrics.Phase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * The timings of a single ad load: one Hop per ad server request in its waterfall (including 
+ * speculative ones), one AdapterStep per native adapter tried, and the per-phase totals. Handed 
+ * to AdLoadMetrics.Listener once the load has finished, after which it no longer changes.
+ */
+public class AdLoadRecord {
+    private final String mAdUnitId;
+    private final long[] mPhaseNanos = new long[Phase.values().length];
+    private final ArrayList<Hop> mHops = new ArrayList<Hop>();
+    private final ArrayList<AdapterStep> mAdapterSteps = new ArrayList<AdapterStep>();
+    private boolean mIsSuccessful;
+    
+    public static class Hop {
+        private final long mConnectNanos;
+        private final long mFirstByteNanos;
+        private final long mBodyNanos;
+        
+        Hop(long connectNanos, long firstByteNanos, long bodyNanos) {
+            mConnectNanos = connectNanos;
+            mFirstByteNanos = firstByteNanos;
+            mBodyNanos = bodyNanos;
+        }
+        
+        public double getConnectTime() {
+            return mConnectNanos / 1000000.0;
+        }
+        
+        public double getFirstByteTime() {
+            return mFirstByteNanos / 1000000.0;
+        }
+        
+        public double getBodyTime() {
+            return mBodyNanos / 1000000.0;
+        }
+    }
+    
+    public static class AdapterStep {
+        private final String mAdapterType;
+        private final long mNanos;
+        private final boolean mIsSuccessful;
+        
+        AdapterStep(String adapterType, long nanos, boolean successful) {
+            mAdapterType = adapterType;
+            mNanos = nanos;
+            mIsSuccessful = successful;
+        }
+        
+        public String getAdapterType() {
+            return mAdapterType;
+        }
+        
+        public double getTime() {
+            return mNanos / 1000000.0;
+        }
+        
+        public boolean isSuccessful() {
+            return mIsSuccessful;
+        }
+    }
+    
+    AdLoadRecord(String adUnitId) {
+        mAdUnitId = adUnitId;
+    }
+    
+    synchronized void addPhase(Phase phase, long nanos) {
+        mPhaseNanos[phase.ordinal()] += nanos;
+    }
+    
+    synchronized void addHop(long connectNanos, long firstByteNanos, long bodyNanos) {
+        mHops.add(new Hop(connectNanos, firstByteNanos, bodyNanos));
+        mPhaseNanos[Phase.CONNECT.ordinal()] += connectNanos;
+        mPhaseNanos[Phase.FIRST_BYTE.ordinal()] += firstByteNanos;
+        mPhaseNanos[Phase.BODY.ordinal()] += bodyNanos;
+    }
+    
+    synchronized void addAdapterStep(String adapterType, long nanos, boolean successful) {
+        mAdapterSteps.add(new AdapterStep(adapterType, nanos, successful));
+        mPhaseNanos[Phase.ADAPTER.ordinal()] += nanos;
+    }
+    
+    synchronized void finish(boolean successful, long totalNanos) {
+        mIsSuccessful = successful;
+        mPhaseNanos[Phase.TOTAL.ordinal()] = totalNanos;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        StringBuilder string = new StringBuilder(mAdUnitId);
+        string.append(mIsSuccessful ? " loaded:" : " failed:");
+        Phase[] phases = Phase.values();
+        for (int i = 0; i < phases.length; i++) {
+            string.append(' ').append(phases[i].name().toLowerCase()).append('=')
+                    .append(Math.round(mPhaseNanos[i] / 100000.0) / 10.0);
+        }
+        return string.append(" ms, ").append(mHops.size()).append(" hops, ")
+                .append(mAdapterSteps.size()).append(" adapters").toString();
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    
+    public String getAdUnitId() {
+        return mAdUnitId;
+    }
+    
+    public synchronized boolean isSuccessful() {
+        return mIsSuccessful;
+    }
+    
+    /*
+     * Time spent in a phase, summed over every hop or adapter, in milliseconds.
+     */
+    public synchronized double getPhaseTime(Phase phase) {
+        return mPhaseNanos[phase.ordinal()] / 1000000.0;
+    }
+    
+    public synchronized List<Hop> getHops() {
+        return Collections.unmodifiableList(new ArrayList<Hop>(mHops));
+    }
+    
+    public synchronized List<AdapterStep> getAdapterSteps() {
+        return Collections.unmodifiableList(new ArrayList<AdapterStep>(mAdapterSteps));
+    }
+}
@@ -0,0 +1,1230 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import com.mopub.mobileads.BatchResponseParser.Part;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Loads ads for one ad unit without any UI: it builds the ad request URL, fetches and parses the 
+ * response, walks the failover waterfall (fetching ahead when speculative failover is on), 
+ * applies the no-fill cache and circuit breaker, and keeps the refresh schedule. What to do with 
+ * an ad once it arrives is left to a Listener -- AdView renders HTML creatives and hands native 
+ * and custom event ads to its MoPubView.
+ * 
+ * Everything the engine needs from the platform is passed in: device attributes (DeviceInfo), 
+ * the thread that callbacks run on (the callback Executor, the main thread on Android), a timer 
+ * for refreshes (Scheduler) and optionally the HttpClient. It uses no Android classes, so it can 
+ * be driven from a background thread or a plain JVM test.
+ * 
+ * All methods must be called on the callback thread. Requests run on the background Executor 
+ * and only touch the engine's state once their results are handed back to the callback thread; 
+ * the settings they need are captured when they are created (see Request).
+ */
+public class AdRequestEngine {
+    public static final long MINIMUM_REFRESH_TIME_MILLISECONDS = 10000;
+    public static final int DEFAULT_MAX_SPECULATIVE_FAILOVER_DEPTH = 1;
+    public static final int DEFAULT_MAX_SPECULATIVE_FAILOVER_BYTES = 64 * 1024;
+    
+    private static ExecutorService sDefaultExecutor;
+    
+    /*
+     * The device attributes sent with each request. DeviceContext provides them on Android.
+     */
+    public interface DeviceInfo {
+        public String getUdidDigest();
+        public String getTimeZoneOffset();
+        public String getOrientation();
+        public String getDensity();
+        // Also called from background threads.
+        public String getConnectionType();
+    }
+    
+    /*
+     * Runs refreshes. RefreshScheduler provides this on Android.
+     */
+    public interface Scheduler {
+        public void schedule(Runnable task, long delayMilliseconds);
+        public void cancel(Runnable task);
+    }
+    
+    /*
+     * Receives the outcome of each step of a load, on the callback thread.
+     */
+    public interface Listener {
+        // A new waterfall is about to request the given URL.
+        public void onAdRequest(String url);
+        // A response became the current one. Called before the callback for its outcome.
+        public void onAdResponse(AdResponse adResponse);
+        // An HTML creative should be rendered. Report back with adDidLoad() or loadFailUrl().
+        public void onHtmlAd(AdResponse adResponse, String html);
+        // A native network ad should be loaded. Report back with recordLoadOutcome(true) or 
+        // loadFailUrl().
+        public void onNativeAd(AdResponse adResponse, NativeAdParams nativeParams);
+        // The server asked for a custom event. Report back with recordLoadOutcome(true).
+        public void onCustomEvent(AdResponse adResponse);
+        // The waterfall ended without an ad.
+        public void onAdFailed();
+        // No request was sent, for the given reason. Not counted as a failure.
+        public void onAdSkipped(String reason);
+        // A scheduled refresh is due.
+        public void onRefresh();
+        // A diagnostic message for the log. May be called from background threads.
+        public void onLog(String message);
+    }
+    
+    private final DeviceInfo mDeviceInfo;
+    private final Executor mBackgroundExecutor;
+    private final Executor mCallbackExecutor;
+    private final Scheduler mScheduler;
+    private final AdUrlGenerator mUrlGenerator;
+    private HttpClient mHttpClient;
+    private Listener mListener;
+    
+    private String mAdUnitId;
+    private String mKeywords;
+    private Double mLatitude;
+    private Double mLongitude;
+    private String mFormattedLocation;
+    private String mUserAgent;
+    private int mTimeoutMilliseconds = -1;
+    private boolean mIsAdaptiveTimeoutEnabled;
+    private boolean mIsSpeculativeFailoverEnabled;
+    private int mMaxSpeculativeFailoverDepth = DEFAULT_MAX_SPECULATIVE_FAILOVER_DEPTH;
+    private int mMaxSpeculativeFailoverBytes = DEFAULT_MAX_SPECULATIVE_FAILOVER_BYTES;
+    
+    private String mUrl;
+    private String mFailUrl;
+    private AdResponse mAdResponse;
+    private String mNoFillCacheKey;
+    private boolean mIsLoading;
+    // Bumped by reset(), so that requests still in flight for the old state are ignored.
+    private int mGeneration;
+    
+    private boolean mAutorefreshEnabled = true;
+    private long mRefreshTimeMilliseconds = 0;
+    
+    private long mLoadStartTime;
+    private long mRenderStartTime;
+    private AdLoadRecord mLoadRecord;
+    
+    // Waterfall steps fetched ahead of time, in waterfall order. See SpeculativeLoad.
+    private final ArrayList<SpeculativeLoad> mSpeculativeLoads = new ArrayList<SpeculativeLoad>();
+    private int mSpeculativeFailoverHitCount;
+    
+    public AdRequestEngine(String host, String adHandler, DeviceInfo deviceInfo, 
+            Executor callbackExecutor, Scheduler scheduler) {
+        this(host, adHandler, deviceInfo, getDefaultExecutor(), callbackExecutor, scheduler);
+    }
+    
+    public AdRequestEngine(String host, String adHandler, DeviceInfo deviceInfo, 
+            Executor backgroundExecutor, Executor callbackExecutor, Scheduler scheduler) {
+        mUrlGenerator = new AdUrlGenerator(host, adHandler);
+        mDeviceInfo = deviceInfo;
+        mBackgroundExecutor = backgroundExecutor;
+        mCallbackExecutor = callbackExecutor;
+        mScheduler = scheduler;
+    }
+    
+    /*
+     * Returns the engine to the state it was in just after construction, except for the listener 
+     * and HttpClient. Responses to requests still in flight are dropped.
+     */
+    public void reset() {
+        cancelRefresh();
+        discardSpeculativeLoads();
+        mGeneration++;
+        
+        mAdUnitId = null;
+        mKeywords = null;
+        mLatitude = null;
+        mLongitude = null;
+        mFormattedLocation = null;
+        mTimeoutMilliseconds = -1;
+        mUrl = null;
+        mFailUrl = null;
+        mAdResponse = null;
+        mNoFillCacheKey = null;
+        mIsLoading = false;
+        mAutorefreshEnabled = true;
+        mRefreshTimeMilliseconds = 0;
+        mLoadStartTime = 0;
+        mRenderStartTime = 0;
+        mLoadRecord = null;
+    }
+    
+    /*
+     * Starts a new waterfall, unless the no-fill cache or circuit breaker rule it out.
+     */
+    public void loadAd() {
+        if (mAdUnitId == null) {
+            log("Can't load an ad because the ad unit ID is null. Did you forget to call " + 
+                    "setAdUnitId()?");
+            return;
+        }
+        
+        // Checked before anything else, so a waterfall in progress keeps its speculative loads.
+        if (mIsLoading) {
+            log("Already loading an ad for " + mAdUnitId + ", wait to finish.");
+            return;
+        }
+        
+        if (!canSendAdRequest()) return;
+        
+        // A new waterfall is starting, so anything fetched ahead for the old one is useless.
+        discardSpeculativeLoads();
+        
+        long urlStartTime = AdLoadMetrics.isEnabled() ? System.nanoTime() : 0;
+        String adUrl = generateAdUrl();
+        startLoadTiming(urlStartTime);
+        mListener.onAdRequest(adUrl);
+        loadUrl(adUrl, mNoFillCacheKey);
+    }
+    
+    /*
+     * Requests the given URL as the current waterfall step.
+     */
+    public void loadUrl(String url) {
+        loadUrl(url, null);
+    }
+    
+    /*
+     * noFillCacheKey is only given for the first step of a waterfall: a failover URL coming back 
+     * empty says nothing about whether the ad request itself will fill.
+     */
+    private void loadUrl(String url, String noFillCacheKey) {
+        if (mIsLoading) {
+            log("Already loading an ad for " + mAdUnitId + ", wait to finish.");
+            return;
+        }
+        
+        mUrl = url;
+        mIsLoading = true;
+        final Request request = new Request(url, noFillCacheKey);
+        mBackgroundExecutor.execute(new Runnable() {
+            public void run() {
+                LoadResult result = null;
+                try {
+                    result = loadAdFromNetwork(request, ResponseBodyReader.getMaxBodySize());
+                } catch (Exception e) {
+                    // Reported as a failure below.
+                }
+                mCallbackExecutor.execute(request.finish(result));
+            }
+        });
+    }
+    
+    public void reload() {
+        log("Reload ad: " + mUrl);
+        loadUrl(mUrl);
+    }
+    
+    /*
+     * Moves on to the next step of the waterfall, or ends it if there is none.
+     */
+    public void loadFailUrl() {
+        mIsLoading = false;
+        mRenderStartTime = 0;
+        if (mFailUrl != null) {
+            log("Loading failover url: " + mFailUrl);
+            if (!useSpeculativeLoad(mFailUrl)) loadUrl(mFailUrl);
+        } else {
+            // No other URLs to try, so signal a failure.
+            adDidFail();
+        }
+    }
+    
+    /*
+     * Called by the listener once the ad handed to it in onHtmlAd() has rendered.
+     */
+    public void adDidLoad() {
+        mIsLoading = false;
+        recordLoadOutcome(true);
+    }
+    
+    private void adDidFail() {
+        mIsLoading = false;
+        recordLoadOutcome(false);
+        mListener.onAdFailed();
+    }
+    
+    /*
+     * Decides whether a new waterfall may start. If not, the load is reported as skipped and 
+     * false is returned.
+     */
+    private boolean canSendAdRequest() {
+        mNoFillCacheKey = NoFillCache.getKey(mAdUnitId, mKeywords, mLatitude, mLongitude);
+        
+        if (NoFillCache.getInstance().isNoFill(mNoFillCacheKey)) {
+            adRequestSkipped("the same request recently returned no ad");
+            return false;
+        }
+        if (!AdUnitCircuitBreaker.getInstance(mAdUnitId).allowRequest()) {
+            adRequestSkipped("too many recent failures");
+            return false;
+        }
+        return true;
+    }
+    
+    private void adRequestSkipped(String reason) {
+        log("Not requesting an ad for " + mAdUnitId + ": " + reason + ".");
+        mListener.onAdSkipped(reason);
+    }
+    
+    /*
+     * Reports the outcome of a whole waterfall to the ad unit's circuit breaker.
+     */
+    public void recordLoadOutcome(boolean success) {
+        if (mAdUnitId == null) return;
+        if (mLoadStartTime != 0) finishLoadTiming(success);
+        
+        AdUnitCircuitBreaker breaker = AdUnitCircuitBreaker.getInstance(mAdUnitId);
+        if (success) {
+            breaker.recordSuccess();
+            NoFillCache.getInstance().remove(mNoFillCacheKey);
+            return;
+        }
+        
+        AdUnitCircuitBreaker.State previousState = breaker.getState();
+        breaker.recordFailure();
+        if (breaker.getState() == AdUnitCircuitBreaker.State.OPEN && 
+                previousState != AdUnitCircuitBreaker.State.OPEN) {
+            log("Circuit breaker opened for " + mAdUnitId + " after " + 
+                    breaker.getConsecutiveFailureCount() + " consecutive failures.");
+        }
+    }
+    
+    private String generateAdUrl() {
+        return mUrlGenerator.generate(mAdUnitId, mDeviceInfo.getUdidDigest(), mKeywords, 
+                getFormattedLocation(), mDeviceInfo.getTimeZoneOffset(), 
+                mDeviceInfo.getOrientation(), mDeviceInfo.getDensity());
+    }
+    
+    /*
+     * Starts a load whose response will be delivered by a BatchAdLoader instead of being fetched 
+     * by this engine. Returns the load, or null if it can't load right now.
+     */
+    public BatchedLoad beginBatchedLoad() {
+        if (mAdUnitId == null || mIsLoading) return null;
+        
+        if (!canSendAdRequest()) return null;
+        discardSpeculativeLoads();
+        
+        long urlStartTime = AdLoadMetrics.isEnabled() ? System.nanoTime() : 0;
+        String adUrl = generateAdUrl();
+        startLoadTiming(urlStartTime);
+        mListener.onAdRequest(adUrl);
+        mUrl = adUrl;
+        mIsLoading = true;
+        return new BatchedLoad(new Request(adUrl, mNoFillCacheKey));
+    }
+    
+    /*
+     * One engine's share of a batch, started by beginBatchedLoad(). It belongs to the state the 
+     * engine was in at that point: if the engine is reset before the load finishes, the result 
+     * is dropped.
+     */
+    public class BatchedLoad {
+        private final Request mRequest;
+        
+        private BatchedLoad(Request request) {
+            mRequest = request;
+        }
+        
+        public String getUrl() {
+            return mRequest.mHttpGet.getURI().toString();
+        }
+        
+        public String getAdUnitId() {
+            return mRequest.mAdUnitId;
+        }
+        
+        public String getUserAgent() {
+            return mRequest.mUserAgent;
+        }
+        
+        private AdRequestEngine getEngine() {
+            return AdRequestEngine.this;
+        }
+        
+        /*
+         * Fetches and parses the engine's own ad URL on the calling (background) thread, exactly 
+         * as loadUrl() would. Returns the work to run on the callback thread to finish the load.
+         */
+        public Runnable load() {
+            LoadResult result = null;
+            try {
+                result = loadAdFromNetwork(mRequest, ResponseBodyReader.getMaxBodySize());
+            } catch (Exception e) {
+                log("Ad request for " + mRequest.mAdUnitId + " failed: " + e.getMessage());
+            }
+            return mRequest.finish(result);
+        }
+        
+        /*
+         * Parses the engine's response on the calling (background) thread, exactly as a response 
+         * fetched by loadUrl() would be. Returns the work to run on the callback thread to finish 
+         * the load. A null response means the batch had nothing for this engine.
+         */
+        public Runnable finish(HttpResponse response) {
+            LoadResult result = null;
+            if (response != null) {
+                try {
+                    result = processResponse(response, mRequest, 
+                            ResponseBodyReader.getMaxBodySize());
+                } catch (Exception e) {
+                    log("Batched ad response for " + mRequest.mAdUnitId + " was invalid: " + 
+                            e.getMessage());
+                }
+            }
+            return mRequest.finish(result);
+        }
+    }
+    
+    /*
+     * Fetches several loads from batchUrl in one request, through the same path as a single load: 
+     * the first load's user agent and timeouts, adaptive timeouts, and hop metrics for every 
+     * load. Runs on the calling (background) thread and returns the work to finish each load on 
+     * its engine's callback thread, in order. A load the batch has nothing for fails.
+     */
+    public static List<Runnable> loadBatch(String batchUrl, List<BatchedLoad> loads) {
+        final int maxBodyBytes = ResponseBodyReader.getMaxBodySize() * loads.size();
+        List<Request> requests = new ArrayList<Request>(loads.size());
+        for (int i = 0; i < loads.size(); i++) requests.add(loads.get(i).mRequest);
+        
+        AdRequestEngine engine = loads.get(0).getEngine();
+        List<Part> parts = null;
+        try {
+            parts = engine.fetch(new HttpGet(batchUrl), requests, 
+                    new ResponseParser<List<Part>>() {
+                public List<Part> parse(HttpResponse response) throws Exception {
+                    if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                        throw new Exception("Batch request returned " + 
+                                response.getStatusLine());
+                    }
+                    return BatchResponseParser.parse(response, maxBodyBytes);
+                }
+            });
+        } catch (Exception e) {
+            engine.log("Batch ad request failed: " + e.getMessage());
+        }
+        
+        // Match parts to loads by ad unit ID, in order, so repeated IDs work too.
+        List<Runnable> finishes = new ArrayList<Runnable>(loads.size());
+        boolean[] used = new boolean[(parts != null) ? parts.size() : 0];
+        for (int i = 0; i < loads.size(); i++) {
+            BatchedLoad load = loads.get(i);
+            HttpResponse partResponse = null;
+            for (int j = 0; j < used.length; j++) {
+                if (!used[j] && load.getAdUnitId().equals(parts.get(j).mAdUnitId)) {
+                    used[j] = true;
+                    partResponse = parts.get(j).mResponse;
+                    break;
+                }
+            }
+            finishes.add(load.finish(partResponse));
+        }
+        return finishes;
+    }
+    
+    /*
+     * A single ad server request. Everything the background thread needs from the engine is 
+     * captured here on the callback thread when the request is created, since the engine's own 
+     * fields may change (or be reset) while the request is in flight.
+     */
+    private class Request {
+        private final HttpGet mHttpGet;
+        private final int mGeneration;
+        private final String mAdUnitId;
+        private final String mUserAgent;
+        private final boolean mIsAdaptiveTimeoutEnabled;
+        private final int mTimeoutMilliseconds;
+        private final HttpClient mHttpClient;
+        private final AdLoadRecord mLoadRecord;
+        private final String mNoFillCacheKey;
+        
+        Request(String url, String noFillCacheKey) {
+            mHttpGet = new HttpGet(url);
+            mGeneration = AdRequestEngine.this.mGeneration;
+            mAdUnitId = AdRequestEngine.this.mAdUnitId;
+            mUserAgent = AdRequestEngine.this.mUserAgent;
+            mIsAdaptiveTimeoutEnabled = AdRequestEngine.this.mIsAdaptiveTimeoutEnabled;
+            mTimeoutMilliseconds = AdRequestEngine.this.mTimeoutMilliseconds;
+            mHttpClient = AdRequestEngine.this.mHttpClient;
+            mLoadRecord = AdRequestEngine.this.mLoadRecord;
+            mNoFillCacheKey = noFillCacheKey;
+        }
+        
+        /*
+         * Returns the work that applies a result (null on failure) on the callback thread, 
+         * unless the engine has been reset since this request was created.
+         */
+        Runnable finish(final LoadResult result) {
+            return new Runnable() {
+                public void run() {
+                    if (mGeneration != AdRequestEngine.this.mGeneration) return;
+                    if (result == null) adDidFail();
+                    else result.execute();
+                }
+            };
+        }
+    }
+    
+    /*
+     * Performs the ad request and parses the response. Runs on a background thread, so it must 
+     * not touch the engine's state: it only reads the settings captured in the Request, and 
+     * everything it learns is handed back in the returned result and applied on the callback 
+     * thread.
+     */
+    private LoadResult loadAdFromNetwork(final Request request, final int maxBodyBytes) 
+            throws Exception {
+        return fetch(request.mHttpGet, Collections.singletonList(request), 
+                new ResponseParser<LoadResult>() {
+            public LoadResult parse(HttpResponse response) throws Exception {
+                return processResponse(response, request, maxBodyBytes);
+            }
+        });
+    }
+    
+    private interface ResponseParser<T> {
+        T parse(HttpResponse response) throws Exception;
+    }
+    
+    /*
+     * Sends a request with the first Request's settings and parses the response on the calling 
+     * (background) thread. The hop is timed for every Request, since it answers all of them.
+     */
+    private <T> T fetch(HttpGet httpget, List<Request> requests, ResponseParser<T> parser) 
+            throws Exception {
+        Request request = requests.get(0);
+        httpget.addHeader("User-Agent", request.mUserAgent);
+        AdaptiveTimeouts.Timeouts adaptiveTimeouts = applyTimeouts(httpget, request);
+        
+        HttpClient httpclient = (request.mHttpClient != null) ? request.mHttpClient : 
+                MoPubHttpClient.getHttpClient();
+        HttpResponse response;
+        long requestStartTime = System.nanoTime();
+        HttpContext timingContext = AdLoadMetrics.isEnabled() ? new BasicHttpContext() : null;
+        try {
+            if (timingContext != null) response = httpclient.execute(httpget, timingContext);
+            else response = httpclient.execute(httpget);
+        } catch (IOException e) {
+            httpget.abort();
+            if (adaptiveTimeouts != null && e instanceof InterruptedIOException) {
+                AdaptiveTimeouts.recordTimeout(adaptiveTimeouts.mConnectionType, 
+                        e instanceof ConnectTimeoutException);
+            }
+            throw e;
+        }
+        
+        long headersTime = System.nanoTime();
+        if (adaptiveTimeouts != null) {
+            AdaptiveTimeouts.recordResponse(adaptiveTimeouts.mConnectionType, 
+                    (headersTime - requestStartTime) / 1000000);
+        }
+        
+        try {
+            return parser.parse(response);
+        } catch (IOException e) {
+            // Drop the connection rather than draining a broken or oversized body.
+            httpget.abort();
+            if (adaptiveTimeouts != null && e instanceof SocketTimeoutException) {
+                AdaptiveTimeouts.recordBodyTimeout(adaptiveTimeouts.mConnectionType);
+            }
+            throw e;
+        } finally {
+            // Release the connection back to the pool, whether or not we read the body.
+            MoPubHttpClient.consumeResponse(response);
+            if (timingContext != null) {
+                long endTime = System.nanoTime();
+                for (int i = 0; i < requests.size(); i++) {
+                    recordHopTiming(requests.get(i), requestStartTime, timingContext, headersTime, 
+                            endTime);
+                }
+            }
+        }
+    }
+    
+    private LoadResult processResponse(HttpResponse response, Request request, int maxBodyBytes) 
+            throws Exception {
+        HttpEntity entity = response.getEntity();
+        
+        // Anything but a 200 OK is an invalid response.
+        if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || entity == null) {
+            throw new Exception("MoPub server returned invalid response.");
+        }
+        
+        AdResponse adResponse = AdResponse.fromHttpResponse(response);
+        
+        // Ensure that the ad type header is valid and not "clear". A "clear" has no body.
+        String adType = adResponse.getAdType();
+        if (adType == null) throw new Exception("MoPub server returned no ad.");
+        if (adType.equals("clear")) return new NoFillResult(adResponse, request.mNoFillCacheKey);
+        
+        // Handle custom event ad type.
+        if (adType.equals("custom")) {
+            return new CustomEventResult(adResponse);
+        }
+        // Handle native SDK ad type.
+        else if (!adType.equals("html")) {
+            if (adResponse.getNativeParams() != null) {
+                NativeAdParams nativeParams;
+                try {
+                    nativeParams = NativeAdParams.parse(adResponse.getNativeParams());
+                } catch (JSONException e) {
+                    return new FailoverResult(adResponse, 
+                            "Could not parse native ad parameters; trying next ad.");
+                }
+                return new NativeAdResult(adResponse, nativeParams);
+            } else {
+                return new AdFailedResult(adResponse, 
+                        "Could not load native ad; MoPub provided no parameters.");
+            }
+        }
+        
+        // Handle HTML ad. Only HTML ads need a body; the others are described by headers alone.
+        if (entity.getContentLength() == 0) {
+            throw new Exception("MoPub server returned invalid response.");
+        }
+        String body = ResponseBodyReader.readBody(entity, maxBodyBytes);
+        String decodingMessage = null;
+        if (entity instanceof DecompressingEntity) {
+            DecompressingEntity compressed = (DecompressingEntity) entity;
+            decodingMessage = "Ad response (" + compressed.getEncoding() + "): " + 
+                    compressed.getCompressedByteCount() + " bytes received, " + 
+                    compressed.getUncompressedByteCount() + " bytes decoded.";
+        }
+        return new HtmlAdResult(adResponse, body, decodingMessage);
+    }
+    
+    /*
+     * Applies the engine's timeout to a single request. The client's own parameters are left 
+     * untouched since it may be shared. Returns the timeouts chosen if adaptive timeouts are 
+     * enabled, so that the outcome can be recorded; otherwise null.
+     */
+    private AdaptiveTimeouts.Timeouts applyTimeouts(HttpRequestBase httpRequest, 
+            Request request) {
+        HttpParams params = httpRequest.getParams();
+        if (request.mIsAdaptiveTimeoutEnabled) {
+            String connectionType = mDeviceInfo.getConnectionType();
+            AdaptiveTimeouts.Timeouts timeouts = AdaptiveTimeouts.getTimeouts(connectionType);
+            log("Using adaptive timeouts for " + connectionType + ": connect " + 
+                    timeouts.mConnectTimeoutMilliseconds + " ms, read " + 
+                    timeouts.mReadTimeoutMilliseconds + " ms.");
+            HttpConnectionParams.setConnectionTimeout(params, 
+                    timeouts.mConnectTimeoutMilliseconds);
+            HttpConnectionParams.setSoTimeout(params, timeouts.mReadTimeoutMilliseconds);
+            return timeouts;
+        }
+        
+        int timeout = request.mTimeoutMilliseconds;
+        if (timeout <= 0) return null;
+        
+        // Set timeouts to wait for connection establishment / receiving data.
+        HttpConnectionParams.setConnectionTimeout(params, timeout);
+        HttpConnectionParams.setSoTimeout(params, timeout);
+        return null;
+    }
+    
+    /*
+     * Makes a parsed response the current one and tells the listener about it.
+     */
+    private void setResponse(AdResponse adResponse) {
+        mAdResponse = adResponse;
+        
+        // Print the ad network type to the console.
+        String networkType = adResponse.getNetworkType();
+        if (networkType != null) log("Fetching ad network type: " + networkType);
+        
+        // Set the fall-back URL to be used if the current request fails.
+        mFailUrl = adResponse.getFailUrl();
+        speculateOnFailUrl();
+        
+        // Set the auto-refresh time. A timer will be scheduled upon ad success or failure.
+        mRefreshTimeMilliseconds = adResponse.getRefreshTimeMilliseconds();
+        if (mRefreshTimeMilliseconds < 0) mRefreshTimeMilliseconds = 0;
+        else if (mRefreshTimeMilliseconds < MINIMUM_REFRESH_TIME_MILLISECONDS) {
+            mRefreshTimeMilliseconds = MINIMUM_REFRESH_TIME_MILLISECONDS;
+        }
+        
+        mListener.onAdResponse(adResponse);
+    }
+    
+    /*
+     * Starts measuring a new load for AdLoadMetrics, given when URL generation started (0 if 
+     * instrumentation was disabled then).
+     */
+    private void startLoadTiming(long urlStartTime) {
+        mLoadRecord = null;
+        mRenderStartTime = 0;
+        mLoadStartTime = urlStartTime;
+        if (urlStartTime == 0) return;
+        
+        long urlTime = System.nanoTime() - urlStartTime;
+        AdLoadMetrics.record(mAdUnitId, AdLoadMetrics.Phase.URL_GENERATION, urlTime);
+        if (AdLoadMetrics.hasListener()) {
+            mLoadRecord = new AdLoadRecord(mAdUnitId);
+            mLoadRecord.addPhase(AdLoadMetrics.Phase.URL_GENERATION, urlTime);
+        }
+    }
+    
+    /*
+     * Records the phases of one ad server request. Called on the request's background thread.
+     */
+    private void recordHopTiming(Request request, long startTime, HttpContext context, 
+            long headersTime, long endTime) {
+        Long connectedTime = (Long) context.getAttribute(AdLoadMetrics.CONNECTED_TIME_ATTRIBUTE);
+        long connected = (connectedTime != null) ? connectedTime : startTime;
+        long connectTime = connected - startTime;
+        long firstByteTime = headersTime - connected;
+        long bodyTime = endTime - headersTime;
+        
+        String adUnitId = request.mAdUnitId;
+        AdLoadMetrics.record(adUnitId, AdLoadMetrics.Phase.CONNECT, connectTime);
+        AdLoadMetrics.record(adUnitId, AdLoadMetrics.Phase.FIRST_BYTE, firstByteTime);
+        AdLoadMetrics.record(adUnitId, AdLoadMetrics.Phase.BODY, bodyTime);
+        AdLoadRecord record = request.mLoadRecord;
+        if (record != null) record.addHop(connectTime, firstByteTime, bodyTime);
+    }
+    
+    /*
+     * Records one native adapter's attempt at loading an ad.
+     */
+    public void recordAdapterTiming(String adapterType, long nanos, boolean success) {
+        AdLoadMetrics.record(mAdUnitId, AdLoadMetrics.Phase.ADAPTER, nanos);
+        if (mLoadRecord != null) mLoadRecord.addAdapterStep(adapterType, nanos, success);
+    }
+    
+    private void finishLoadTiming(boolean success) {
+        long now = System.nanoTime();
+        if (success && mRenderStartTime != 0) {
+            long renderTime = now - mRenderStartTime;
+            AdLoadMetrics.record(mAdUnitId, AdLoadMetrics.Phase.RENDER, renderTime);
+            if (mLoadRecord != null) mLoadRecord.addPhase(AdLoadMetrics.Phase.RENDER, renderTime);
+        }
+        
+        long totalTime = now - mLoadStartTime;
+        AdLoadMetrics.record(mAdUnitId, AdLoadMetrics.Phase.TOTAL, totalTime);
+        AdLoadRecord record = mLoadRecord;
+        mLoadStartTime = 0;
+        mRenderStartTime = 0;
+        mLoadRecord = null;
+        if (record != null) {
+            record.finish(success, totalTime);
+            AdLoadMetrics.notifyListener(record);
+        }
+    }
+    
+    private abstract interface LoadResult {
+        abstract AdResponse getAdResponse();
+        abstract void execute();
+    }
+    
+    private class AdFailedResult implements LoadResult {
+        protected AdResponse mAdResponse;
+        protected String mMessage;
+        
+        public AdFailedResult(AdResponse adResponse, String message) {
+            mAdResponse = adResponse;
+            mMessage = message;
+        }
+        
+        public AdResponse getAdResponse() {
+            return mAdResponse;
+        }
+        
+        public void execute() {
+            log(mMessage);
+            setResponse(mAdResponse);
+            adDidFail();
+        }
+    }
+    
+    private class NoFillResult implements LoadResult {
+        protected AdResponse mAdResponse;
+        protected String mNoFillCacheKey;
+        
+        public NoFillResult(AdResponse adResponse, String noFillCacheKey) {
+            mAdResponse = adResponse;
+            mNoFillCacheKey = noFillCacheKey;
+        }
+        
+        public AdResponse getAdResponse() {
+            return mAdResponse;
+        }
+        
+        public void execute() {
+            log("MoPub server returned no ad.");
+            if (mNoFillCacheKey != null) {
+                NoFillCache.getInstance().putNoFill(mNoFillCacheKey, 
+                        mAdResponse.getRetryAfterMilliseconds());
+            }
+            adDidFail();
+        }
+    }
+    
+    private class FailoverResult implements LoadResult {
+        protected AdResponse mAdResponse;
+        protected String mMessage;
+        
+        public FailoverResult(AdResponse adResponse, String message) {
+            mAdResponse = adResponse;
+            mMessage = message;
+        }
+        
+        public AdResponse getAdResponse() {
+            return mAdResponse;
+        }
+        
+        public void execute() {
+            log(mMessage);
+            setResponse(mAdResponse);
+            loadFailUrl();
+        }
+    }
+    
+    private class CustomEventResult implements LoadResult {
+        protected AdResponse mAdResponse;
+        
+        public CustomEventResult(AdResponse adResponse) {
+            mAdResponse = adResponse;
+        }
+        
+        public AdResponse getAdResponse() {
+            return mAdResponse;
+        }
+        
+        public void execute() {
+            log("Performing custom event.");
+            setResponse(mAdResponse);
+            mIsLoading = false;
+            mListener.onCustomEvent(mAdResponse);
+        }
+    }
+    
+    private class NativeAdResult implements LoadResult {
+        protected AdResponse mAdResponse;
+        protected NativeAdParams mNativeParams;
+        
+        public NativeAdResult(AdResponse adResponse, NativeAdParams nativeParams) {
+            mAdResponse = adResponse;
+            mNativeParams = nativeParams;
+        }
+        
+        public AdResponse getAdResponse() {
+            return mAdResponse;
+        }
+        
+        public void execute() {
+            log("Loading native ad");
+            setResponse(mAdResponse);
+            mIsLoading = false;
+            mListener.onNativeAd(mAdResponse, mNativeParams);
+        }
+    }
+    
+    private class HtmlAdResult implements LoadResult {
+        protected AdResponse mAdResponse;
+        protected String mData;
+        protected String mDecodingMessage;
+        
+        public HtmlAdResult(AdResponse adResponse, String data, String decodingMessage) {
+            mAdResponse = adResponse;
+            mData = data;
+            mDecodingMessage = decodingMessage;
+        }
+        
+        public AdResponse getAdResponse() {
+            return mAdResponse;
+        }
+        
+        public void execute() {
+            if (mDecodingMessage != null) log(mDecodingMessage);
+            setResponse(mAdResponse);
+            if (mData == null) return;
+            if (mLoadStartTime != 0) mRenderStartTime = System.nanoTime();
+            mListener.onHtmlAd(mAdResponse, mData);
+        }
+    }
+    
+    /*
+     * Background fetch of the next waterfall step, started while the current step is still 
+     * running. See MoPubView.setSpeculativeFailoverEnabled().
+     */
+    private class SpeculativeLoad implements Runnable {
+        private final String mUrl;
+        private final Request mRequest;
+        private final int mMaxBodyBytes;
+        private LoadResult mResult;
+        private Exception mError;
+        private boolean mIsDone;
+        private boolean mIsClaimed;
+        // Written on the callback thread, also read on the background thread.
+        private volatile boolean mIsDiscarded;
+        
+        SpeculativeLoad(String url, int maxBodyBytes) {
+            mUrl = url;
+            mRequest = new Request(url, null);
+            mMaxBodyBytes = maxBodyBytes;
+        }
+        
+        public void run() {
+            if (mIsDiscarded) return;
+            LoadResult result = null;
+            Exception error = null;
+            try {
+                result = loadAdFromNetwork(mRequest, mMaxBodyBytes);
+            } catch (Exception e) {
+                error = e;
+            }
+            
+            final LoadResult finalResult = result;
+            final Exception finalError = error;
+            mCallbackExecutor.execute(new Runnable() {
+                public void run() {
+                    finish(finalResult, finalError);
+                }
+            });
+        }
+        
+        private void finish(LoadResult result, Exception error) {
+            if (mIsDiscarded) return;
+            mIsDone = true;
+            mResult = result;
+            mError = error;
+            if (result == null && mError == null) mError = new Exception("No result.");
+            
+            if (mIsClaimed) {
+                runSpeculativeLoad(this);
+                return;
+            }
+            
+            // Keep going down the waterfall if we're allowed to look further ahead.
+            AdResponse adResponse = (result != null) ? result.getAdResponse() : null;
+            String nextUrl = (adResponse != null) ? adResponse.getFailUrl() : null;
+            if (nextUrl != null && mSpeculativeLoads.size() < mMaxSpeculativeFailoverDepth
+                    && mSpeculativeLoads.get(mSpeculativeLoads.size() - 1) == this) {
+                startSpeculativeLoad(nextUrl);
+            }
+        }
+        
+        void discard() {
+            mIsDiscarded = true;
+            mRequest.mHttpGet.abort();
+        }
+    }
+    
+    /*
+     * Starts fetching the current fail URL in the background, unless speculation is disabled or 
+     * it is already being fetched.
+     */
+    private void speculateOnFailUrl() {
+        if (!mIsSpeculativeFailoverEnabled || mMaxSpeculativeFailoverDepth <= 0) {
+            discardSpeculativeLoads();
+            return;
+        }
+        
+        if (mFailUrl == null) {
+            discardSpeculativeLoads();
+            return;
+        }
+        
+        if (!mSpeculativeLoads.isEmpty() && mSpeculativeLoads.get(0).mUrl.equals(mFailUrl)) return;
+        
+        discardSpeculativeLoads();
+        startSpeculativeLoad(mFailUrl);
+    }
+    
+    private void startSpeculativeLoad(String url) {
+        log("Speculatively fetching failover url: " + url);
+        SpeculativeLoad load = new SpeculativeLoad(url, mMaxSpeculativeFailoverBytes);
+        mSpeculativeLoads.add(load);
+        mBackgroundExecutor.execute(load);
+    }
+    
+    /*
+     * Continues the waterfall with a speculatively fetched response for the given URL, if there 
+     * is one. Returns false if the URL has to be loaded normally.
+     */
+    private boolean useSpeculativeLoad(String url) {
+        if (mSpeculativeLoads.isEmpty() || !mSpeculativeLoads.get(0).mUrl.equals(url)) {
+            discardSpeculativeLoads();
+            return false;
+        }
+        
+        SpeculativeLoad load = mSpeculativeLoads.remove(0);
+        mUrl = url;
+        mIsLoading = true;
+        mSpeculativeFailoverHitCount++;
+        if (load.mIsDone) runSpeculativeLoad(load);
+        else load.mIsClaimed = true;
+        return true;
+    }
+    
+    private void runSpeculativeLoad(SpeculativeLoad load) {
+        if (load.mError instanceof ResponseBodyReader.BodyTooLargeException) {
+            // Over the speculative size cap, which a normal load isn't subject to.
+            log("Speculative response too large; loading failover url normally.");
+            mIsLoading = false;
+            loadUrl(load.mUrl);
+            return;
+        } else if (load.mError != null) {
+            adDidFail();
+            return;
+        }
+        
+        log("Using speculatively fetched response for: " + load.mUrl);
+        load.mResult.execute();
+    }
+    
+    /*
+     * Drops all responses fetched ahead for the current waterfall. They were never rendered, so 
+     * nothing was tracked for them.
+     */
+    public void discardSpeculativeLoads() {
+        for (int i = 0; i < mSpeculativeLoads.size(); i++) mSpeculativeLoads.get(i).discard();
+        mSpeculativeLoads.clear();
+    }
+    
+    private Runnable mRefreshRunnable = new Runnable() {
+        public void run() {
+            if (mAutorefreshEnabled) mListener.onRefresh();
+        }
+    };
+    
+    /*
+     * Schedules the next refresh, if autorefresh is on and the server asked for one. leadTime is 
+     * how much earlier than due the refresh should fire, e.g. to prerender the next ad.
+     */
+    public void scheduleRefresh(long leadTimeMilliseconds) {
+        cancelRefresh();
+        if (!mAutorefreshEnabled || mRefreshTimeMilliseconds <= 0) return;
+        
+        // Back off while the ad unit keeps failing.
+        long refreshTime = mRefreshTimeMilliseconds;
+        if (mAdUnitId != null) {
+            refreshTime = AdUnitCircuitBreaker.getInstance(mAdUnitId).getRefreshDelay(refreshTime);
+        }
+        
+        mScheduler.schedule(mRefreshRunnable, refreshTime - leadTimeMilliseconds);
+    }
+    
+    public void cancelRefresh() {
+        mScheduler.cancel(mRefreshRunnable);
+    }
+    
+    private void log(String message) {
+        if (mListener != null) mListener.onLog(message);
+    }
+    
+    /*
+     * Returns the shared pool that runs requests when no background Executor is given.
+     */
+    static synchronized ExecutorService getDefaultExecutor() {
+        if (sDefaultExecutor == null) {
+            sDefaultExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private int mCount;
+                
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "MoPubAdRequest-" + (++mCount));
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return sDefaultExecutor;
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+    
+    /*
+     * Sets the client used for ad requests. By default (or if null) the shared MoPubHttpClient is 
+     * used, looked up on each request so that it is only created once needed.
+     */
+    public void setHttpClient(HttpClient httpClient) {
+        mHttpClient = httpClient;
+    }
+    
+    public String getAdUnitId() {
+        return mAdUnitId;
+    }
+    
+    public void setAdUnitId(String adUnitId) {
+        mAdUnitId = adUnitId;
+    }
+    
+    public String getKeywords() {
+        return mKeywords;
+    }
+    
+    public void setKeywords(String keywords) {
+        mKeywords = keywords;
+    }
+    
+    /*
+     * Sets the location sent with requests, or clears it if either coordinate is null.
+     */
+    public void setLocation(Double latitude, Double longitude) {
+        if (latitude == null || longitude == null) {
+            latitude = null;
+            longitude = null;
+        }
+        // The same location is usually sent with many requests in a row; format it once.
+        if (latitude == null || !latitude.equals(mLatitude) || !longitude.equals(mLongitude)) {
+            mFormattedLocation = (latitude != null) ? latitude + "," + longitude : null;
+        }
+        mLatitude = latitude;
+        mLongitude = longitude;
+    }
+    
+    public String getFormattedLocation() {
+        return mFormattedLocation;
+    }
+    
+    public String getUserAgent() {
+        return mUserAgent;
+    }
+    
+    public void setUserAgent(String userAgent) {
+        mUserAgent = userAgent;
+    }
+    
+    public void setTimeout(int milliseconds) {
+        mTimeoutMilliseconds = milliseconds;
+    }
+    
+    public int getTimeout() {
+        return mTimeoutMilliseconds;
+    }
+    
+    public void setAdaptiveTimeoutEnabled(boolean enabled) {
+        mIsAdaptiveTimeoutEnabled = enabled;
+    }
+    
+    public boolean getAdaptiveTimeoutEnabled() {
+        return mIsAdaptiveTimeoutEnabled;
+    }
+    
+    public void setSpeculativeFailoverEnabled(boolean enabled) {
+        mIsSpeculativeFailoverEnabled = enabled;
+        if (!enabled) discardSpeculativeLoads();
+    }
+    
+    public boolean getSpeculativeFailoverEnabled() {
+        return mIsSpeculativeFailoverEnabled;
+    }
+    
+    public void setMaxSpeculativeFailoverDepth(int depth) {
+        mMaxSpeculativeFailoverDepth = depth;
+    }
+    
+    public int getMaxSpeculativeFailoverDepth() {
+        return mMaxSpeculativeFailoverDepth;
+    }
+    
+    public void setMaxSpeculativeFailoverBytes(int bytes) {
+        mMaxSpeculativeFailoverBytes = bytes;
+    }
+    
+    public int getMaxSpeculativeFailoverBytes() {
+        return mMaxSpeculativeFailoverBytes;
+    }
+    
+    public void setAutorefreshEnabled(boolean enabled) {
+        mAutorefreshEnabled = enabled;
+        if (!enabled) cancelRefresh();
+    }
+    
+    public boolean getAutorefreshEnabled() {
+        return mAutorefreshEnabled;
+    }
+    
+    /*
+     * Refresh interval for the current ad, already clamped to the SDK minimum; 0 if none.
+     */
+    public long getRefreshTimeMilliseconds() {
+        return mRefreshTimeMilliseconds;
+    }
+    
+    public String getUrl() {
+        return mUrl;
+    }
+    
+    public String getFailUrl() {
+        return mFailUrl;
+    }
+    
+    public AdResponse getResponse() {
+        return mAdResponse;
+    }
+    
+    public boolean isLoading() {
+        return mIsLoading;
+    }
+    
+    /*
+     * Number of failovers served from a speculatively fetched response.
+     */
+    public int getSpeculativeFailoverHitCount() {
+        return mSpeculativeFailoverHitCount;
+    }
+}
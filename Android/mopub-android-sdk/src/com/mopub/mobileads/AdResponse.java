@@ -0,0 +1,298 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Immutable summary of an ad server response. Built in a single pass over the response headers 
+ * on the background thread that performed the request, so the raw HttpResponse (and its 
+ * connection) can be released right away.
+ */
+public class AdResponse {
+    private final int mStatusCode;
+    private final String mAdType;
+    private final String mFullAdType;
+    private final String mNetworkType;
+    private final String mRedirectUrl;
+    private final String mClickthroughUrl;
+    private final String mPreResolveUrl;
+    private final String mFailUrl;
+    private final String mImpressionUrl;
+    private final String mCustomSelector;
+    private final String mNativeParams;
+    private final String mOrientation;
+    private final boolean mIsScrollable;
+    private final int mWidth;
+    private final int mHeight;
+    private final long mRefreshTimeMilliseconds;
+    private final long mRetryAfterMilliseconds;
+    private final Map<String, String> mHeaders;
+
+    private AdResponse(Builder builder) {
+        mStatusCode = builder.mStatusCode;
+        mAdType = builder.mAdType;
+        mFullAdType = builder.mFullAdType;
+        mNetworkType = builder.mNetworkType;
+        mRedirectUrl = builder.mRedirectUrl;
+        mClickthroughUrl = builder.mClickthroughUrl;
+        mPreResolveUrl = builder.mPreResolveUrl;
+        mFailUrl = builder.mFailUrl;
+        mImpressionUrl = builder.mImpressionUrl;
+        mCustomSelector = builder.mCustomSelector;
+        mNativeParams = builder.mNativeParams;
+        mOrientation = builder.mOrientation;
+        mIsScrollable = builder.mIsScrollable;
+        mWidth = builder.mWidth;
+        mHeight = builder.mHeight;
+        mRefreshTimeMilliseconds = builder.mRefreshTimeMilliseconds;
+        mRetryAfterMilliseconds = builder.mRetryAfterMilliseconds;
+        mHeaders = Collections.unmodifiableMap(builder.mHeaders);
+    }
+
+    /*
+     * Parses the status line and headers of a response. As with HttpResponse.getFirstHeader(), 
+     * the first occurrence of a repeated header wins. Throws NumberFormatException if a numeric 
+     * header is malformed.
+     */
+    public static AdResponse fromHttpResponse(HttpResponse response) {
+        Builder builder = new Builder();
+        StatusLine statusLine = response.getStatusLine();
+        builder.mStatusCode = (statusLine != null) ? statusLine.getStatusCode() : -1;
+
+        String width = null;
+        String height = null;
+        String refreshTime = null;
+        String scrollable = null;
+        String retryAfter = null;
+
+        Header[] headers = response.getAllHeaders();
+        for (int i = 0; i < headers.length; i++) {
+            String name = headers[i].getName();
+            String value = headers[i].getValue();
+            if (!builder.mHeaders.containsKey(name)) builder.mHeaders.put(name, value);
+
+            if (retryAfter == null && name.equalsIgnoreCase("Retry-After")) {
+                retryAfter = value;
+                continue;
+            }
+            if (name.length() < 3 || (name.charAt(0) != 'X' && name.charAt(0) != 'x')) continue;
+
+            if (name.equalsIgnoreCase("X-Adtype")) {
+                if (builder.mAdType == null) builder.mAdType = value;
+            } else if (name.equalsIgnoreCase("X-Fulladtype")) {
+                if (builder.mFullAdType == null) builder.mFullAdType = value;
+            } else if (name.equalsIgnoreCase("X-Networktype")) {
+                if (builder.mNetworkType == null) builder.mNetworkType = value;
+            } else if (name.equalsIgnoreCase("X-Launchpage")) {
+                if (builder.mRedirectUrl == null) builder.mRedirectUrl = value;
+            } else if (name.equalsIgnoreCase("X-Clickthrough")) {
+                if (builder.mClickthroughUrl == null) builder.mClickthroughUrl = value;
+            } else if (name.equalsIgnoreCase("X-Preresolveurl")) {
+                if (builder.mPreResolveUrl == null) builder.mPreResolveUrl = value;
+            } else if (name.equalsIgnoreCase("X-Failurl")) {
+                if (builder.mFailUrl == null) builder.mFailUrl = value;
+            } else if (name.equalsIgnoreCase("X-Imptracker")) {
+                if (builder.mImpressionUrl == null) builder.mImpressionUrl = value;
+            } else if (name.equalsIgnoreCase("X-Customselector")) {
+                if (builder.mCustomSelector == null) builder.mCustomSelector = value;
+            } else if (name.equalsIgnoreCase("X-Nativeparams")) {
+                if (builder.mNativeParams == null) builder.mNativeParams = value;
+            } else if (name.equalsIgnoreCase("X-Orientation")) {
+                if (builder.mOrientation == null) builder.mOrientation = value;
+            } else if (name.equalsIgnoreCase("X-Scrollable")) {
+                if (scrollable == null) scrollable = value;
+            } else if (name.equalsIgnoreCase("X-Width")) {
+                if (width == null) width = value;
+            } else if (name.equalsIgnoreCase("X-Height")) {
+                if (height == null) height = value;
+            } else if (name.equalsIgnoreCase("X-Refreshtime")) {
+                if (refreshTime == null) refreshTime = value;
+            }
+        }
+
+        builder.mIsScrollable = "1".equals(scrollable);
+        if (width != null && height != null) {
+            builder.mWidth = Integer.parseInt(width.trim());
+            builder.mHeight = Integer.parseInt(height.trim());
+        }
+        if (refreshTime != null) {
+            builder.mRefreshTimeMilliseconds = Long.valueOf(refreshTime.trim()) * 1000;
+        }
+        if (retryAfter != null) {
+            builder.mRetryAfterMilliseconds = parseRetryAfter(retryAfter.trim());
+        }
+
+        return new AdResponse(builder);
+    }
+
+    /*
+     * Retry-After is either a number of seconds or an HTTP date. Returns -1 if it is neither; 
+     * unlike the X- headers, a bad value here isn't worth rejecting the ad over.
+     */
+    static long parseRetryAfter(String value) {
+        try {
+            long seconds = Long.parseLong(value);
+            return (seconds >= 0) ? seconds * 1000 : -1;
+        } catch (NumberFormatException e) {
+            // Not a number of seconds; try a date.
+        }
+        
+        try {
+            Date date = DateUtils.parseDate(value);
+            return Math.max(date.getTime() - System.currentTimeMillis(), 0);
+        } catch (DateParseException e) {
+            return -1;
+        }
+    }
+
+    private static class Builder {
+        int mStatusCode;
+        String mAdType;
+        String mFullAdType;
+        String mNetworkType;
+        String mRedirectUrl;
+        String mClickthroughUrl;
+        String mPreResolveUrl;
+        String mFailUrl;
+        String mImpressionUrl;
+        String mCustomSelector;
+        String mNativeParams;
+        String mOrientation;
+        boolean mIsScrollable;
+        int mWidth;
+        int mHeight;
+        long mRefreshTimeMilliseconds = -1;
+        long mRetryAfterMilliseconds = -1;
+        final LinkedHashMap<String, String> mHeaders = new LinkedHashMap<String, String>();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+
+    public String getAdType() {
+        return mAdType;
+    }
+
+    public String getFullAdType() {
+        return mFullAdType;
+    }
+
+    public String getNetworkType() {
+        return mNetworkType;
+    }
+
+    public String getRedirectUrl() {
+        return mRedirectUrl;
+    }
+
+    public String getClickthroughUrl() {
+        return mClickthroughUrl;
+    }
+
+    /*
+     * Link in the creative whose destination the server has marked as safe to resolve ahead of 
+     * a tap (the X-Preresolveurl header), i.e. requesting it records no click. Null if none.
+     */
+    public String getPreResolveUrl() {
+        return mPreResolveUrl;
+    }
+
+    public String getFailUrl() {
+        return mFailUrl;
+    }
+
+    public String getImpressionUrl() {
+        return mImpressionUrl;
+    }
+
+    public String getCustomSelector() {
+        return mCustomSelector;
+    }
+
+    public String getNativeParams() {
+        return mNativeParams;
+    }
+
+    public String getOrientation() {
+        return mOrientation;
+    }
+
+    public boolean isScrollable() {
+        return mIsScrollable;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /*
+     * Refresh interval requested by the server, or -1 if none was given. Not clamped to the SDK 
+     * minimum.
+     */
+    public long getRefreshTimeMilliseconds() {
+        return mRefreshTimeMilliseconds;
+    }
+
+    /*
+     * How long the server asked clients to wait before asking again (the Retry-After header), or 
+     * -1 if it didn't say.
+     */
+    public long getRetryAfterMilliseconds() {
+        return mRetryAfterMilliseconds;
+    }
+
+    /*
+     * All response headers, in the order received (first occurrence of each name only).
+     */
+    public Map<String, String> getHeaders() {
+        return mHeaders;
+    }
+}
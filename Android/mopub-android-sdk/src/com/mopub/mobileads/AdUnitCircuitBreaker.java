@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/*
+ * Throttles ad requests for an ad unit that keeps failing, e.g. during a server incident or a 
+ * long no-fill streak. One breaker exists per ad unit ID and is shared by every ad view using it.
+ * 
+ * - CLOSED: requests flow normally. After each consecutive failure, the next automatic refresh is 
+ *   pushed back exponentially, with jitter so that many devices don't retry in lockstep.
+ * - OPEN: after FailureThreshold consecutive failures, requests for the unit are not sent at all 
+ *   until the open period has passed.
+ * - HALF_OPEN: once the open period has passed, a single probe request is let through. If it 
+ *   succeeds the breaker closes; if it fails the breaker opens again for twice as long, up to 
+ *   the maximum open period.
+ * 
+ * Only the outcome of a whole waterfall counts; failover hops within one load do not.
+ */
+public class AdUnitCircuitBreaker {
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+    
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_DURATION_MILLISECONDS = 60000;
+    public static final long DEFAULT_MAX_OPEN_DURATION_MILLISECONDS = 15 * 60000;
+    public static final long DEFAULT_MAX_BACKOFF_MILLISECONDS = 10 * 60000;
+    
+    // A probe that hasn't reported back by then is assumed lost (e.g. its ad view was destroyed).
+    private static final long PROBE_TIMEOUT_MILLISECONDS = 60000;
+    
+    private static final HashMap<String, AdUnitCircuitBreaker> sBreakers = 
+            new HashMap<String, AdUnitCircuitBreaker>();
+    private static final Random sRandom = new Random();
+    private static volatile int sFailureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private static volatile long sOpenDurationMilliseconds = DEFAULT_OPEN_DURATION_MILLISECONDS;
+    private static volatile long sMaxOpenDurationMilliseconds = 
+            DEFAULT_MAX_OPEN_DURATION_MILLISECONDS;
+    private static volatile long sMaxBackoffMilliseconds = DEFAULT_MAX_BACKOFF_MILLISECONDS;
+    
+    private final String mAdUnitId;
+    private State mState = State.CLOSED;
+    private int mConsecutiveFailures;
+    private long mOpenDurationMilliseconds;
+    private long mOpenUntil;
+    private long mProbeStartTime;
+    private boolean mIsProbeInFlight;
+    private int mTripCount;
+    private int mRejectedRequestCount;
+    
+    /*
+     * Returns the breaker shared by every ad view using the given ad unit ID.
+     */
+    public static synchronized AdUnitCircuitBreaker getInstance(String adUnitId) {
+        AdUnitCircuitBreaker breaker = sBreakers.get(adUnitId);
+        if (breaker == null) {
+            breaker = new AdUnitCircuitBreaker(adUnitId);
+            sBreakers.put(adUnitId, breaker);
+        }
+        return breaker;
+    }
+    
+    /*
+     * Returns the breakers of every ad unit seen so far, keyed by ad unit ID.
+     */
+    public static synchronized Map<String, AdUnitCircuitBreaker> getAllInstances() {
+        return new HashMap<String, AdUnitCircuitBreaker>(sBreakers);
+    }
+    
+    private AdUnitCircuitBreaker(String adUnitId) {
+        mAdUnitId = adUnitId;
+    }
+    
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+    
+    /*
+     * Returns whether a request for this ad unit may be sent now. In the HALF_OPEN state, a true 
+     * result makes the caller the probe, which must report back through recordSuccess() or 
+     * recordFailure().
+     */
+    public synchronized boolean allowRequest() {
+        long now = now();
+        if (mState == State.OPEN && now >= mOpenUntil) {
+            mState = State.HALF_OPEN;
+            mIsProbeInFlight = false;
+        }
+        
+        if (mState == State.CLOSED) return true;
+        
+        if (mState == State.HALF_OPEN) {
+            if (!mIsProbeInFlight || now - mProbeStartTime >= PROBE_TIMEOUT_MILLISECONDS) {
+                mIsProbeInFlight = true;
+                mProbeStartTime = now;
+                return true;
+            }
+        }
+        
+        mRejectedRequestCount++;
+        return false;
+    }
+    
+    public synchronized void recordSuccess() {
+        mConsecutiveFailures = 0;
+        mIsProbeInFlight = false;
+        mOpenDurationMilliseconds = 0;
+        mState = State.CLOSED;
+    }
+    
+    public synchronized void recordFailure() {
+        mConsecutiveFailures++;
+        if (mState == State.HALF_OPEN) {
+            mIsProbeInFlight = false;
+            open(Math.min(mOpenDurationMilliseconds * 2, sMaxOpenDurationMilliseconds));
+        } else if (mState == State.CLOSED && mConsecutiveFailures >= sFailureThreshold) {
+            open(sOpenDurationMilliseconds);
+        }
+    }
+    
+    private void open(long durationMilliseconds) {
+        mState = State.OPEN;
+        mOpenDurationMilliseconds = Math.max(durationMilliseconds, 1);
+        mOpenUntil = now() + mOpenDurationMilliseconds;
+        mTripCount++;
+    }
+    
+    /*
+     * Returns how long to wait before the next automatic refresh, given the normal refresh 
+     * interval: the interval itself while nothing is failing, and after n consecutive failures 
+     * roughly interval * 2^n (capped at the maximum backoff), randomized by up to half. While the 
+     * breaker is open, the wait lasts at least until the probe is allowed.
+     */
+    public synchronized long getRefreshDelay(long refreshTimeMilliseconds) {
+        if (mConsecutiveFailures == 0 || refreshTimeMilliseconds <= 0) {
+            return refreshTimeMilliseconds;
+        }
+        
+        long delay = refreshTimeMilliseconds;
+        for (int i = 0; i < mConsecutiveFailures && delay < sMaxBackoffMilliseconds; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, sMaxBackoffMilliseconds);
+        
+        // "Equal jitter": keep half the delay and randomize the other half.
+        long half = delay / 2;
+        synchronized (sRandom) {
+            delay = half + (long) (sRandom.nextDouble() * (delay - half));
+        }
+        
+        if (mState == State.OPEN) delay = Math.max(delay, mOpenUntil - now());
+        return Math.max(delay, refreshTimeMilliseconds);
+    }
+    
+    /*
+     * Closes every breaker and forgets all failures.
+     */
+    public static synchronized void resetAll() {
+        for (AdUnitCircuitBreaker breaker : sBreakers.values()) breaker.recordSuccess();
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return mAdUnitId + ": " + mState + ", " + mConsecutiveFailures + 
+                " consecutive failures, tripped " + mTripCount + " times, " + 
+                mRejectedRequestCount + " requests skipped";
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    
+    public String getAdUnitId() {
+        return mAdUnitId;
+    }
+    
+    public synchronized State getState() {
+        // Report an elapsed open period as HALF_OPEN even before the next request asks.
+        if (mState == State.OPEN && now() >= mOpenUntil) return State.HALF_OPEN;
+        return mState;
+    }
+    
+    public synchronized int getConsecutiveFailureCount() {
+        return mConsecutiveFailures;
+    }
+    
+    /*
+     * Number of times the breaker has opened.
+     */
+    public synchronized int getTripCount() {
+        return mTripCount;
+    }
+    
+    /*
+     * Number of requests that were not sent because the breaker was open.
+     */
+    public synchronized int getRejectedRequestCount() {
+        return mRejectedRequestCount;
+    }
+    
+    /*
+     * Milliseconds left until a probe is allowed, or 0 if the breaker isn't open.
+     */
+    public synchronized long getRemainingOpenTime() {
+        if (mState != State.OPEN) return 0;
+        return Math.max(mOpenUntil - now(), 0);
+    }
+    
+    public static synchronized void setFailureThreshold(int failures) {
+        sFailureThreshold = (failures > 0) ? failures : 1;
+    }
+    
+    public static synchronized int getFailureThreshold() {
+        return sFailureThreshold;
+    }
+    
+    public static synchronized void setOpenDuration(long milliseconds) {
+        sOpenDurationMilliseconds = (milliseconds > 0) ? milliseconds : 1;
+    }
+    
+    public static synchronized long getOpenDuration() {
+        return sOpenDurationMilliseconds;
+    }
+    
+    public static synchronized void setMaxOpenDuration(long milliseconds) {
+        sMaxOpenDurationMilliseconds = (milliseconds > 0) ? milliseconds : 1;
+    }
+    
+    public static synchronized long getMaxOpenDuration() {
+        return sMaxOpenDurationMilliseconds;
+    }
+    
+    public static synchronized void setMaxBackoff(long milliseconds) {
+        sMaxBackoffMilliseconds = (milliseconds > 0) ? milliseconds : 1;
+    }
+    
+    public static synchronized long getMaxBackoff() {
+        return sMaxBackoffMilliseconds;
+    }
+}
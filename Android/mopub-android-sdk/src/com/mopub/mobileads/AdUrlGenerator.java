@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+/*
+ * Builds ad request URLs from pre-computed parts. The fixed prefix for the current ad unit and the 
+ * encoded form of the current keywords are cached, so a typical request costs one StringBuilder 
+ * and a handful of appends.
+ * 
+ * Instances are not thread-safe; each ad view owns its own.
+ */
+public class AdUrlGenerator {
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private final String mBaseUrl;
+
+    private String mAdUnitId;
+    private String mUdidDigest;
+    private String mPrefix;
+
+    private String mKeywords;
+    private String mEncodedKeywords;
+
+    public AdUrlGenerator(String host, String handler) {
+        mBaseUrl = "http://" + host + handler + "?v=4&id=";
+    }
+
+    /*
+     * Returns the ad request URL. keywords and location ("lat,lon") may be null.
+     */
+    public String generate(String adUnitId, String udidDigest, String keywords, String location,
+            String timeZoneOffset, String orientation, String density) {
+        String prefix = getPrefix(adUnitId, udidDigest);
+        String encodedKeywords = getEncodedKeywords(keywords);
+
+        int length = prefix.length() + timeZoneOffset.length() + orientation.length() + 
+                density.length() + 16;
+        if (encodedKeywords != null) length += encodedKeywords.length() + 3;
+        if (location != null) length += location.length() + 4;
+
+        StringBuilder sb = new StringBuilder(length);
+        sb.append(prefix);
+        if (encodedKeywords != null) sb.append("&q=").append(encodedKeywords);
+        if (location != null) sb.append("&ll=").append(location);
+        sb.append("&z=").append(timeZoneOffset);
+        sb.append("&o=").append(orientation);
+        sb.append("&sc_a=").append(density);
+        return sb.toString();
+    }
+
+    /*
+     * Returns the URL for a batch request covering several ad units. The device parameters are 
+     * sent once; each ad unit contributes an "id" parameter followed by its (possibly empty) "q" 
+     * parameter, in order.
+     */
+    public static String generateBatch(String host, String handler, List<String> adUnitIds, 
+            List<String> keywords, String udidDigest, String location, String timeZoneOffset, 
+            String orientation, String density) {
+        StringBuilder sb = new StringBuilder(128 + adUnitIds.size() * 48);
+        sb.append("http://").append(host).append(handler);
+        sb.append("?v=4&udid=sha:").append(udidDigest);
+        if (location != null) sb.append("&ll=").append(location);
+        sb.append("&z=").append(timeZoneOffset);
+        sb.append("&o=").append(orientation);
+        sb.append("&sc_a=").append(density);
+        for (int i = 0; i < adUnitIds.size(); i++) {
+            String keyword = keywords.get(i);
+            sb.append("&id=").append(adUnitIds.get(i));
+            sb.append("&q=");
+            if (keyword != null) sb.append(encode(keyword));
+        }
+        return sb.toString();
+    }
+
+    private String getPrefix(String adUnitId, String udidDigest) {
+        if (mPrefix == null || !adUnitId.equals(mAdUnitId) || !udidDigest.equals(mUdidDigest)) {
+            mAdUnitId = adUnitId;
+            mUdidDigest = udidDigest;
+            mPrefix = mBaseUrl + adUnitId + "&udid=sha:" + udidDigest;
+        }
+        return mPrefix;
+    }
+
+    private String getEncodedKeywords(String keywords) {
+        if (keywords == null) return null;
+        if (!keywords.equals(mKeywords)) {
+            mKeywords = keywords;
+            mEncodedKeywords = encode(keywords);
+        }
+        return mEncodedKeywords;
+    }
+
+    /*
+     * Percent-encodes a query parameter exactly as android.net.Uri.encode() does: letters, digits 
+     * and "_-!.~'()*" are left alone and everything else is encoded as UTF-8.
+     */
+    public static String encode(String s) {
+        int length = s.length();
+        int i = 0;
+        while (i < length && isAllowed(s.charAt(i))) i++;
+        if (i == length) return s;
+
+        StringBuilder sb = new StringBuilder(length + 16);
+        sb.append(s, 0, i);
+        while (i < length) {
+            int start = i;
+            while (i < length && !isAllowed(s.charAt(i))) i++;
+            byte[] bytes;
+            try {
+                bytes = s.substring(start, i).getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+            for (int j = 0; j < bytes.length; j++) {
+                sb.append('%');
+                sb.append(HEX_DIGITS[(bytes[j] & 0xF0) >> 4]);
+                sb.append(HEX_DIGITS[bytes[j] & 0x0F]);
+            }
+            start = i;
+            while (i < length && isAllowed(s.charAt(i))) i++;
+            sb.append(s, start, i);
+        }
+        return sb.toString();
+    }
+
+    private static boolean isAllowed(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || 
+                "_-!.~'()*".indexOf(c) != -1;
+    }
+}
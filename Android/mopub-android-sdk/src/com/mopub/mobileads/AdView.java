@@ -36,16 +36,14 @@ import android.app.Activity;
 import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
-import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.location.Location;
-import android.location.LocationManager;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Handler;
-import android.provider.Settings.Secure;
-import android.util.DisplayMetrics;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Gravity;
 import android.view.MotionEvent;
@@ -54,30 +52,11 @@ import android.webkit.WebView;
 import android.webkit.WebViewClient;
 import android.widget.FrameLayout;
 
-import com.mopub.mobileads.MoPubView.LocationAwareness;
 import com.mopub.mobileads.Utils;
 
-import org.apache.http.Header;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-
-import java.io.IOException;
-import java.io.InputStream;
 import java.lang.reflect.Method;
-import java.math.BigDecimal;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Executor;
 
 public class AdView extends WebView {
     public static final String AD_ORIENTATION_PORTRAIT_ONLY = "p";
@@ -88,38 +67,60 @@ public class AdView extends WebView {
     public static final String DEVICE_ORIENTATION_SQUARE = "s";
     public static final String DEVICE_ORIENTATION_UNKNOWN = "u";
     public static final String EXTRA_AD_CLICK_DATA = "com.mopub.intent.extra.AD_CLICK_DATA";
-    public static final long MINIMUM_REFRESH_TIME_MILLISECONDS = 10000;
+    public static final long MINIMUM_REFRESH_TIME_MILLISECONDS = 
+            AdRequestEngine.MINIMUM_REFRESH_TIME_MILLISECONDS;
+    public static final long CLICK_RESOLUTION_TTL_MILLISECONDS = 60000;
+    private static final RedirectResolver sRedirectResolver = new RedirectResolver();
     
-    private String mAdUnitId;
-    private String mKeywords;
-    private String mUrl;
+    // Delivers the ad request engine's callbacks on the main thread.
+    private static final Executor sMainThreadExecutor = new Executor() {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+        
+        public void execute(Runnable command) {
+            mHandler.post(command);
+        }
+    };
+    
+    private final AdRequestEngine mEngine;
     private String mClickthroughUrl;
+    private String mPreResolveUrl;
     private String mRedirectUrl;
-    private String mFailUrl;
     private String mImpressionUrl;
     private Location mLocation;
-    private boolean mIsLoading;
-    private boolean mAutorefreshEnabled;
-    private long mRefreshTimeMilliseconds = 0;
-    private int mTimeoutMilliseconds = -1;
     private int mWidth;
     private int mHeight;
     private String mAdOrientation;
 
     protected MoPubView mMoPubView;
-    private HttpResponse mResponse;
     private String mResponseString;
     private String mUserAgent;
+    
+    // Click destination resolved ahead of time for the current creative. See preResolveClick().
+    private int mClickResolutionGeneration;
+    private String mPreResolvedClickUrl;
+    private String mPreResolvedClickDestination;
+    private long mPreResolvedClickTime;
 
     public AdView(Context context, MoPubView view) {
         super(context);
         
         mMoPubView = view;
-        mAutorefreshEnabled = true;
         
         // Store user agent string at beginning to prevent NPE during background thread operations
         mUserAgent = getSettings().getUserAgentString();
         
+        mEngine = new AdRequestEngine(MoPubView.HOST, MoPubView.AD_HANDLER, 
+                DeviceContext.getInstance(context), sMainThreadExecutor, 
+                RefreshScheduler.getInstance());
+        mEngine.setListener(new EngineListener());
+        mEngine.setUserAgent(mUserAgent);
+        
+        // Make sure tracking pings that failed in a previous session get retried.
+        BeaconStore.getInstance(context);
+        
+        // Start listening for location fixes so they're ready by the first ad request.
+        LocationService.getInstance(context);
+        
         disableScrollingAndZoom();
         getSettings().setJavaScriptEnabled(true);
         getSettings().setPluginsEnabled(true);
@@ -127,6 +128,39 @@ public class AdView extends WebView {
         setWebViewClient(new AdWebViewClient());
     }
     
+    /*
+     * Binds this ad view to a (possibly different) MoPubView. Used by AdViewPool to hand out 
+     * ad views that were created ahead of time.
+     */
+    protected void setMoPubView(MoPubView view) {
+        mMoPubView = view;
+    }
+    
+    /*
+     * Returns this ad view to the state it was in just after construction so it can be reused.
+     */
+    protected void reset() {
+        mEngine.reset();
+        stopLoading();
+        clearView();
+        // Unload the creative so its scripts and timers stop, rather than just hiding it.
+        super.loadUrl("about:blank");
+        setOnTouchListener(null);
+        setVisibility(VISIBLE);
+        
+        mMoPubView = null;
+        mClickthroughUrl = null;
+        mPreResolveUrl = null;
+        mRedirectUrl = null;
+        mImpressionUrl = null;
+        mLocation = null;
+        mWidth = 0;
+        mHeight = 0;
+        mAdOrientation = null;
+        mResponseString = null;
+        clearPreResolvedClick();
+    }
+    
     private void disableScrollingAndZoom() {
         setHorizontalScrollBarEnabled(false);
         setHorizontalScrollbarOverlay(false);
@@ -140,6 +174,9 @@ public class AdView extends WebView {
         public boolean shouldOverrideUrlLoading(WebView view, String url) {
             AdView adView = (AdView) view;
             
+            // A creative still running after reset() has no MoPubView to report to.
+            if (adView.mMoPubView == null) return true;
+            
             // Handle the special mopub:// scheme calls.
             if (url.startsWith("mopub://")) {
                 Uri uri = Uri.parse(url);
@@ -165,11 +202,8 @@ public class AdView extends WebView {
                 return true;
             }
 
-            url = urlWithClickTrackingRedirect(adView, url);
-            Log.d("MoPub", "Ad clicked. Click URL: " + url);
-            mMoPubView.adClicked();
-
-            showBrowserAfterFollowingRedirectsForUrl(url);
+            adView.mMoPubView.adClicked();
+            showBrowserForClick(adView, url);
             return true;
         }
 
@@ -179,12 +213,35 @@ public class AdView extends WebView {
             AdView adView = (AdView) view;
             String redirectUrl = adView.getRedirectUrl();
             if (redirectUrl != null && url.startsWith(redirectUrl)) {
-                url = urlWithClickTrackingRedirect(adView, url);
                 view.stopLoading();
-                showBrowserAfterFollowingRedirectsForUrl(url);
+                showBrowserForClick(adView, url);
             }
         }
         
+        /*
+         * If the click's destination was resolved ahead of time, opens it right away and sends the 
+         * click-tracking ping in the background. Otherwise follows the click-tracking redirect 
+         * chain first, as usual.
+         */
+        private void showBrowserForClick(AdView adView, String url) {
+            String destination = adView.getPreResolvedClickDestination(url);
+            if (destination != null) {
+                Log.d("MoPub", "Ad clicked. Using pre-resolved destination: " + destination);
+                // Only the click needs recording: following the tracking redirect chain again 
+                // would hit third-party trackers twice and fetch the landing page for nothing.
+                String clickthroughUrl = adView.getClickthroughUrl();
+                if (clickthroughUrl != null) {
+                    BeaconDispatcher.getInstance().dispatch(clickthroughUrl, mUserAgent, "Click");
+                }
+                showBrowserForUrl(destination);
+                return;
+            }
+            
+            String trackedUrl = urlWithClickTrackingRedirect(adView, url);
+            Log.d("MoPub", "Ad clicked. Click URL: " + trackedUrl);
+            showBrowserAfterFollowingRedirectsForUrl(trackedUrl);
+        }
+        
         private String urlWithClickTrackingRedirect(AdView adView, String url) {
             String clickthroughUrl = adView.getClickthroughUrl();
             if (clickthroughUrl == null) return url;
@@ -196,122 +253,114 @@ public class AdView extends WebView {
     }
     
     public void loadAd() {
-        if (mAdUnitId == null) {
+        if (getAdUnitId() == null) {
             Log.d("MoPub", "Can't load an ad in this ad view because the ad unit ID is null. " + 
                     "Did you forget to call setAdUnitId()?");
             return;
         }
 
-        if (mLocation == null) mLocation = getLastKnownLocation();
-
-        String adUrl = generateAdUrl();
-        mMoPubView.adWillLoad(adUrl);
-        loadUrl(adUrl);
+        applyLocation();
+        applyMoPubViewSettings();
+        mEngine.loadAd();
     }
     
     /*
-     * Returns the last known location of the device using its GPS and network location providers.
-     * May be null if: 
-     * - Location permissions are not requested in the Android manifest file
-     * - The location providers don't exist
-     * - Location awareness is disabled in the parent MoPubView
+     * Copies the parent MoPubView's request settings to the engine, which reads them while 
+     * loading. They are only kept by the MoPubView since its ad views may be swapped or reused.
      */
-    private Location getLastKnownLocation() {
-        LocationAwareness locationAwareness = mMoPubView.getLocationAwareness();
-        int locationPrecision = mMoPubView.getLocationPrecision();
-        Location result = null;
-        
-        if (locationAwareness == LocationAwareness.LOCATION_AWARENESS_DISABLED) {
-            return null;
+    private void applyMoPubViewSettings() {
+        if (mMoPubView == null) return;
+        mEngine.setAdaptiveTimeoutEnabled(mMoPubView.getAdaptiveTimeoutEnabled());
+        mEngine.setSpeculativeFailoverEnabled(mMoPubView.getSpeculativeFailoverEnabled());
+        mEngine.setMaxSpeculativeFailoverDepth(mMoPubView.getMaxSpeculativeFailoverDepth());
+        mEngine.setMaxSpeculativeFailoverBytes(mMoPubView.getMaxSpeculativeFailoverBytes());
+    }
+    
+    /*
+     * Renders the ad request engine's results. Runs on the main thread.
+     */
+    private class EngineListener implements AdRequestEngine.Listener {
+        public void onAdRequest(String url) {
+            mMoPubView.adWillLoad(url);
         }
         
-        LocationManager lm 
-                = (LocationManager) getContext().getSystemService(Context.LOCATION_SERVICE);
-        Location gpsLocation = null;
-        try {
-            gpsLocation = lm.getLastKnownLocation(LocationManager.GPS_PROVIDER);
-        } catch (SecurityException e) {
-            Log.d("MoPub", "Failed to retrieve GPS location: access appears to be disabled.");
-        } catch (IllegalArgumentException e) {
-            Log.d("MoPub", "Failed to retrieve GPS location: device has no GPS provider.");
+        public void onAdResponse(AdResponse adResponse) {
+            configureAdViewUsingAdResponse(adResponse);
         }
         
-        Location networkLocation = null;
-        try {
-            networkLocation = lm.getLastKnownLocation(LocationManager.NETWORK_PROVIDER);
-        } catch (SecurityException e) {
-            Log.d("MoPub", "Failed to retrieve network location: access appears to be disabled.");
-        } catch (IllegalArgumentException e) {
-            Log.d("MoPub", "Failed to retrieve network location: device has no network provider.");
+        public void onHtmlAd(AdResponse adResponse, String html) {
+            loadHtmlAd(html);
         }
         
-        if (gpsLocation == null && networkLocation == null) {
-            return null;
-        }
-        else if (gpsLocation != null && networkLocation != null) {
-            if (gpsLocation.getTime() > networkLocation.getTime()) result = gpsLocation;
-            else result = networkLocation;
+        public void onNativeAd(AdResponse adResponse, NativeAdParams nativeParams) {
+            loadNativeAd(adResponse, nativeParams);
         }
-        else if (gpsLocation != null) result = gpsLocation;
-        else result = networkLocation;
         
-        // Truncate latitude/longitude to the number of digits specified by locationPrecision.
-        if (locationAwareness == LocationAwareness.LOCATION_AWARENESS_TRUNCATED) {
-            double lat = result.getLatitude();
-            double truncatedLat = BigDecimal.valueOf(lat)
-                .setScale(locationPrecision, BigDecimal.ROUND_HALF_DOWN)
-                .doubleValue();
-            result.setLatitude(truncatedLat);
-            
-            double lon = result.getLongitude();
-            double truncatedLon = BigDecimal.valueOf(lon)
-                .setScale(locationPrecision, BigDecimal.ROUND_HALF_DOWN)
-                .doubleValue();
-            result.setLongitude(truncatedLon);
+        public void onCustomEvent(AdResponse adResponse) {
+            performCustomEvent(adResponse);
         }
         
-        return result;
-    }
-    
-    private String generateAdUrl() {
-        StringBuilder sz = new StringBuilder("http://" + MoPubView.HOST + MoPubView.AD_HANDLER);
-        sz.append("?v=4&id=" + mAdUnitId);
-        
-        String udid = Secure.getString(getContext().getContentResolver(), Secure.ANDROID_ID);
-        String udidDigest = (udid == null) ? "" : Utils.sha1(udid);
-        sz.append("&udid=sha:" + udidDigest);
-
-        if (mKeywords != null) sz.append("&q=" + Uri.encode(mKeywords));
+        public void onAdFailed() {
+            adDidFail();
+        }
         
-        if (mLocation != null) {
-            sz.append("&ll=" + mLocation.getLatitude() + "," + mLocation.getLongitude());
+        public void onAdSkipped(String reason) {
+            adRequestSkipped();
         }
         
-        sz.append("&z=" + getTimeZoneOffsetString());
+        public void onRefresh() {
+            if (mMoPubView != null) mMoPubView.refreshAd();
+        }
         
-        int orientation = getResources().getConfiguration().orientation;
-        String orString = DEVICE_ORIENTATION_UNKNOWN;
-        if (orientation == Configuration.ORIENTATION_PORTRAIT) {
-            orString = DEVICE_ORIENTATION_PORTRAIT;
-        } else if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
-            orString = DEVICE_ORIENTATION_LANDSCAPE;
-        } else if (orientation == Configuration.ORIENTATION_SQUARE) {
-            orString = DEVICE_ORIENTATION_SQUARE;
+        public void onLog(String message) {
+            Log.d("MoPub", message);
         }
-        sz.append("&o=" + orString);
+    }
+    
+    /*
+     * Records one native adapter's attempt at loading an ad.
+     */
+    void recordAdapterTiming(String adapterType, long nanos, boolean success) {
+        mEngine.recordAdapterTiming(adapterType, nanos, success);
+    }
+    
+    /*
+     * Returns the most recent location known to the shared LocationService, truncated according 
+     * to the parent MoPubView's settings. May be null if: 
+     * - Location permissions are not requested in the Android manifest file
+     * - The location providers don't exist or have no sufficiently recent fix
+     * - Location awareness is disabled in the parent MoPubView
+     */
+    private Location getLastKnownLocation() {
+        return LocationService.getInstance(getContext()).getLocation(
+                mMoPubView.getLocationAwareness(), mMoPubView.getLocationPrecision());
+    }
+    
+    /*
+     * Gives the engine the location for the next request: the one set by the app if there is 
+     * one, otherwise LocationService's latest fix, which is read afresh for every request.
+     */
+    private void applyLocation() {
+        Location location = (mLocation != null) ? mLocation : getLastKnownLocation();
+        if (location == null) mEngine.setLocation(null, null);
+        else mEngine.setLocation(location.getLatitude(), location.getLongitude());
+    }
+    
+    /*
+     * Starts a load whose response will be delivered by a BatchAdLoader instead of being fetched 
+     * by this ad view. Returns the load, or null if it can't load right now. See 
+     * AdRequestEngine.BatchedLoad.
+     */
+    AdRequestEngine.BatchedLoad beginBatchedLoad() {
+        if (getAdUnitId() == null || isLoading()) return null;
         
-        DisplayMetrics metrics = new DisplayMetrics();
-        Activity activity = (Activity) getContext();
-        activity.getWindowManager().getDefaultDisplay().getMetrics(metrics);
-        sz.append("&sc_a=" + metrics.density);
-      
-        return sz.toString();
+        applyLocation();
+        applyMoPubViewSettings();
+        return mEngine.beginBatchedLoad();
     }
     
-    private String getTimeZoneOffsetString() {
-        SimpleDateFormat format = new SimpleDateFormat("Z");
-        format.setTimeZone(TimeZone.getDefault());
-        return format.format(new Date());
+    String getFormattedLocation() {
+        return mEngine.getFormattedLocation();
     }
     
     /*
@@ -323,168 +372,38 @@ public class AdView extends WebView {
             super.loadUrl(url);
             return;
         }
-
-        if (mIsLoading) {
-            Log.i("MoPub", "Already loading an ad for " + mAdUnitId + ", wait to finish.");
-            return;
-        }
         
-        mUrl = url;
-        mIsLoading = true;
-        new LoadUrlTask().execute(mUrl);
+        applyMoPubViewSettings();
+        mEngine.loadUrl(url);
     }
     
     /*
-     * Background operation that loads a URL.
+     * Configures the ad view from a parsed response. Must be called on the main thread.
      */
-    private class LoadUrlTask extends AsyncTask<String, Void, LoadUrlTaskResult> {
-        private Exception error;
-        
-        protected LoadUrlTaskResult doInBackground(String... urls) {
-            LoadUrlTaskResult result = null;
-            try {
-                result = loadAdFromNetwork(urls[0]);
-            } catch(Exception e) {
-                this.error = e;
-            }
-            return result;
-        }
-        protected void onPostExecute(LoadUrlTaskResult result) {
-            if (error != null || result == null) {
-                adDidFail();
-            } else if (result != null) {
-                result.execute();
-            }
-        }
-    }
-    
-    private LoadUrlTaskResult loadAdFromNetwork(String url) throws Exception {
-        HttpGet httpget = new HttpGet(url);
-        httpget.addHeader("User-Agent", mUserAgent);
-        
-        HttpClient httpclient = getAdViewHttpClient();
-        mResponse = httpclient.execute(httpget);
-        HttpEntity entity = mResponse.getEntity();
-        
-        // Anything but a 200 OK is an invalid response.
-        if (mResponse.getStatusLine().getStatusCode() != HttpStatus.SC_OK || 
-                entity == null || entity.getContentLength() == 0) {
-            throw new Exception("MoPub server returned invalid response.");
-        }
+    private void configureAdViewUsingAdResponse(AdResponse adResponse) {
+        clearPreResolvedClick();
         
-        // Ensure that the ad type header is valid and not "clear".
-        Header atHeader = mResponse.getFirstHeader("X-Adtype");
-        if (atHeader == null || atHeader.getValue().equals("clear")) {
-            throw new Exception("MoPub server returned no ad.");
-        }
-        
-        configureAdViewUsingHeadersFromHttpResponse(mResponse);
-        
-        // Handle custom event ad type.
-        if (atHeader.getValue().equals("custom")) {
-            Log.i("MoPub", "Performing custom event.");
-            Header cmHeader = mResponse.getFirstHeader("X-Customselector");
-            mIsLoading = false;
-            return new PerformCustomEventTaskResult(cmHeader);
-        }
-        // Handle native SDK ad type.
-        else if (!atHeader.getValue().equals("html")) {
-            Log.i("MoPub", "Loading native ad");
-            Header npHeader = mResponse.getFirstHeader("X-Nativeparams");
-            if (npHeader != null) {
-                mIsLoading = false;
-                HashMap<String, String> paramsHash = new HashMap<String, String>();
-                paramsHash.put("X-Adtype", atHeader.getValue());
-                paramsHash.put("X-Nativeparams", npHeader.getValue());
-                Header ftHeader = mResponse.getFirstHeader("X-Fulladtype");
-                if (ftHeader != null) paramsHash.put("X-Fulladtype", ftHeader.getValue());
-                return new LoadNativeAdTaskResult(paramsHash);
-            }
-            else throw new Exception("Could not load native ad; MoPub provided no parameters.");
-        }
-        
-        // Handle HTML ad.
-        InputStream is = entity.getContent();
-        StringBuffer out = new StringBuffer();
-        byte[] b = new byte[4096];
-        for (int n; (n = is.read(b)) != -1;) {
-            out.append(new String(b, 0, n));
-        }
-        return new LoadHtmlAdTaskResult(out.toString());
-    }
-    
-    private DefaultHttpClient getAdViewHttpClient() {
-        HttpParams httpParameters = new BasicHttpParams();
-
-        if (mTimeoutMilliseconds > 0) {
-            // Set timeouts to wait for connection establishment / receiving data.
-            HttpConnectionParams.setConnectionTimeout(httpParameters, mTimeoutMilliseconds);
-            HttpConnectionParams.setSoTimeout(httpParameters, mTimeoutMilliseconds);
-        }
-
-        // Set the buffer size to avoid OutOfMemoryError exceptions on certain HTC devices.
-        // http://stackoverflow.com/questions/5358014/android-httpclient-oom-on-4g-lte-htc-thunderbolt
-        HttpConnectionParams.setSocketBufferSize(httpParameters, 8192);
-
-        return new DefaultHttpClient(httpParameters);
-    }
-    
-    private void configureAdViewUsingHeadersFromHttpResponse(HttpResponse response) {
-        // Print the ad network type to the console.
-        Header ntHeader = response.getFirstHeader("X-Networktype");
-        if (ntHeader != null) Log.i("MoPub", "Fetching ad network type: " + ntHeader.getValue());
-
         // Set the redirect URL prefix: navigating to any matching URLs will send us to the browser.
-        Header rdHeader = response.getFirstHeader("X-Launchpage");
-        if (rdHeader != null) mRedirectUrl = rdHeader.getValue();
-        else mRedirectUrl = null;
+        mRedirectUrl = adResponse.getRedirectUrl();
 
         // Set the URL that is prepended to links for click-tracking purposes.
-        Header ctHeader = response.getFirstHeader("X-Clickthrough");
-        if (ctHeader != null) mClickthroughUrl = ctHeader.getValue();
-        else mClickthroughUrl = null;
-
-        // Set the fall-back URL to be used if the current request fails.
-        Header flHeader = response.getFirstHeader("X-Failurl");
-        if (flHeader != null) mFailUrl = flHeader.getValue();
-        else mFailUrl = null;
+        mClickthroughUrl = adResponse.getClickthroughUrl();
         
+        // Set the link (if any) that the server says can be resolved before it is tapped.
+        mPreResolveUrl = adResponse.getPreResolveUrl();
+
         // Set the URL to be used for impression tracking.
-        Header imHeader = response.getFirstHeader("X-Imptracker");
-        if (imHeader != null) mImpressionUrl = imHeader.getValue();
-        else mImpressionUrl = null;
+        mImpressionUrl = adResponse.getImpressionUrl();
         
         // Set the webview's scrollability.
-        Header scHeader = response.getFirstHeader("X-Scrollable");
-        boolean enabled = false;
-        if (scHeader != null) enabled = scHeader.getValue().equals("1");
-        setWebViewScrollingEnabled(enabled);
+        setWebViewScrollingEnabled(adResponse.isScrollable());
 
         // Set the width and height.
-        Header wHeader = response.getFirstHeader("X-Width");
-        Header hHeader = response.getFirstHeader("X-Height");
-        if (wHeader != null && hHeader != null) {
-            mWidth = Integer.parseInt(wHeader.getValue().trim());
-            mHeight = Integer.parseInt(hHeader.getValue().trim());
-        }
-        else {
-            mWidth = 0;
-            mHeight = 0;
-        }
-
-        // Set the auto-refresh time. A timer will be scheduled upon ad success or failure.
-        Header rtHeader = response.getFirstHeader("X-Refreshtime");
-        if (rtHeader != null) {
-            mRefreshTimeMilliseconds = Long.valueOf(rtHeader.getValue()) * 1000;
-            if (mRefreshTimeMilliseconds < MINIMUM_REFRESH_TIME_MILLISECONDS) {
-                mRefreshTimeMilliseconds = MINIMUM_REFRESH_TIME_MILLISECONDS;
-            }
-        }
-        else mRefreshTimeMilliseconds = 0;
-        
+        mWidth = adResponse.getWidth();
+        mHeight = adResponse.getHeight();
+
         // Set the allowed orientations for this ad.
-        Header orHeader = response.getFirstHeader("X-Orientation");
-        mAdOrientation = (orHeader != null) ? orHeader.getValue() : null;
+        mAdOrientation = adResponse.getOrientation();
     }
     
     private void setWebViewScrollingEnabled(boolean enabled) {
@@ -500,10 +419,21 @@ public class AdView extends WebView {
     }
     
     private void adDidLoad() {
+        if (mMoPubView == null) return;
         Log.i("MoPub", "Ad successfully loaded.");
-        mIsLoading = false;
+        mEngine.adDidLoad();
+        if (mMoPubView.isBackAdView(this)) {
+            // Pre-resolution waits until MoPubView swaps this view in.
+            mMoPubView.backAdViewDidLoad();
+            return;
+        }
+        if (mMoPubView.getClickPreResolutionEnabled()) preResolveClick();
+        
         scheduleRefreshTimerIfEnabled();
         mMoPubView.removeAllViews();
+        // This view may have been the invisible back buffer before a native or custom response 
+        // promoted it (see MoPubView.promoteBackAdView()).
+        setVisibility(VISIBLE);
         FrameLayout.LayoutParams layoutParams = new FrameLayout.LayoutParams(
                 FrameLayout.LayoutParams.WRAP_CONTENT,
                 FrameLayout.LayoutParams.WRAP_CONTENT,
@@ -514,17 +444,45 @@ public class AdView extends WebView {
     }
 
     private void adDidFail() {
+        if (mMoPubView == null) return;
         Log.i("MoPub", "Ad failed to load.");
-        mIsLoading = false;
+        if (mMoPubView.isBackAdView(this)) {
+            mMoPubView.backAdViewDidFail();
+            return;
+        }
+        
+        scheduleRefreshTimerIfEnabled();
+        mMoPubView.adFailed();
+    }
+    
+    /*
+     * Called instead of a request that the engine ruled out (see AdRequestEngine.loadAd()). 
+     * Reported to the app as a failure, but not counted as one by the circuit breaker.
+     */
+    private void adRequestSkipped() {
+        if (mMoPubView == null) return;
+        if (mMoPubView.isBackAdView(this)) {
+            mMoPubView.backAdViewDidFail();
+            return;
+        }
+        
         scheduleRefreshTimerIfEnabled();
         mMoPubView.adFailed();
     }
+    
+    /*
+     * Reports the outcome of a whole waterfall to the ad unit's circuit breaker.
+     */
+    void recordLoadOutcome(boolean success) {
+        mEngine.recordLoadOutcome(success);
+    }
 
     private void adDidClose() {
-        mMoPubView.adClosed();
+        if (mMoPubView != null) mMoPubView.adClosed();
     }
     
     private void handleCustomIntentFromUri(Uri uri) {
+        if (mMoPubView == null) return;
         mMoPubView.adClicked();
         String action = uri.getQueryParameter("fnc");
         String adData = uri.getQueryParameter("data");
@@ -545,182 +503,195 @@ public class AdView extends WebView {
     private class ShowBrowserTask extends AsyncTask<String, Void, String> {
         @Override
         protected String doInBackground(String... urls) {
-            String startingUrl = urls[0];
-            URL url = null;
-            try {
-                url = new URL(startingUrl);
-            } catch (MalformedURLException e) {
-                // Return the starting URL if it is non-null, since that could still potentially be
-                // a "valid" URL (e.g. one with a custom scheme).
-                return (startingUrl != null) ? startingUrl : "";
-            }
-            
-            // Find the final target URL, manually following redirects if necessary. We can't use 
-            // HttpClient for this since the target may not be a supported URL (e.g. a market URL).
-            int statusCode = -1;
-            HttpURLConnection connection = null;
-            String nextLocation = url.toString();
-            
-            // Keep track of where we've been to detect redirect cycles.
-            Set<String> redirectLocations = new HashSet<String>();
-            redirectLocations.add(nextLocation);
-            
-            try {
-                do {
-                    connection = (HttpURLConnection) url.openConnection();
-                    connection.setRequestProperty("User-Agent", mUserAgent);
-                    connection.setInstanceFollowRedirects(false);
-                    
-                    statusCode = connection.getResponseCode();
-                    if (statusCode == HttpStatus.SC_OK) {
-                        // Successfully reached the end of redirects: nextLocation is our target.
-                        connection.disconnect();
-                        break;
-                    } else {
-                        // Depending on statusCode, we'll either continue to redirect, or error
-                        // out (in which case nextLocation will probably be null).
-                        nextLocation = connection.getHeaderField("location");
-                        connection.disconnect();
-                        
-                        // Check for redirect cycle.
-                        if (!redirectLocations.add(nextLocation)) {
-                            Log.d("MoPub", "Click redirect cycle detected -- will show blank.");
-                            return "";
-                        }
-                            
-                        url = new URL(nextLocation);
-                    }
-                }
-                while (isStatusCodeForRedirection(statusCode));
-            } catch (IOException e) {
-                // Return the last URL we tried to reach, since that could still potentially be a
-                // "valid" URL (e.g. one with a custom scheme).
-                return (nextLocation != null) ? nextLocation : "";
-            } finally {
-                if (connection != null) connection.disconnect();
-            }
-            
-            return nextLocation;
-        }
-        
-        private boolean isStatusCodeForRedirection(int statusCode) {
-            return (statusCode == HttpStatus.SC_MOVED_TEMPORARILY ||
-                    statusCode == HttpStatus.SC_MOVED_PERMANENTLY ||
-                    statusCode == HttpStatus.SC_TEMPORARY_REDIRECT ||
-                    statusCode == HttpStatus.SC_SEE_OTHER);
+            return resolveFinalUrl(urls[0]);
         }
 
         @Override
         protected void onPostExecute(String uri) {
-            if (uri == null || uri.equals("")) uri = "about:blank";
-            Log.d("MoPub", "Final URI to show in browser: " + uri);
-            Intent actionIntent = new Intent(Intent.ACTION_VIEW, Uri.parse(uri));
-            try {
-                getContext().startActivity(actionIntent);
-            } catch (ActivityNotFoundException e) {
-                String action = actionIntent.getAction();
-                if (action.startsWith("market://")) {
-                    Log.w("MoPub", "Could not handle market action: " + action
-                            + ". Perhaps you're running in the emulator, which does not have "
-                            + "the Android Market?");
-                } else {
-                    Log.w("MoPub", "Could not handle intent action: " + action);
-                }
-                
-                getContext().startActivity(new Intent(Intent.ACTION_VIEW, Uri.parse("about:blank")));
-            }
+            showBrowserForUrl(uri);
         }
     }
     
-    private abstract interface LoadUrlTaskResult {
-        abstract void execute();
-    }
-    
-    private class PerformCustomEventTaskResult implements LoadUrlTaskResult {
-        protected Header mHeader;
+    /*
+     * Follows the redirect chain starting at the given URL and returns the final destination, or 
+     * "" if there is none. Performs network I/O: must not be called on the main thread.
+     */
+    private String resolveFinalUrl(String startingUrl) {
+        RedirectResolver.Result result = sRedirectResolver.resolve(startingUrl, mUserAgent);
         
-        public PerformCustomEventTaskResult(Header header) {
-            mHeader = header;
+        List<RedirectResolver.Hop> hops = result.getHops();
+        for (int i = 0; i < hops.size(); i++) {
+            RedirectResolver.Hop hop = hops.get(i);
+            Log.d("MoPub", "Click redirect hop " + (i + 1) + ": " + hop.mMethod + " " + hop.mUrl + 
+                    " -> " + hop.mStatusCode + " (" + hop.mLatencyMilliseconds + " ms)");
+        }
+        if (result.getStatus() == RedirectResolver.Result.STATUS_CYCLE) {
+            Log.d("MoPub", "Click redirect cycle detected -- will show blank.");
+        } else if (result.getStatus() == RedirectResolver.Result.STATUS_TIMED_OUT) {
+            Log.d("MoPub", "Click redirects took longer than " + 
+                    sRedirectResolver.getTotalTimeout() + " ms -- opening last URL reached.");
+        } else if (result.getStatus() == RedirectResolver.Result.STATUS_TOO_MANY_HOPS) {
+            Log.d("MoPub", "Click redirect chain longer than " + sRedirectResolver.getMaxHops() + 
+                    " hops -- opening last URL reached.");
         }
         
-        public void execute() {
-            if (mHeader == null) {
-                Log.i("MoPub", "Couldn't call custom method because the server did not specify one.");
-                mMoPubView.adFailed();
-                return;
+        return result.getUrl();
+    }
+    
+    private void showBrowserForUrl(String uri) {
+        if (uri == null || uri.equals("")) uri = "about:blank";
+        Log.d("MoPub", "Final URI to show in browser: " + uri);
+        Intent actionIntent = new Intent(Intent.ACTION_VIEW, Uri.parse(uri));
+        try {
+            getContext().startActivity(actionIntent);
+        } catch (ActivityNotFoundException e) {
+            String action = actionIntent.getAction();
+            if (action.startsWith("market://")) {
+                Log.w("MoPub", "Could not handle market action: " + action
+                        + ". Perhaps you're running in the emulator, which does not have "
+                        + "the Android Market?");
+            } else {
+                Log.w("MoPub", "Could not handle intent action: " + action);
             }
             
-            String methodName = mHeader.getValue();
-            Log.i("MoPub", "Trying to call method named " + methodName);
-            
-            Class<? extends Activity> c;
-            Method method;
-            Activity userActivity = mMoPubView.getActivity();
-            try {
-                c = userActivity.getClass();
-                method = c.getMethod(methodName, MoPubView.class);
-                method.invoke(userActivity, mMoPubView);
-            } catch (NoSuchMethodException e) {
-                Log.d("MoPub", "Couldn't perform custom method named " + methodName +
-                        "(MoPubView view) because your activity class has no such method");
-                return;
-            } catch (Exception e) {
-                Log.d("MoPub", "Couldn't perform custom method named " + methodName);
-                return;
-            }
+            getContext().startActivity(new Intent(Intent.ACTION_VIEW, Uri.parse("about:blank")));
         }
     }
     
-    private class LoadNativeAdTaskResult implements LoadUrlTaskResult {
-        protected HashMap<String, String> mParamsHash;
+    /*
+     * Starts resolving the destination of the link named by the server's X-Preresolveurl header 
+     * in the background, so a tap on it can open the browser without waiting for the redirect 
+     * chain. Links the server hasn't vouched for are never requested early: they may be 
+     * third-party click trackers, which would then count a click on every impression. Results 
+     * are tied to the current creative and expire after CLICK_RESOLUTION_TTL_MILLISECONDS.
+     */
+    protected void preResolveClick() {
+        String clickUrl = mPreResolveUrl;
+        if (clickUrl == null) return;
+        
+        // Resolve the link itself rather than the click-tracking URL, so no click is recorded.
+        Log.d("MoPub", "Pre-resolving click destination: " + clickUrl);
+        new PreResolveClickTask(mClickResolutionGeneration, clickUrl).execute(clickUrl);
+    }
+    
+    private class PreResolveClickTask extends AsyncTask<String, Void, String> {
+        private final int mGeneration;
+        private final String mClickUrl;
         
-        public LoadNativeAdTaskResult(HashMap<String, String> hash) {
-            mParamsHash = hash;
+        PreResolveClickTask(int generation, String clickUrl) {
+            mGeneration = generation;
+            mClickUrl = clickUrl;
+        }
+        
+        @Override
+        protected String doInBackground(String... urls) {
+            return resolveFinalUrl(urls[0]);
         }
         
-        public void execute() {
-            mIsLoading = false;
-            mMoPubView.loadNativeSDK(mParamsHash);
+        @Override
+        protected void onPostExecute(String destination) {
+            // Ignore results for a creative that has since been replaced.
+            if (mGeneration != mClickResolutionGeneration) return;
+            if (destination == null || destination.equals("")) return;
+            
+            mPreResolvedClickUrl = mClickUrl;
+            mPreResolvedClickDestination = destination;
+            mPreResolvedClickTime = SystemClock.elapsedRealtime();
         }
     }
     
-    private class LoadHtmlAdTaskResult implements LoadUrlTaskResult {
-        protected String mData;
+    /*
+     * Returns the pre-resolved destination for a click on the given URL, or null if it hasn't 
+     * been resolved or the result has expired.
+     */
+    protected String getPreResolvedClickDestination(String url) {
+        if (mPreResolvedClickDestination == null || !url.equals(mPreResolvedClickUrl)) return null;
+        long age = SystemClock.elapsedRealtime() - mPreResolvedClickTime;
+        if (age > CLICK_RESOLUTION_TTL_MILLISECONDS) {
+            clearPreResolvedClick();
+            return null;
+        }
+        return mPreResolvedClickDestination;
+    }
+    
+    private void clearPreResolvedClick() {
+        mClickResolutionGeneration++;
+        mPreResolvedClickUrl = null;
+        mPreResolvedClickDestination = null;
+        mPreResolvedClickTime = 0;
+    }
+    
+    private void performCustomEvent(AdResponse adResponse) {
+        if (mMoPubView.isBackAdView(this)) mMoPubView.promoteBackAdView();
         
-        public LoadHtmlAdTaskResult(String data) {
-            mData = data;
+        String methodName = adResponse.getCustomSelector();
+        if (methodName == null) {
+            Log.i("MoPub", "Couldn't call custom method because the server did not specify one.");
+            mMoPubView.adFailed();
+            return;
         }
         
-        public void execute() {
-            if (mData == null) return;
-            mResponseString = mData;
-            loadDataWithBaseURL("http://"+MoPubView.HOST+"/", 
-                mData, "text/html", "utf-8", null);
+        Log.i("MoPub", "Trying to call method named " + methodName);
+        
+        Class<? extends Activity> c;
+        Method method;
+        Activity userActivity = mMoPubView.getActivity();
+        try {
+            c = userActivity.getClass();
+            method = c.getMethod(methodName, MoPubView.class);
+            method.invoke(userActivity, mMoPubView);
+            recordLoadOutcome(true);
+        } catch (NoSuchMethodException e) {
+            Log.d("MoPub", "Couldn't perform custom method named " + methodName +
+                    "(MoPubView view) because your activity class has no such method");
+            return;
+        } catch (Exception e) {
+            Log.d("MoPub", "Couldn't perform custom method named " + methodName);
+            return;
         }
     }
     
+    private void loadNativeAd(AdResponse adResponse, NativeAdParams nativeParams) {
+        if (mMoPubView.isBackAdView(this)) mMoPubView.promoteBackAdView();
+        
+        HashMap<String, String> paramsHash = new HashMap<String, String>();
+        paramsHash.put("X-Adtype", adResponse.getAdType());
+        paramsHash.put("X-Nativeparams", adResponse.getNativeParams());
+        String fullAdType = adResponse.getFullAdType();
+        if (fullAdType != null) paramsHash.put("X-Fulladtype", fullAdType);
+        mMoPubView.loadNativeSDK(paramsHash, nativeParams);
+    }
+    
+    private void loadHtmlAd(String html) {
+        mResponseString = html;
+        loadDataWithBaseURL("http://"+MoPubView.HOST+"/", 
+            mMoPubView.prepareHtmlForRendering(html), "text/html", "utf-8", null);
+    }
+    
+    /*
+     * Drops all responses fetched ahead for the current waterfall.
+     */
+    protected void discardSpeculativeLoads() {
+        mEngine.discardSpeculativeLoads();
+    }
+    
     /*
      * Stops refreshing ads.
      */
     protected void cleanup() {
         setAutorefreshEnabled(false);
+        discardSpeculativeLoads();
     }
 
     @Override
     public void reload() {
-        Log.d("MoPub", "Reload ad: " + mUrl);
-        loadUrl(mUrl);
+        applyMoPubViewSettings();
+        mEngine.reload();
     }
 
     public void loadFailUrl() {
-        mIsLoading = false;
-        if (mFailUrl != null) {
-            Log.d("MoPub", "Loading failover url: " + mFailUrl);
-            loadUrl(mFailUrl);
-        } else {
-            // No other URLs to try, so signal a failure.
-            adDidFail();
-        }
+        applyMoPubViewSettings();
+        mEngine.loadFailUrl();
     }
     
     protected void loadResponseString(String responseString) {
@@ -730,91 +701,64 @@ public class AdView extends WebView {
 
     protected void trackImpression() {
         if (mImpressionUrl == null) return;
-        
-        new Thread(new Runnable() {
-            public void run () {
-                DefaultHttpClient httpclient = new DefaultHttpClient();
-                HttpGet httpget = new HttpGet(mImpressionUrl);
-                httpget.addHeader("User-Agent", mUserAgent);
-                try {
-                    httpclient.execute(httpget);
-                } catch (ClientProtocolException e) {
-                    Log.i("MoPub", "Impression tracking failed: "+mImpressionUrl);
-                } catch (IOException e) {
-                    Log.i("MoPub", "Impression tracking failed: "+mImpressionUrl);
-                }
-            }
-        }).start();
+        BeaconDispatcher.getInstance().dispatch(mImpressionUrl, mUserAgent, "Impression");
     }
     
     protected void registerClick() {
         if (mClickthroughUrl == null) return;
-
-        new Thread(new Runnable() {
-            public void run () {
-                DefaultHttpClient httpclient = new DefaultHttpClient();
-                HttpGet httpget = new HttpGet(mClickthroughUrl);
-                httpget.addHeader("User-Agent", mUserAgent);
-                try {
-                    httpclient.execute(httpget);
-                } catch (ClientProtocolException e) {
-                    Log.i("MoPub", "Click tracking failed: "+mClickthroughUrl);
-                } catch (IOException e) {
-                    Log.i("MoPub", "Click tracking failed: "+mClickthroughUrl);
-                }
-            }
-        }).start();
+        BeaconDispatcher.getInstance().dispatch(mClickthroughUrl, mUserAgent, "Click");
     }
 
     protected void adAppeared() {
         this.loadUrl("javascript:webviewDidAppear();");
     }
     
-    private Handler mRefreshHandler = new Handler();
-    private Runnable mRefreshRunnable = new Runnable() {
-        public void run() {
-            loadAd();
-        }
-    };
-
     protected void scheduleRefreshTimerIfEnabled() {
-        cancelRefreshTimer();
-        if (!mAutorefreshEnabled || mRefreshTimeMilliseconds <= 0) return;
-        mRefreshHandler.postDelayed(mRefreshRunnable, mRefreshTimeMilliseconds);
+        // With double buffering, the next ad starts loading a little before it's due.
+        long leadTime = (mMoPubView != null) ? mMoPubView.getRefreshLeadTime() : 0;
+        mEngine.scheduleRefresh(leadTime);
     }
 
     protected void cancelRefreshTimer() {
-        mRefreshHandler.removeCallbacks(mRefreshRunnable);
+        mEngine.cancelRefresh();
     }
 
     ////////////////////////////////////////////////////////////////////////////////////////////////
 
     public String getKeywords() {
-        return mKeywords;
+        return mEngine.getKeywords();
     }
 
     public void setKeywords(String keywords) {
-        mKeywords = keywords;
+        mEngine.setKeywords(keywords);
     }
 
+    /*
+     * The location set by the app, or null if requests use LocationService's latest fix.
+     */
     public Location getLocation() {
         return mLocation;
     }
 
     public void setLocation(Location location) {
+        // Handed to the engine with the next request; see applyLocation().
         mLocation = location;
     }
 
     public String getAdUnitId() {
-        return mAdUnitId;
+        return mEngine.getAdUnitId();
     }
 
     public void setAdUnitId(String adUnitId) {
-        mAdUnitId = adUnitId;
+        mEngine.setAdUnitId(adUnitId);
     }
 
     public void setTimeout(int milliseconds) {
-        mTimeoutMilliseconds = milliseconds;
+        mEngine.setTimeout(milliseconds);
+    }
+    
+    public int getTimeout() {
+        return mEngine.getTimeout();
     }
 
     public int getAdWidth() {
@@ -841,8 +785,8 @@ public class AdView extends WebView {
         return mRedirectUrl;
     }
 
-    public HttpResponse getResponse() {
-        return mResponse;
+    public AdResponse getResponse() {
+        return mEngine.getResponse();
     }
 
     public String getResponseString() {
@@ -850,13 +794,23 @@ public class AdView extends WebView {
     }
     
     public void setAutorefreshEnabled(boolean enabled) {
-        mAutorefreshEnabled = enabled;
-        
-        if (!mAutorefreshEnabled) cancelRefreshTimer();
-        else scheduleRefreshTimerIfEnabled();
+        mEngine.setAutorefreshEnabled(enabled);
+        if (enabled) scheduleRefreshTimerIfEnabled();
+    }
+    
+    /*
+     * Number of failovers served from a speculatively fetched response.
+     */
+    public int getSpeculativeFailoverHitCount() {
+        return mEngine.getSpeculativeFailoverHitCount();
+    }
+    
+    protected boolean isLoading() {
+        return mEngine.isLoading();
     }
     
     public boolean getAutorefreshEnabled() {
-        return mAutorefreshEnabled;
+        return mEngine.getAutorefreshEnabled();
     }
+
 }
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import android.app.Activity;
+import android.content.Context;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.util.Log;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/*
+ * Opt-in pool of pre-created ad views. Creating the first WebView in a process is expensive, so 
+ * apps can call prewarm() early (e.g. in onCreate) to have ad views built while the UI thread is 
+ * idle; MoPubViews created afterwards in the same Activity take one from the pool instead of 
+ * constructing their own.
+ * 
+ * Pooled views hold a reference to their Activity, so apps should call clear() from the 
+ * Activity's onDestroy() and trim() from onLowMemory(). As a safety net, views are never pooled 
+ * for an Activity that is finishing or being recreated for a configuration change, and any left 
+ * over for one are destroyed the next time the pool is used.
+ */
+public class AdViewPool {
+    public static final int DEFAULT_MAX_POOL_SIZE = 2;
+
+    private static final LinkedList<AdView> sPool = new LinkedList<AdView>();
+    private static boolean sIsEnabled;
+    private static int sMaxPoolSize = DEFAULT_MAX_POOL_SIZE;
+    private static int sHitCount;
+    private static int sMissCount;
+
+    private AdViewPool() {}
+
+    /*
+     * Enables pooling and creates up to count ad views for the given Activity, one per idle pass 
+     * of the UI thread's message queue. Must be called on the UI thread.
+     */
+    public static void prewarm(final Activity activity, int count) {
+        sIsEnabled = true;
+        final int target = Math.min(count, sMaxPoolSize);
+
+        Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+            public boolean queueIdle() {
+                purge();
+                if (isGoingAway(activity) || countFor(activity) >= target) return false;
+
+                AdView adView = MoPubView.newAdView(activity, null);
+                sPool.add(adView);
+                Log.d("MoPub", "Pre-created ad view (" + sPool.size() + " pooled).");
+                return countFor(activity) < target;
+            }
+        });
+    }
+
+    /*
+     * Returns a pooled ad view created for the given context and binds it to view, or null if 
+     * pooling is disabled or no suitable view is available.
+     */
+    static AdView obtain(Context context, MoPubView view) {
+        if (!sIsEnabled) return null;
+        purge();
+
+        Iterator<AdView> iterator = sPool.iterator();
+        while (iterator.hasNext()) {
+            AdView adView = iterator.next();
+            if (adView.getContext() == context) {
+                iterator.remove();
+                adView.setMoPubView(view);
+                sHitCount++;
+                return adView;
+            }
+        }
+
+        sMissCount++;
+        return null;
+    }
+
+    /*
+     * Resets an ad view that its MoPubView no longer needs and keeps it for reuse. Returns false 
+     * (and leaves the view untouched) if it can't be pooled.
+     */
+    static boolean recycle(AdView adView) {
+        if (!sIsEnabled) return false;
+        purge();
+        if (sPool.size() >= sMaxPoolSize) return false;
+        
+        // A request still in flight would call back into the MoPubView that gave this view up.
+        if (adView.isLoading()) return false;
+
+        if (isGoingAway(adView.getContext())) return false;
+
+        adView.reset();
+        sPool.add(adView);
+        return true;
+    }
+
+    /*
+     * Destroys every pooled ad view. Call from onLowMemory().
+     */
+    public static void trim() {
+        for (AdView adView : sPool) adView.destroy();
+        sPool.clear();
+    }
+
+    /*
+     * Destroys the pooled ad views that belong to the given context. Call from the Activity's 
+     * onDestroy().
+     */
+    public static void clear(Context context) {
+        Iterator<AdView> iterator = sPool.iterator();
+        while (iterator.hasNext()) {
+            AdView adView = iterator.next();
+            if (adView.getContext() == context) {
+                iterator.remove();
+                adView.destroy();
+            }
+        }
+    }
+
+    /*
+     * Whether the context is an Activity that is finishing or being torn down for a configuration 
+     * change. Nothing can use ad views created for it, and pooling them would leak it.
+     */
+    private static boolean isGoingAway(Context context) {
+        if (!(context instanceof Activity)) return false;
+        Activity activity = (Activity) context;
+        return activity.isFinishing() || activity.getChangingConfigurations() != 0;
+    }
+
+    /*
+     * Destroys pooled ad views whose Activity is going away.
+     */
+    private static void purge() {
+        Iterator<AdView> iterator = sPool.iterator();
+        while (iterator.hasNext()) {
+            AdView adView = iterator.next();
+            if (isGoingAway(adView.getContext())) {
+                iterator.remove();
+                adView.destroy();
+            }
+        }
+    }
+
+    private static int countFor(Context context) {
+        int count = 0;
+        for (AdView adView : sPool) {
+            if (adView.getContext() == context) count++;
+        }
+        return count;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    public static void setEnabled(boolean enabled) {
+        sIsEnabled = enabled;
+        if (!enabled) trim();
+    }
+
+    public static boolean isEnabled() {
+        return sIsEnabled;
+    }
+
+    public static void setMaxPoolSize(int size) {
+        sMaxPoolSize = (size >= 0) ? size : 0;
+        while (sPool.size() > sMaxPoolSize) sPool.removeFirst().destroy();
+    }
+
+    public static int getMaxPoolSize() {
+        return sMaxPoolSize;
+    }
+
+    public static int getPooledCount() {
+        return sPool.size();
+    }
+
+    public static int getHitCount() {
+        return sHitCount;
+    }
+
+    public static int getMissCount() {
+        return sMissCount;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import android.util.Log;
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Maps ad types from the X-Adtype / X-Fulladtype headers to the native adapters that handle them, 
+ * for both banners and interstitials. 
+ * 
+ * Adapters can be registered at runtime with a Factory, which involves no reflection at all. The 
+ * built-in adapters from the extras folder are registered by class name instead, since they may 
+ * not be compiled into the app; each of those is resolved at most once (lazily, or ahead of time 
+ * by warmUpInBackground()) and its constructor cached, so picking an adapter for a waterfall step 
+ * is a map lookup plus a constructor call.
+ */
+public class AdapterRegistry {
+    public interface Factory<T> {
+        public T create();
+    }
+
+    // Placeholder for a type whose adapter class couldn't be loaded, so we only try once.
+    private static final Factory<Object> MISSING_FACTORY = new Factory<Object>() {
+        public Object create() {
+            return null;
+        }
+    };
+
+    private static final ConcurrentHashMap<String, Factory<?>> sBannerFactories = 
+            new ConcurrentHashMap<String, Factory<?>>();
+    private static final ConcurrentHashMap<String, Factory<?>> sInterstitialFactories = 
+            new ConcurrentHashMap<String, Factory<?>>();
+    private static final HashMap<String, String> sBannerClassNames = new HashMap<String, String>();
+    private static final HashMap<String, String> sInterstitialClassNames = 
+            new HashMap<String, String>();
+    private static final AtomicBoolean sIsWarmUpStarted = new AtomicBoolean();
+
+    static {
+        sBannerClassNames.put("admob_native", "com.mopub.mobileads.GoogleAdMobAdapter");
+        sBannerClassNames.put("millennial_native", "com.mopub.mobileads.MillennialAdapter");
+        sInterstitialClassNames.put("admob_full", 
+                "com.mopub.mobileads.GoogleAdMobInterstitialAdapter");
+        sInterstitialClassNames.put("millennial_full", 
+                "com.mopub.mobileads.MillennialInterstitialAdapter");
+    }
+
+    /*
+     * Registers (or replaces) the banner adapter used for an X-Adtype value.
+     */
+    public static void registerAdapter(String type, Factory<? extends BaseAdapter> factory) {
+        sBannerFactories.put(type, factory);
+    }
+
+    /*
+     * Registers (or replaces) the interstitial adapter used for an X-Fulladtype value.
+     */
+    public static void registerInterstitialAdapter(String type, 
+            Factory<? extends BaseInterstitialAdapter> factory) {
+        sInterstitialFactories.put(type, factory);
+    }
+
+    /*
+     * Registers a banner adapter by class name. The class is only loaded when first needed.
+     */
+    public static void registerAdapterClass(String type, String className) {
+        synchronized (sBannerClassNames) {
+            sBannerClassNames.put(type, className);
+        }
+        sBannerFactories.remove(type);
+    }
+
+    public static void registerInterstitialAdapterClass(String type, String className) {
+        synchronized (sInterstitialClassNames) {
+            sInterstitialClassNames.put(type, className);
+        }
+        sInterstitialFactories.remove(type);
+    }
+
+    static BaseAdapter createAdapter(String type) {
+        Object adapter = create(type, sBannerFactories, sBannerClassNames, BaseAdapter.class);
+        if (adapter == null) return null;
+        if (!(adapter instanceof BaseAdapter)) {
+            Log.d("MoPub", "Couldn't create native adapter for type: " + type);
+            return null;
+        }
+        return (BaseAdapter) adapter;
+    }
+
+    static BaseInterstitialAdapter createInterstitialAdapter(String type) {
+        Object adapter = create(type, sInterstitialFactories, sInterstitialClassNames, 
+                BaseInterstitialAdapter.class);
+        if (adapter == null) return null;
+        if (!(adapter instanceof BaseInterstitialAdapter)) {
+            Log.d("MoPub", "Couldn't create native interstitial adapter for type: " + type);
+            return null;
+        }
+        return (BaseInterstitialAdapter) adapter;
+    }
+
+    private static Object create(String type, ConcurrentHashMap<String, Factory<?>> factories, 
+            HashMap<String, String> classNames, Class<?> baseClass) {
+        if (type == null) return null;
+
+        Factory<?> factory = factories.get(type);
+        if (factory == null) {
+            factory = resolve(type, factories, classNames, baseClass, true);
+            if (factory == MISSING_FACTORY) return null;
+        } else if (factory == MISSING_FACTORY) {
+            Log.d("MoPub", "No adapter available for ad type: " + type + ". Make sure the " 
+                    + "project includes the adapter library for it from the extras folder.");
+            return null;
+        }
+
+        try {
+            return factory.create();
+        } catch (RuntimeException e) {
+            Log.d("MoPub", "Couldn't create native adapter for type: " + type);
+            return null;
+        }
+    }
+
+    /*
+     * Loads the class registered for a type and caches a factory for it.
+     */
+    private static Factory<?> resolve(String type, ConcurrentHashMap<String, Factory<?>> factories, 
+            HashMap<String, String> classNames, Class<?> baseClass, boolean log) {
+        String className;
+        synchronized (classNames) {
+            className = classNames.get(type);
+        }
+
+        Factory<?> factory;
+        if (className == null) {
+            if (log) {
+                Log.d("MoPub", "Couldn't find a handler for this ad type: " + type + "."
+                        + " MoPub for Android does not support it at this time.");
+            }
+            // Unknown types aren't cached, since the server can send arbitrary values.
+            return MISSING_FACTORY;
+        }
+
+        try {
+            Class<?> adapterClass = Class.forName(className);
+            if (!baseClass.isAssignableFrom(adapterClass)) {
+                throw new ClassCastException(className + " is not a " + baseClass.getName());
+            }
+            factory = new ReflectiveFactory(adapterClass.getConstructor());
+        } catch (ClassNotFoundException e) {
+            if (log) {
+                Log.d("MoPub", "Couldn't find " + className + " class."
+                        + " Make sure the project includes the adapter library for " + className
+                        + " from the extras folder");
+            }
+            factory = MISSING_FACTORY;
+        } catch (Exception e) {
+            if (log) Log.d("MoPub", "Couldn't create native adapter for type: " + type);
+            factory = MISSING_FACTORY;
+        }
+
+        Factory<?> existing = factories.putIfAbsent(type, factory);
+        return (existing != null) ? existing : factory;
+    }
+
+    private static class ReflectiveFactory implements Factory<Object> {
+        private final Constructor<?> mConstructor;
+
+        ReflectiveFactory(Constructor<?> constructor) {
+            mConstructor = constructor;
+        }
+
+        public Object create() {
+            try {
+                return mConstructor.newInstance();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /*
+     * Resolves every adapter registered by class name on a background thread, so that the first 
+     * waterfall step to need one doesn't pay for class loading. Only runs once per process.
+     */
+    public static void warmUpInBackground() {
+        if (!sIsWarmUpStarted.compareAndSet(false, true)) return;
+
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                warmUp(sBannerFactories, sBannerClassNames, BaseAdapter.class);
+                warmUp(sInterstitialFactories, sInterstitialClassNames, 
+                        BaseInterstitialAdapter.class);
+            }
+        }, "MoPubAdapterWarmUp");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private static void warmUp(ConcurrentHashMap<String, Factory<?>> factories, 
+            HashMap<String, String> classNames, Class<?> baseClass) {
+        ArrayList<String> types;
+        synchronized (classNames) {
+            types = new ArrayList<String>(classNames.keySet());
+        }
+        for (String type : types) {
+            if (factories.containsKey(type)) continue;
+            resolve(type, factories, classNames, baseClass, false);
+        }
+    }
+}
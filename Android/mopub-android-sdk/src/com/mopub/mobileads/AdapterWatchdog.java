@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import android.os.Handler;
+
+import java.util.HashMap;
+
+/*
+ * Load timeout for a native adapter, shared by BaseAdapter and BaseInterstitialAdapter. Runs 
+ * the given callback on the main thread if the adapter hasn't reported back in time. Must be 
+ * scheduled from the main thread.
+ */
+class AdapterWatchdog {
+    static final long DEFAULT_TIMEOUT_MILLISECONDS = 10000;
+    
+    private final Runnable mTimeoutRunnable;
+    private Handler mTimeoutHandler;
+    
+    AdapterWatchdog(Runnable onTimeout) {
+        mTimeoutRunnable = onTimeout;
+    }
+    
+    /*
+     * Starts the timeout, replacing any pending one. A timeout of zero or less disables the 
+     * watchdog.
+     */
+    void schedule(long milliseconds) {
+        cancel();
+        if (milliseconds <= 0) return;
+        if (mTimeoutHandler == null) mTimeoutHandler = new Handler();
+        mTimeoutHandler.postDelayed(mTimeoutRunnable, milliseconds);
+    }
+    
+    void cancel() {
+        if (mTimeoutHandler != null) mTimeoutHandler.removeCallbacks(mTimeoutRunnable);
+    }
+    
+    /*
+     * Default timeouts and timeout counts per adapter type. Banner and interstitial adapters each 
+     * keep their own.
+     */
+    static class TypeTimeouts {
+        private final HashMap<String, Long> mDefaultTimeouts = new HashMap<String, Long>();
+        private final HashMap<String, Integer> mTimeoutCounts = new HashMap<String, Integer>();
+        
+        synchronized void setDefaultTimeout(String type, long milliseconds) {
+            mDefaultTimeouts.put(type, milliseconds);
+        }
+        
+        synchronized long getDefaultTimeout(String type) {
+            Long timeout = mDefaultTimeouts.get(type);
+            return (timeout != null) ? timeout : DEFAULT_TIMEOUT_MILLISECONDS;
+        }
+        
+        synchronized int getTimeoutCount(String type) {
+            Integer count = mTimeoutCounts.get(type);
+            return (count != null) ? count : 0;
+        }
+        
+        synchronized void recordTimeout(String type) {
+            mTimeoutCounts.put(type, getTimeoutCount(type) + 1);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * Derives ad request timeouts from the latency actually observed on each kind of connection, 
+ * in the way TCP derives its retransmission timeout (RFC 6298): a smoothed round-trip time and a 
+ * smoothed mean deviation are kept per connection type ("wifi", "mobile/EDGE", ...), and the 
+ * timeout is the smoothed time plus four deviations, clamped to sane bounds. A fast Wi-Fi network 
+ * thus gets a short timeout, while a congested EDGE link gets a long one instead of hanging 
+ * forever or failing requests that would have succeeded.
+ * 
+ * A sample is the time from sending a request to receiving the response headers. After a 
+ * timeout, the connection type's timeouts are doubled (up to MAX_BACKOFF_MULTIPLIER times) and no 
+ * sample is taken until a request succeeds again.
+ * 
+ * All methods are thread-safe.
+ */
+public class AdaptiveTimeouts {
+    public static final int DEFAULT_MIN_CONNECT_TIMEOUT_MILLISECONDS = 1000;
+    public static final int DEFAULT_MAX_CONNECT_TIMEOUT_MILLISECONDS = 15000;
+    public static final int DEFAULT_MIN_READ_TIMEOUT_MILLISECONDS = 2000;
+    public static final int DEFAULT_MAX_READ_TIMEOUT_MILLISECONDS = 30000;
+    
+    // Used until the first sample arrives for a connection type.
+    public static final int INITIAL_TIMEOUT_MILLISECONDS = 10000;
+    public static final int MAX_BACKOFF_MULTIPLIER = 4;
+    
+    private static final HashMap<String, Estimator> sEstimators = new HashMap<String, Estimator>();
+    private static int sMinConnectTimeoutMilliseconds = DEFAULT_MIN_CONNECT_TIMEOUT_MILLISECONDS;
+    private static int sMaxConnectTimeoutMilliseconds = DEFAULT_MAX_CONNECT_TIMEOUT_MILLISECONDS;
+    private static int sMinReadTimeoutMilliseconds = DEFAULT_MIN_READ_TIMEOUT_MILLISECONDS;
+    private static int sMaxReadTimeoutMilliseconds = DEFAULT_MAX_READ_TIMEOUT_MILLISECONDS;
+    
+    private AdaptiveTimeouts() {}
+    
+    /*
+     * The timeouts to apply to one request.
+     */
+    public static class Timeouts {
+        public final String mConnectionType;
+        public final int mConnectTimeoutMilliseconds;
+        public final int mReadTimeoutMilliseconds;
+        
+        Timeouts(String connectionType, int connectTimeoutMilliseconds, 
+                int readTimeoutMilliseconds) {
+            mConnectionType = connectionType;
+            mConnectTimeoutMilliseconds = connectTimeoutMilliseconds;
+            mReadTimeoutMilliseconds = readTimeoutMilliseconds;
+        }
+    }
+    
+    /*
+     * A snapshot of what is known about one connection type.
+     */
+    public static class Stats {
+        private final String mConnectionType;
+        private final double mSmoothedRtt;
+        private final double mRttDeviation;
+        private final long mSampleCount;
+        private final long mRequestCount;
+        private final long mConnectTimeoutCount;
+        private final long mReadTimeoutCount;
+        private final int mConnectTimeoutMilliseconds;
+        private final int mReadTimeoutMilliseconds;
+        
+        private Stats(String connectionType, Estimator estimator, Timeouts timeouts) {
+            mConnectionType = connectionType;
+            mSmoothedRtt = estimator.mSmoothedRtt;
+            mRttDeviation = estimator.mRttDeviation;
+            mSampleCount = estimator.mSampleCount;
+            mRequestCount = estimator.mRequestCount;
+            mConnectTimeoutCount = estimator.mConnectTimeoutCount;
+            mReadTimeoutCount = estimator.mReadTimeoutCount;
+            mConnectTimeoutMilliseconds = timeouts.mConnectTimeoutMilliseconds;
+            mReadTimeoutMilliseconds = timeouts.mReadTimeoutMilliseconds;
+        }
+        
+        public String getConnectionType() {
+            return mConnectionType;
+        }
+        
+        /*
+         * The smoothed round-trip time in milliseconds, or 0 if there are no samples yet.
+         */
+        public double getSmoothedRtt() {
+            return mSmoothedRtt;
+        }
+        
+        public double getRttDeviation() {
+            return mRttDeviation;
+        }
+        
+        public long getSampleCount() {
+            return mSampleCount;
+        }
+        
+        public long getRequestCount() {
+            return mRequestCount;
+        }
+        
+        public long getConnectTimeoutCount() {
+            return mConnectTimeoutCount;
+        }
+        
+        public long getReadTimeoutCount() {
+            return mReadTimeoutCount;
+        }
+        
+        /*
+         * The fraction of requests on this connection type that timed out.
+         */
+        public double getTimeoutRate() {
+            if (mRequestCount == 0) return 0;
+            return (double) (mConnectTimeoutCount + mReadTimeoutCount) / mRequestCount;
+        }
+        
+        public int getConnectTimeout() {
+            return mConnectTimeoutMilliseconds;
+        }
+        
+        public int getReadTimeout() {
+            return mReadTimeoutMilliseconds;
+        }
+        
+        @Override
+        public String toString() {
+            return mConnectionType + ": srtt=" + Math.round(mSmoothedRtt) + " ms, dev=" + 
+                    Math.round(mRttDeviation) + " ms, timeouts=" + mConnectTimeoutMilliseconds + 
+                    "/" + mReadTimeoutMilliseconds + " ms, " + mRequestCount + " requests, " + 
+                    (mConnectTimeoutCount + mReadTimeoutCount) + " timed out";
+        }
+    }
+    
+    private static class Estimator {
+        private double mSmoothedRtt;
+        private double mRttDeviation;
+        private long mSampleCount;
+        private long mRequestCount;
+        private long mConnectTimeoutCount;
+        private long mReadTimeoutCount;
+        private int mBackoffMultiplier = 1;
+        
+        private void addSample(long rttMilliseconds) {
+            if (mSampleCount == 0) {
+                mSmoothedRtt = rttMilliseconds;
+                mRttDeviation = rttMilliseconds / 2.0;
+            } else {
+                // Gains of 1/8 and 1/4, as in RFC 6298.
+                mRttDeviation += (Math.abs(mSmoothedRtt - rttMilliseconds) - mRttDeviation) / 4;
+                mSmoothedRtt += (rttMilliseconds - mSmoothedRtt) / 8;
+            }
+            mSampleCount++;
+            mBackoffMultiplier = 1;
+        }
+        
+        private long getBaseTimeout() {
+            if (mSampleCount == 0) return INITIAL_TIMEOUT_MILLISECONDS;
+            return Math.round(mSmoothedRtt + 4 * mRttDeviation);
+        }
+    }
+    
+    /*
+     * Returns the timeouts to use for the next request on the given connection type.
+     */
+    public static synchronized Timeouts getTimeouts(String connectionType) {
+        return computeTimeouts(connectionType, getEstimator(connectionType));
+    }
+    
+    private static Timeouts computeTimeouts(String connectionType, Estimator estimator) {
+        long timeout = estimator.getBaseTimeout() * estimator.mBackoffMultiplier;
+        return new Timeouts(connectionType, 
+                clamp(timeout, sMinConnectTimeoutMilliseconds, sMaxConnectTimeoutMilliseconds), 
+                clamp(timeout, sMinReadTimeoutMilliseconds, sMaxReadTimeoutMilliseconds));
+    }
+    
+    private static int clamp(long value, int min, int max) {
+        if (value < min) return min;
+        if (value > max) return max;
+        return (int) value;
+    }
+    
+    private static Estimator getEstimator(String connectionType) {
+        Estimator estimator = sEstimators.get(connectionType);
+        if (estimator == null) {
+            estimator = new Estimator();
+            sEstimators.put(connectionType, estimator);
+        }
+        return estimator;
+    }
+    
+    /*
+     * Records a request that received its response headers after the given number of 
+     * milliseconds.
+     */
+    public static synchronized void recordResponse(String connectionType, long rttMilliseconds) {
+        Estimator estimator = getEstimator(connectionType);
+        estimator.mRequestCount++;
+        if (rttMilliseconds >= 0) estimator.addSample(rttMilliseconds);
+    }
+    
+    /*
+     * Records a request that timed out, either while connecting or while waiting for data.
+     */
+    public static synchronized void recordTimeout(String connectionType, boolean whileConnecting) {
+        Estimator estimator = getEstimator(connectionType);
+        estimator.mRequestCount++;
+        if (whileConnecting) estimator.mConnectTimeoutCount++;
+        else estimator.mReadTimeoutCount++;
+        
+        if (estimator.mBackoffMultiplier < MAX_BACKOFF_MULTIPLIER) {
+            estimator.mBackoffMultiplier *= 2;
+        }
+    }
+    
+    /*
+     * Records a request whose response timed out while its body was being read. The request was 
+     * already counted when its headers arrived.
+     */
+    public static synchronized void recordBodyTimeout(String connectionType) {
+        Estimator estimator = getEstimator(connectionType);
+        estimator.mReadTimeoutCount++;
+        if (estimator.mBackoffMultiplier < MAX_BACKOFF_MULTIPLIER) {
+            estimator.mBackoffMultiplier *= 2;
+        }
+    }
+    
+    /*
+     * Forgets every estimate and counter.
+     */
+    public static synchronized void reset() {
+        sEstimators.clear();
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    
+    public static synchronized Stats getStats(String connectionType) {
+        Estimator estimator = sEstimators.get(connectionType);
+        if (estimator == null) return null;
+        return new Stats(connectionType, estimator, computeTimeouts(connectionType, estimator));
+    }
+    
+    /*
+     * Returns a snapshot of every connection type seen so far.
+     */
+    public static synchronized List<Stats> getAllStats() {
+        ArrayList<Stats> stats = new ArrayList<Stats>(sEstimators.size());
+        for (String connectionType : sEstimators.keySet()) {
+            Estimator estimator = sEstimators.get(connectionType);
+            stats.add(new Stats(connectionType, estimator, 
+                    computeTimeouts(connectionType, estimator)));
+        }
+        return stats;
+    }
+    
+    public static synchronized void setConnectTimeoutBounds(int minMilliseconds, 
+            int maxMilliseconds) {
+        sMinConnectTimeoutMilliseconds = Math.max(minMilliseconds, 1);
+        sMaxConnectTimeoutMilliseconds = Math.max(maxMilliseconds, sMinConnectTimeoutMilliseconds);
+    }
+    
+    public static synchronized int getMinConnectTimeout() {
+        return sMinConnectTimeoutMilliseconds;
+    }
+    
+    public static synchronized int getMaxConnectTimeout() {
+        return sMaxConnectTimeoutMilliseconds;
+    }
+    
+    public static synchronized void setReadTimeoutBounds(int minMilliseconds, int maxMilliseconds) {
+        sMinReadTimeoutMilliseconds = Math.max(minMilliseconds, 1);
+        sMaxReadTimeoutMilliseconds = Math.max(maxMilliseconds, sMinReadTimeoutMilliseconds);
+    }
+    
+    public static synchronized int getMinReadTimeout() {
+        return sMinReadTimeoutMilliseconds;
+    }
+    
+    public static synchronized int getMaxReadTimeout() {
+        return sMaxReadTimeoutMilliseconds;
+    }
+}
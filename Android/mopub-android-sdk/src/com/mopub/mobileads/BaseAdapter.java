@@ -34,31 +34,40 @@ package com.mopub.mobileads;
 
 import android.util.Log;
 
-import java.lang.reflect.Constructor;
-import java.util.HashMap;
-
 public abstract class BaseAdapter {
     
     protected boolean mInvalidated;
     protected MoPubView mMoPubView;
     protected String mJsonParams;
+    protected NativeAdParams mParams;
+    protected String mAdapterType;
     
-    public abstract void loadAd();
+    public static final long DEFAULT_TIMEOUT_MILLISECONDS = 
+            AdapterWatchdog.DEFAULT_TIMEOUT_MILLISECONDS;
+    private static final AdapterWatchdog.TypeTimeouts sTypeTimeouts = 
+            new AdapterWatchdog.TypeTimeouts();
     
-    private static final HashMap<String, String> sAdapterMap;
-    static {
-        sAdapterMap = new HashMap<String, String>();
-        sAdapterMap.put("admob_native", "com.mopub.mobileads.GoogleAdMobAdapter");
-        sAdapterMap.put("millennial_native", "com.mopub.mobileads.MillennialAdapter");
-    }
+    private final AdapterWatchdog mWatchdog = new AdapterWatchdog(new Runnable() {
+        public void run() {
+            onTimeout();
+        }
+    });
     
-    public void init(MoPubView view, String jsonParams) {
+    public abstract void loadAd();
+    
+    /*
+     * params were parsed from X-Nativeparams on the background thread; mJsonParams still holds 
+     * the raw string for adapters that read it themselves.
+     */
+    public void init(MoPubView view, NativeAdParams params) {
         mMoPubView = view;
-        mJsonParams = jsonParams;
+        mParams = params;
+        mJsonParams = params.getRawParams();
         mInvalidated = false;
     }
     
     public void invalidate() {
+        cancelTimeout();
         mMoPubView = null;
         mInvalidated = true;
     }
@@ -67,41 +76,51 @@ public abstract class BaseAdapter {
         return mInvalidated;
     }
     
-    public static BaseAdapter getAdapterForType(String type) {
-        if (type == null) return null;
+    /*
+     * Starts the load timeout. If the adapter hasn't reported back by the time it expires, it is 
+     * invalidated (so any late callbacks are ignored) and the next ad in the waterfall is tried. 
+     * A timeout of zero or less disables the watchdog.
+     */
+    void scheduleTimeout(long milliseconds) {
+        mWatchdog.schedule(milliseconds);
+    }
+    
+    void cancelTimeout() {
+        mWatchdog.cancel();
+    }
+    
+    private void onTimeout() {
+        if (isInvalidated()) return;
         
-        Class<?> adapterClass = classForAdapterType(type);
-        if (adapterClass == null) return null;
+        Log.d("MoPub", "Native adapter for type " + mAdapterType + " timed out. Trying another");
+        sTypeTimeouts.recordTimeout(mAdapterType);
+        MoPubView view = mMoPubView;
+        invalidate();
+        if (view != null) view.loadFailUrl();
+    }
     
-        try {
-            Constructor<?> constructor = adapterClass.getConstructor();
-            BaseAdapter nativeAdapter = (BaseAdapter) constructor.newInstance();
-            return nativeAdapter;
-        } catch (Exception e) {
-            Log.d("MoPub", "Couldn't create native adapter for type: " + type);
-            return null;
-        }
+    /*
+     * Sets the load timeout used for all adapters of the given type, unless a timeout for that 
+     * type has been set on the MoPubView itself.
+     */
+    public static void setDefaultTimeout(String type, long milliseconds) {
+        sTypeTimeouts.setDefaultTimeout(type, milliseconds);
     }
     
-    private static String classStringForAdapterType(String type) {
-        return sAdapterMap.get(type);
+    public static long getDefaultTimeout(String type) {
+        return sTypeTimeouts.getDefaultTimeout(type);
     }
     
-    private static Class<?> classForAdapterType(String type) {
-        String className = classStringForAdapterType(type);
-        if (className == null) {
-            Log.d("MoPub", "Couldn't find a handler for this ad type: " + type + "."
-                    + " MoPub for Android does not support it at this time.");
-            return null;
-        }
+    /*
+     * Number of times adapters of the given type have timed out in this process.
+     */
+    public static int getTimeoutCount(String type) {
+        return sTypeTimeouts.getTimeoutCount(type);
+    }
     
-        try {
-            return (Class<?>) Class.forName(className);
-        } catch (ClassNotFoundException e) {
-            Log.d("MoPub", "Couldn't find " + className + " class."
-                    + " Make sure the project includes the adapter library for " + className
-                    + " from the extras folder");
-            return null;
-        }
+    public static BaseAdapter getAdapterForType(String type) {
+        BaseAdapter nativeAdapter = AdapterRegistry.createAdapter(type);
+        if (nativeAdapter != null) nativeAdapter.mAdapterType = type;
+        return nativeAdapter;
     }
 }
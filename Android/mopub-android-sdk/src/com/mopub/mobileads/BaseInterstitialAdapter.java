@@ -1,8 +1,5 @@
 package com.mopub.mobileads;
 
-import java.lang.reflect.Constructor;
-import java.util.HashMap;
-
 import android.util.Log;
 
 public abstract class BaseInterstitialAdapter {
@@ -10,24 +7,44 @@ public abstract class BaseInterstitialAdapter {
     protected boolean mInvalidated;
     protected MoPubInterstitial mInterstitial;
     protected String mJsonParams;
+    protected NativeAdParams mParams;
+    protected String mAdapterType;
     
-    private static final HashMap<String, String> sInterstitialAdapterMap;
-    static {
-        sInterstitialAdapterMap = new HashMap<String, String>();
-        sInterstitialAdapterMap.put("admob_full", "com.mopub.mobileads.GoogleAdMobInterstitialAdapter");
-        sInterstitialAdapterMap.put("millennial_full", "com.mopub.mobileads.MillennialInterstitialAdapter");
-    }
+    public static final long DEFAULT_TIMEOUT_MILLISECONDS = 
+            AdapterWatchdog.DEFAULT_TIMEOUT_MILLISECONDS;
+    private static final AdapterWatchdog.TypeTimeouts sTypeTimeouts = 
+            new AdapterWatchdog.TypeTimeouts();
+    
+    private final AdapterWatchdog mWatchdog = new AdapterWatchdog(new Runnable() {
+        public void run() {
+            onTimeout();
+        }
+    });
     
     public abstract void loadInterstitial();
     public abstract void showInterstitial();
     
-    public void init(MoPubInterstitial interstitial, String jsonParams) {
+    /*
+     * Whether loadInterstitial() can complete without the ad being displayed, so that the ad can 
+     * be prefetched and shown later via showInterstitial().
+     */
+    public boolean isPrefetchSupported() {
+        return false;
+    }
+    
+    /*
+     * params were parsed from X-Nativeparams on the background thread; mJsonParams still holds 
+     * the raw string for adapters that read it themselves.
+     */
+    public void init(MoPubInterstitial interstitial, NativeAdParams params) {
         mInterstitial = interstitial;
-        mJsonParams = jsonParams;
+        mParams = params;
+        mJsonParams = params.getRawParams();
         mInvalidated = false;
     }
     
     public void invalidate() {
+        cancelTimeout();
         mInterstitial = null;
         mInvalidated = true;
     }
@@ -36,42 +53,52 @@ public abstract class BaseInterstitialAdapter {
         return mInvalidated;
     }
     
-    public static BaseInterstitialAdapter getAdapterForType(String type) {
-        if (type == null) return null;
-        
-        Class<?> adapterClass = classForAdapterType(type);
-        if (adapterClass == null) return null;
-        
-        try {
-            Constructor<?> constructor = adapterClass.getConstructor();
-            BaseInterstitialAdapter nativeAdapter = 
-                    (BaseInterstitialAdapter) constructor.newInstance();
-            return nativeAdapter;
-        } catch (Exception e) {
-            Log.d("MoPub", "Couldn't create native interstitial adapter for type: " + type);
-            return null;
-        }
+    /*
+     * Starts the load timeout. If the adapter hasn't reported back by the time it expires, it is 
+     * invalidated (so any late callbacks are ignored) and the next ad in the waterfall is tried. 
+     * A timeout of zero or less disables the watchdog.
+     */
+    void scheduleTimeout(long milliseconds) {
+        mWatchdog.schedule(milliseconds);
     }
-        
-    private static String classStringForAdapterType(String type) {
-        return sInterstitialAdapterMap.get(type);
+    
+    void cancelTimeout() {
+        mWatchdog.cancel();
     }
+    
+    private void onTimeout() {
+        if (isInvalidated()) return;
         
-    private static Class<?> classForAdapterType(String type) {
-        String className = classStringForAdapterType(type);
-        if (className == null) {
-            Log.d("MoPub", "Couldn't find a handler for this ad type: " + type + "."
-            + " MoPub for Android does not support it at this time.");
-            return null;
-        }
-        
-        try {
-            return (Class<?>) Class.forName(className);
-        } catch (ClassNotFoundException e) {
-            Log.d("MoPub", "Couldn't find " + className + "class."
-            + " Make sure the project includes the adapter library for " + className
-            + " from the extras folder");
-            return null;
-        }
+        Log.d("MoPub", "Native interstitial adapter for type " + mAdapterType + 
+                " timed out. Trying another");
+        sTypeTimeouts.recordTimeout(mAdapterType);
+        MoPubInterstitial interstitial = mInterstitial;
+        invalidate();
+        if (interstitial != null) interstitial.interstitialFailed();
+    }
+    
+    /*
+     * Sets the load timeout used for all adapters of the given type, unless a timeout for that 
+     * type has been set on the MoPubInterstitial itself.
+     */
+    public static void setDefaultTimeout(String type, long milliseconds) {
+        sTypeTimeouts.setDefaultTimeout(type, milliseconds);
+    }
+    
+    public static long getDefaultTimeout(String type) {
+        return sTypeTimeouts.getDefaultTimeout(type);
+    }
+    
+    /*
+     * Number of times adapters of the given type have timed out in this process.
+     */
+    public static int getTimeoutCount(String type) {
+        return sTypeTimeouts.getTimeoutCount(type);
+    }
+    
+    public static BaseInterstitialAdapter getAdapterForType(String type) {
+        BaseInterstitialAdapter nativeAdapter = AdapterRegistry.createInterstitialAdapter(type);
+        if (nativeAdapter != null) nativeAdapter.mAdapterType = type;
+        return nativeAdapter;
     }
 }
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.mopub.mobileads.AdRequestEngine.BatchedLoad;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Loads ads for several MoPubViews at once, e.g. all the banners on one screen.
+ * 
+ * With the batch endpoint enabled, a single request carries the device parameters once plus every 
+ * ad unit ID, and the multipart response is split back into per-unit responses (see 
+ * BatchResponseParser). Until the server supports it, the default is a local stand-in that fans 
+ * the batch out into the usual per-unit requests, issued in parallel. Either way, requests go 
+ * through each ad view's AdRequestEngine (timeouts, adaptive timeouts and load metrics apply), 
+ * and each unit's response goes through its normal parsing and rendering path, including 
+ * failover.
+ */
+public class BatchAdLoader {
+    public static final String BATCH_AD_HANDLER = "/m/ads";
+    private static final int FAN_OUT_THREADS = 4;
+
+    private static ExecutorService sExecutor;
+
+    private final ArrayList<MoPubView> mViews = new ArrayList<MoPubView>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private boolean mIsBatchEndpointEnabled;
+
+    public BatchAdLoader() {
+    }
+
+    public BatchAdLoader(MoPubView... views) {
+        for (MoPubView view : views) add(view);
+    }
+
+    public void add(MoPubView view) {
+        if (!mViews.contains(view)) mViews.add(view);
+    }
+
+    public void remove(MoPubView view) {
+        mViews.remove(view);
+    }
+
+    /*
+     * Sends one request for every view in the batch that isn't already loading. Must be called 
+     * on the main thread.
+     */
+    public void loadAds() {
+        ArrayList<AdView> adViews = new ArrayList<AdView>(mViews.size());
+        ArrayList<BatchedLoad> loads = new ArrayList<BatchedLoad>(mViews.size());
+        for (int i = 0; i < mViews.size(); i++) {
+            AdView adView = mViews.get(i).mAdView;
+            if (adView == null) continue;
+            BatchedLoad load = adView.beginBatchedLoad();
+            if (load == null) continue;
+            adViews.add(adView);
+            loads.add(load);
+        }
+        if (loads.isEmpty()) return;
+
+        if (!mIsBatchEndpointEnabled) {
+            Log.d("MoPub", "Loading " + loads.size() + " ads in parallel.");
+            for (int i = 0; i < loads.size(); i++) loadSingle(loads.get(i));
+            return;
+        }
+
+        // A batch request carries one location for all of its ad units, so views that were given 
+        // a different location than the first one are loaded on their own.
+        String location = adViews.get(0).getFormattedLocation();
+        ArrayList<AdView> batchViews = new ArrayList<AdView>(adViews.size());
+        final ArrayList<BatchedLoad> batchLoads = new ArrayList<BatchedLoad>(loads.size());
+        for (int i = 0; i < loads.size(); i++) {
+            String viewLocation = adViews.get(i).getFormattedLocation();
+            if ((location != null) ? location.equals(viewLocation) : viewLocation == null) {
+                batchViews.add(adViews.get(i));
+                batchLoads.add(loads.get(i));
+            } else {
+                loadSingle(loads.get(i));
+            }
+        }
+
+        final String batchUrl = generateBatchUrl(batchViews, location);
+        Log.d("MoPub", "Loading " + batchLoads.size() + " ads in one batch: " + batchUrl);
+        getExecutor().execute(new Runnable() {
+            public void run() {
+                // Every load gets its result posted, even if the whole batch failed.
+                List<Runnable> finishes = AdRequestEngine.loadBatch(batchUrl, batchLoads);
+                for (int i = 0; i < finishes.size(); i++) mHandler.post(finishes.get(i));
+            }
+        });
+    }
+
+    private String generateBatchUrl(List<AdView> adViews, String location) {
+        DeviceContext deviceContext = DeviceContext.getInstance(adViews.get(0).getContext());
+        ArrayList<String> adUnitIds = new ArrayList<String>(adViews.size());
+        ArrayList<String> keywords = new ArrayList<String>(adViews.size());
+        for (int i = 0; i < adViews.size(); i++) {
+            AdView adView = adViews.get(i);
+            adUnitIds.add(adView.getAdUnitId());
+            keywords.add(adView.getKeywords());
+        }
+        return AdUrlGenerator.generateBatch(MoPubView.HOST, BATCH_AD_HANDLER, adUnitIds, keywords, 
+                deviceContext.getUdidDigest(), location, deviceContext.getTimeZoneOffset(), 
+                deviceContext.getOrientation(), deviceContext.getDensity());
+    }
+
+    /*
+     * Requests one unit of the batch on a worker thread, through its engine's usual request path.
+     */
+    private void loadSingle(final BatchedLoad load) {
+        getExecutor().execute(new Runnable() {
+            public void run() {
+                mHandler.post(load.load());
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newFixedThreadPool(FAN_OUT_THREADS, new ThreadFactory() {
+                private int mCount;
+
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(new Runnable() {
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "MoPubBatch-" + (++mCount));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /*
+     * Sends batches to the multi-unit endpoint as a single request instead of fanning them out. 
+     * Only enable this against a server that supports BATCH_AD_HANDLER.
+     */
+    public void setBatchEndpointEnabled(boolean enabled) {
+        mIsBatchEndpointEnabled = enabled;
+    }
+
+    public boolean getBatchEndpointEnabled() {
+        return mIsBatchEndpointEnabled;
+    }
+
+    public int getViewCount() {
+        return mViews.size();
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.NameValuePair;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Splits a batched ad response into one HttpResponse per ad unit, so each can go through the 
+ * normal single-ad parsing path.
+ * 
+ * A batch response is a multipart/mixed body (RFC 2046). Each part is exactly what the single-ad 
+ * handler would have returned for one ad unit: its X-* headers, plus an X-Adunit header naming 
+ * the ad unit, then the ad's HTML (if any) as the part body. Parts are in the same order as the 
+ * ad units in the request; a part may carry an X-Status header if its status isn't 200.
+ */
+public class BatchResponseParser {
+    public static final String AD_UNIT_HEADER = "X-Adunit";
+    public static final String STATUS_HEADER = "X-Status";
+
+    public static class Part {
+        public final String mAdUnitId;
+        public final HttpResponse mResponse;
+
+        Part(String adUnitId, HttpResponse response) {
+            mAdUnitId = adUnitId;
+            mResponse = response;
+        }
+    }
+
+    private BatchResponseParser() {}
+
+    /*
+     * Reads and splits the whole batch. maxBytes bounds the size of the entire body.
+     */
+    public static List<Part> parse(HttpResponse response, int maxBytes) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) throw new IOException("Batch response has no body.");
+
+        String boundary = getBoundary(entity);
+        if (boundary == null) throw new IOException("Batch response is not multipart.");
+
+        return parse(readBody(entity, maxBytes), boundary);
+    }
+
+    private static byte[] readBody(HttpEntity entity, int maxBytes) throws IOException {
+        long contentLength = entity.getContentLength();
+        if (contentLength > maxBytes) throw new ResponseBodyReader.BodyTooLargeException(maxBytes);
+
+        ByteArrayOutputStream out = 
+                new ByteArrayOutputStream((contentLength > 0) ? (int) contentLength : 8192);
+        InputStream in = entity.getContent();
+        try {
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                if (out.size() + count > maxBytes) {
+                    throw new ResponseBodyReader.BodyTooLargeException(maxBytes);
+                }
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    static List<Part> parse(byte[] body, String boundary) throws IOException {
+        byte[] delimiter = ascii("--" + boundary);
+        List<Part> parts = new ArrayList<Part>();
+
+        int position = indexOf(body, delimiter, 0);
+        if (position < 0) throw new IOException("Batch response has no parts.");
+
+        while (true) {
+            position += delimiter.length;
+            // "--" after the delimiter closes the body.
+            if (position + 1 < body.length && body[position] == '-' && body[position + 1] == '-') {
+                break;
+            }
+            position = skipLine(body, position);
+
+            int next = indexOf(body, delimiter, position);
+            if (next < 0) throw new IOException("Batch response is truncated.");
+
+            // The CRLF before a delimiter belongs to the delimiter.
+            int end = next;
+            if (end > position && body[end - 1] == '\n') end--;
+            if (end > position && body[end - 1] == '\r') end--;
+
+            parts.add(parsePart(body, position, end));
+            position = next;
+        }
+        return parts;
+    }
+
+    private static Part parsePart(byte[] body, int start, int end) throws IOException {
+        int statusCode = HttpStatus.SC_OK;
+        String adUnitId = null;
+        String contentType = null;
+        List<String[]> headers = new ArrayList<String[]>();
+
+        int position = start;
+        while (position < end) {
+            int lineEnd = position;
+            while (lineEnd < end && body[lineEnd] != '\n') lineEnd++;
+            int contentEnd = (lineEnd > position && body[lineEnd - 1] == '\r') ? 
+                    lineEnd - 1 : lineEnd;
+            String line = new String(body, position, contentEnd - position, "ISO-8859-1");
+            position = Math.min(lineEnd + 1, end);
+            if (line.length() == 0) break;
+
+            int colon = line.indexOf(':');
+            if (colon <= 0) throw new IOException("Malformed batch part header: " + line);
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+
+            if (name.equalsIgnoreCase(AD_UNIT_HEADER)) adUnitId = value;
+            else if (name.equalsIgnoreCase(STATUS_HEADER)) statusCode = parseStatus(value);
+            else if (name.equalsIgnoreCase("Content-Type")) contentType = value;
+            headers.add(new String[] { name, value });
+        }
+
+        BasicHttpResponse response = 
+                new BasicHttpResponse(HttpVersion.HTTP_1_1, statusCode, null);
+        for (int i = 0; i < headers.size(); i++) {
+            response.addHeader(headers.get(i)[0], headers.get(i)[1]);
+        }
+        
+        byte[] content = new byte[end - position];
+        System.arraycopy(body, position, content, 0, content.length);
+        ByteArrayEntity entity = new ByteArrayEntity(content);
+        if (contentType != null) entity.setContentType(contentType);
+        response.setEntity(entity);
+
+        return new Part(adUnitId, response);
+    }
+
+    private static int parseStatus(String value) throws IOException {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed batch part status: " + value);
+        }
+    }
+
+    private static String getBoundary(HttpEntity entity) {
+        Header contentType = entity.getContentType();
+        if (contentType == null) return null;
+        HeaderElement[] elements = contentType.getElements();
+        if (elements.length == 0 || !elements[0].getName().toLowerCase().startsWith("multipart/")) {
+            return null;
+        }
+        NameValuePair boundary = elements[0].getParameterByName("boundary");
+        return (boundary != null) ? boundary.getValue() : null;
+    }
+
+    private static int skipLine(byte[] body, int position) {
+        while (position < body.length && body[position] != '\n') position++;
+        return position + 1;
+    }
+
+    private static int indexOf(byte[] haystack, byte[] needle, int from) {
+        outer:
+        for (int i = from; i <= haystack.length - needle.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (haystack[i + j] != needle[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static byte[] ascii(String s) {
+        try {
+            return s.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
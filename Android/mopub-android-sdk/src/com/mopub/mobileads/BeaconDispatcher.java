@@ -0,0 +1,281 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import android.os.Process;
+import android.util.Log;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.params.HttpConnectionParams;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Sends impression and click tracking pings from a small, fixed set of worker threads fed by a 
+ * bounded queue. Pings that are queued close together are sent back-to-back by the same worker 
+ * so they can share a kept-alive connection. When the queue is full, new pings are rejected 
+ * (and counted as dropped) rather than blocking the caller, which is usually the UI thread.
+ * 
+ * Pings that are dropped or fail to send are handed to the BeaconStore, if one has been set up, 
+ * so they can be retried later instead of being lost.
+ */
+public class BeaconDispatcher {
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+    public static final int DEFAULT_WORKER_COUNT = 2;
+    public static final long DEFAULT_BATCH_WINDOW_MILLISECONDS = 200;
+    public static final int MAX_BATCH_SIZE = 8;
+    private static final int BEACON_TIMEOUT_MILLISECONDS = 15000;
+
+    private static BeaconDispatcher sInstance;
+
+    private final BlockingQueue<Beacon> mQueue;
+    private final Thread[] mWorkers;
+    private final long mBatchWindowMilliseconds;
+    private boolean mStarted;
+    private volatile BeaconStore mBeaconStore;
+
+    private final AtomicLong mDispatchedCount = new AtomicLong();
+    private final AtomicLong mSentCount = new AtomicLong();
+    private final AtomicLong mFailedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    static class Beacon {
+        final String mId;
+        final long mCreatedAt;
+        final String mUrl;
+        final String mUserAgent;
+        final String mDescription;
+
+        Beacon(String url, String userAgent, String description) {
+            this(UUID.randomUUID().toString(), System.currentTimeMillis(), url, userAgent, 
+                    description);
+        }
+
+        Beacon(String id, long createdAt, String url, String userAgent, String description) {
+            mId = id;
+            mCreatedAt = createdAt;
+            mUrl = url;
+            mUserAgent = userAgent;
+            mDescription = description;
+        }
+    }
+
+    public static synchronized BeaconDispatcher getInstance() {
+        if (sInstance == null) {
+            sInstance = new BeaconDispatcher(DEFAULT_QUEUE_CAPACITY, DEFAULT_WORKER_COUNT,
+                    DEFAULT_BATCH_WINDOW_MILLISECONDS);
+        }
+        return sInstance;
+    }
+
+    BeaconDispatcher(int queueCapacity, int workerCount, long batchWindowMilliseconds) {
+        mQueue = new ArrayBlockingQueue<Beacon>(queueCapacity);
+        mWorkers = new Thread[workerCount];
+        mBatchWindowMilliseconds = batchWindowMilliseconds;
+    }
+
+    /*
+     * Queues a tracking ping for the given URL. Returns false if the queue is full and the ping 
+     * was dropped.
+     */
+    public boolean dispatch(String url, String userAgent, String description) {
+        if (url == null) return false;
+        startWorkersIfNecessary();
+
+        Beacon beacon = new Beacon(url, userAgent, description);
+        if (!mQueue.offer(beacon)) {
+            mDroppedCount.incrementAndGet();
+            Log.w("MoPub", description + " tracking dropped: beacon queue is full (" + 
+                    mQueue.size() + " pending).");
+            saveForRetry(beacon);
+            return false;
+        }
+        
+        mDispatchedCount.incrementAndGet();
+        return true;
+    }
+
+    private synchronized void startWorkersIfNecessary() {
+        if (mStarted) return;
+        mStarted = true;
+
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new Thread(new Worker(), "MoPubBeacon-" + i);
+            mWorkers[i].setDaemon(true);
+            mWorkers[i].start();
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final List<Beacon> mBatch = new ArrayList<Beacon>(MAX_BATCH_SIZE);
+
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+            while (true) {
+                try {
+                    collectBatch();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                for (Beacon beacon : mBatch) send(beacon);
+                mBatch.clear();
+            }
+        }
+
+        /*
+         * Blocks for the first beacon. If others are already queued behind it, gathers those and 
+         * any that arrive within the batch window so they go out together; a lone beacon is sent 
+         * right away.
+         */
+        private void collectBatch() throws InterruptedException {
+            mBatch.add(mQueue.take());
+            if (mQueue.isEmpty()) return;
+
+            long deadline = System.currentTimeMillis() + mBatchWindowMilliseconds;
+            while (mBatch.size() < MAX_BATCH_SIZE) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) break;
+
+                Beacon next = mQueue.poll(remaining, TimeUnit.MILLISECONDS);
+                if (next == null) break;
+                mBatch.add(next);
+            }
+        }
+    }
+
+    private void send(Beacon beacon) {
+        HttpGet httpget;
+        try {
+            httpget = new HttpGet(beacon.mUrl);
+        } catch (IllegalArgumentException e) {
+            mFailedCount.incrementAndGet();
+            Log.w("MoPub", beacon.mDescription + " tracking dropped: malformed URL " + beacon.mUrl);
+            return;
+        }
+        if (beacon.mUserAgent != null) httpget.addHeader("User-Agent", beacon.mUserAgent);
+        HttpConnectionParams.setConnectionTimeout(httpget.getParams(), BEACON_TIMEOUT_MILLISECONDS);
+        HttpConnectionParams.setSoTimeout(httpget.getParams(), BEACON_TIMEOUT_MILLISECONDS);
+        
+        try {
+            HttpResponse response = MoPubHttpClient.getHttpClient().execute(httpget);
+            MoPubHttpClient.consumeResponse(response);
+            
+            // Server errors are worth retrying; anything else is considered delivered.
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+                mFailedCount.incrementAndGet();
+                Log.i("MoPub", beacon.mDescription + " tracking failed with status " + statusCode 
+                        + ": " + beacon.mUrl);
+                saveForRetry(beacon);
+                return;
+            }
+            mSentCount.incrementAndGet();
+        } catch (IOException e) {
+            httpget.abort();
+            mFailedCount.incrementAndGet();
+            Log.i("MoPub", beacon.mDescription + " tracking failed: " + beacon.mUrl);
+            saveForRetry(beacon);
+            return;
+        } catch (RuntimeException e) {
+            httpget.abort();
+            if (e instanceof IllegalStateException && isHttpUrl(beacon.mUrl)) {
+                // The tracker redirected to a scheme the client can't follow (e.g. market://). 
+                // It has answered, so the ping got through.
+                mSentCount.incrementAndGet();
+                return;
+            }
+            
+            // E.g. an unsupported URL scheme. Retrying won't help, and letting it escape would 
+            // kill this worker thread.
+            mFailedCount.incrementAndGet();
+            Log.w("MoPub", beacon.mDescription + " tracking dropped: " + beacon.mUrl + " (" + 
+                    e + ")");
+            return;
+        }
+
+        // The network is evidently working, so this is a good time to flush any saved pings.
+        BeaconStore store = mBeaconStore;
+        if (store != null) store.onConnectivityRestored();
+    }
+
+    private static boolean isHttpUrl(String url) {
+        return url.startsWith("http://") || url.startsWith("https://");
+    }
+
+    private void saveForRetry(Beacon beacon) {
+        BeaconStore store = mBeaconStore;
+        if (store != null) store.add(beacon);
+    }
+
+    void setBeaconStore(BeaconStore store) {
+        mBeaconStore = store;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    public int getQueueCapacity() {
+        return mQueue.size() + mQueue.remainingCapacity();
+    }
+
+    public long getDispatchedCount() {
+        return mDispatchedCount.get();
+    }
+
+    public long getSentCount() {
+        return mSentCount.get();
+    }
+
+    public long getFailedCount() {
+        return mFailedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+}
@@ -0,0 +1,424 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.util.Log;
+
+import com.mopub.mobileads.BeaconDispatcher.Beacon;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.params.HttpConnectionParams;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/*
+ * Durable, append-only log of tracking pings that could not be delivered. Each failed beacon is 
+ * appended as an "A" record; a "D" record is appended once it has been delivered or given up on. 
+ * Every record ends with a CRC-32 of its contents, so a record cut short by a crash is never 
+ * mistaken for a complete one. On startup the log is replayed -- records that fail their check 
+ * are skipped, and a torn final line is cut off so the next append starts on a fresh line -- and 
+ * the remaining beacons are retried with exponential backoff, and immediately whenever the device 
+ * regains connectivity. The log is capped by entry count and age, and is rewritten so that it 
+ * only contains pending beacons once other records start to dominate, including while offline.
+ * 
+ * All disk and network work happens on a single background thread; callers never block.
+ */
+public class BeaconStore {
+    public static final int DEFAULT_MAX_PENDING_BEACONS = 200;
+    public static final long DEFAULT_MAX_BEACON_AGE_MILLISECONDS = 24 * 60 * 60 * 1000;
+    private static final long INITIAL_RETRY_DELAY_MILLISECONDS = 30 * 1000;
+    private static final long MAX_RETRY_DELAY_MILLISECONDS = 30 * 60 * 1000;
+    private static final int RETRY_TIMEOUT_MILLISECONDS = 15000;
+    private static final int COMPACTION_THRESHOLD = 64;
+    private static final String LOG_FILE_NAME = "mopub_beacons.log";
+
+    private static BeaconStore sInstance;
+
+    private final File mLogFile;
+    private final ScheduledExecutorService mExecutor;
+    private final LinkedHashMap<String, Beacon> mPending = new LinkedHashMap<String, Beacon>();
+    private Writer mWriter;
+    private int mLogRecordCount;
+    private long mRetryDelayMilliseconds = INITIAL_RETRY_DELAY_MILLISECONDS;
+    private boolean mIsDrainScheduled;
+    private volatile int mPendingCount;
+    private final AtomicBoolean mIsImmediateDrainRequested = new AtomicBoolean();
+
+    /*
+     * Returns the process-wide store, creating it (and replaying its log in the background) the 
+     * first time it is requested.
+     */
+    public static synchronized BeaconStore getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new BeaconStore(new File(appContext.getFilesDir(), LOG_FILE_NAME));
+            sInstance.registerConnectivityReceiver(appContext);
+            BeaconDispatcher.getInstance().setBeaconStore(sInstance);
+        }
+        return sInstance;
+    }
+
+    BeaconStore(File logFile) {
+        mLogFile = logFile;
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                replayLog();
+                scheduleDrain(0);
+            }
+        });
+    }
+
+    private void registerConnectivityReceiver(Context appContext) {
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            public void onReceive(Context context, Intent intent) {
+                boolean noConnectivity = 
+                        intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false);
+                if (!noConnectivity) onConnectivityRestored();
+            }
+        };
+        appContext.registerReceiver(receiver, 
+                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    /*
+     * Persists a beacon that could not be sent. Beacons whose id is already pending are ignored.
+     */
+    public void add(final Beacon beacon) {
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                if (mPending.containsKey(beacon.mId)) return;
+
+                mPending.put(beacon.mId, beacon);
+                appendRecord(addRecordFor(beacon));
+                enforceLimits();
+                mPendingCount = mPending.size();
+                // While offline nothing drains, so this is the only chance to shrink the log.
+                compactIfNecessary();
+                scheduleDrain(mRetryDelayMilliseconds);
+            }
+        });
+    }
+
+    /*
+     * Called when there is evidence that the network is usable again: retries right away and 
+     * resets the backoff.
+     */
+    public void onConnectivityRestored() {
+        if (mPendingCount == 0 || !mIsImmediateDrainRequested.compareAndSet(false, true)) return;
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                mIsImmediateDrainRequested.set(false);
+                mRetryDelayMilliseconds = INITIAL_RETRY_DELAY_MILLISECONDS;
+                drain();
+            }
+        });
+    }
+
+    public int getPendingCount() {
+        return mPendingCount;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    // Everything below runs on the store's executor thread.
+
+    private void scheduleDrain(long delayMilliseconds) {
+        if (mIsDrainScheduled || mPending.isEmpty()) return;
+        mIsDrainScheduled = true;
+        mExecutor.schedule(new Runnable() {
+            public void run() {
+                mIsDrainScheduled = false;
+                drain();
+            }
+        }, delayMilliseconds, TimeUnit.MILLISECONDS);
+    }
+
+    private void drain() {
+        removeExpiredBeacons();
+
+        Iterator<Beacon> iterator = mPending.values().iterator();
+        while (iterator.hasNext()) {
+            Beacon beacon = iterator.next();
+            if (!send(beacon)) {
+                // Still offline (or the server is unhappy); back off before the next attempt.
+                mRetryDelayMilliseconds = 
+                        Math.min(mRetryDelayMilliseconds * 2, MAX_RETRY_DELAY_MILLISECONDS);
+                Log.d("MoPub", "Retrying " + mPending.size() + " saved tracking pings in " + 
+                        (mRetryDelayMilliseconds / 1000) + "s.");
+                mPendingCount = mPending.size();
+                scheduleDrain(mRetryDelayMilliseconds);
+                return;
+            }
+            
+            iterator.remove();
+            appendRecord("D\t" + beacon.mId);
+        }
+
+        mRetryDelayMilliseconds = INITIAL_RETRY_DELAY_MILLISECONDS;
+        mPendingCount = 0;
+        compactIfNecessary();
+    }
+
+    private boolean send(Beacon beacon) {
+        HttpGet httpget = new HttpGet(beacon.mUrl);
+        if (beacon.mUserAgent != null) httpget.addHeader("User-Agent", beacon.mUserAgent);
+        HttpConnectionParams.setConnectionTimeout(httpget.getParams(), RETRY_TIMEOUT_MILLISECONDS);
+        HttpConnectionParams.setSoTimeout(httpget.getParams(), RETRY_TIMEOUT_MILLISECONDS);
+
+        try {
+            HttpResponse response = MoPubHttpClient.getHttpClient().execute(httpget);
+            MoPubHttpClient.consumeResponse(response);
+            
+            // Server errors are worth retrying; anything else is considered delivered.
+            return response.getStatusLine().getStatusCode() < HttpStatus.SC_INTERNAL_SERVER_ERROR;
+        } catch (IOException e) {
+            httpget.abort();
+            return false;
+        } catch (RuntimeException e) {
+            // Retrying won't help (e.g. an unsupported URL scheme), so give up on this one. This 
+            // includes a tracker redirecting to a scheme the client can't follow, which means the 
+            // ping got through anyway.
+            httpget.abort();
+            Log.d("MoPub", "Discarding saved " + beacon.mDescription + " ping: " + e);
+            return true;
+        }
+    }
+
+    private void enforceLimits() {
+        removeExpiredBeacons();
+
+        Iterator<Beacon> iterator = mPending.values().iterator();
+        while (mPending.size() > DEFAULT_MAX_PENDING_BEACONS && iterator.hasNext()) {
+            Beacon oldest = iterator.next();
+            iterator.remove();
+            appendRecord("D\t" + oldest.mId);
+            Log.d("MoPub", "Beacon log full; discarding " + oldest.mDescription + " ping.");
+        }
+    }
+
+    private void removeExpiredBeacons() {
+        long cutoff = System.currentTimeMillis() - DEFAULT_MAX_BEACON_AGE_MILLISECONDS;
+        Iterator<Beacon> iterator = mPending.values().iterator();
+        while (iterator.hasNext()) {
+            Beacon beacon = iterator.next();
+            if (beacon.mCreatedAt < cutoff) {
+                iterator.remove();
+                appendRecord("D\t" + beacon.mId);
+            }
+        }
+    }
+
+    private void replayLog() {
+        if (!mLogFile.exists()) return;
+
+        try {
+            mLogRecordCount = readLog(mLogFile, mPending);
+        } catch (IOException e) {
+            Log.w("MoPub", "Failed to read saved tracking pings: " + e.getMessage());
+        }
+
+        enforceLimits();
+        mPendingCount = mPending.size();
+        compactIfNecessary();
+    }
+
+    /*
+     * Replays a log into the given map of pending beacons, keyed by id, and returns the number of 
+     * records in it. Anything after the last newline was torn off by a crash mid-append; it is 
+     * truncated away so the next record isn't glued onto it.
+     */
+    static int readLog(File logFile, Map<String, Beacon> pending) throws IOException {
+        byte[] contents = readFully(logFile);
+        int end = contents.length;
+        while (end > 0 && contents[end - 1] != '\n') end--;
+        if (end < contents.length) {
+            RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+            try {
+                file.setLength(end);
+            } finally {
+                file.close();
+            }
+        }
+
+        int recordCount = 0;
+        int start = 0;
+        for (int i = 0; i < end; i++) {
+            if (contents[i] != '\n') continue;
+            recordCount++;
+            replayRecord(new String(contents, start, i - start, "UTF-8"), pending);
+            start = i + 1;
+        }
+        return recordCount;
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[4096];
+            for (int count; (count = in.read(buffer)) != -1;) out.write(buffer, 0, count);
+            return out.toByteArray();
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void replayRecord(String line, Map<String, Beacon> pending) {
+        // Skip anything that doesn't pass its check, e.g. a record damaged by a crash.
+        int checksumStart = line.lastIndexOf('\t');
+        if (checksumStart < 0) return;
+        String record = line.substring(0, checksumStart);
+        if (!line.substring(checksumStart + 1).equals(checksum(record))) return;
+
+        String[] fields = record.split("\t", 6);
+        if (fields[0].equals("A") && fields.length == 6) {
+            long createdAt;
+            try {
+                createdAt = Long.parseLong(fields[2]);
+            } catch (NumberFormatException e) {
+                return;
+            }
+            String userAgent = (fields[4].length() > 0) ? fields[4] : null;
+            pending.put(fields[1], new Beacon(fields[1], createdAt, fields[5], userAgent, 
+                    fields[3]));
+        } else if (fields[0].equals("D") && fields.length == 2) {
+            pending.remove(fields[1]);
+        }
+    }
+
+    private void appendRecord(String record) {
+        try {
+            if (mWriter == null) {
+                mWriter = new OutputStreamWriter(new FileOutputStream(mLogFile, true), "UTF-8");
+            }
+            mWriter.write(formatRecord(record));
+            mWriter.flush();
+            mLogRecordCount++;
+        } catch (IOException e) {
+            Log.w("MoPub", "Failed to save tracking ping: " + e.getMessage());
+            closeQuietly(mWriter);
+            mWriter = null;
+        }
+    }
+
+    /*
+     * Rewrites the log so it only holds pending beacons once delivered/discarded records start 
+     * to dominate. The new log is written to a temporary file and renamed into place, so a crash 
+     * mid-compaction leaves the old log intact.
+     */
+    private void compactIfNecessary() {
+        if (mLogRecordCount < mPending.size() + COMPACTION_THRESHOLD) return;
+
+        closeQuietly(mWriter);
+        mWriter = null;
+
+        File tempFile = new File(mLogFile.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            FileOutputStream stream = new FileOutputStream(tempFile);
+            writer = new OutputStreamWriter(stream, "UTF-8");
+            for (Beacon beacon : mPending.values()) {
+                writer.write(formatRecord(addRecordFor(beacon)));
+            }
+            writer.flush();
+            stream.getFD().sync();
+            writer.close();
+            writer = null;
+
+            if (!tempFile.renameTo(mLogFile)) throw new IOException("rename failed");
+            mLogRecordCount = mPending.size();
+        } catch (IOException e) {
+            Log.w("MoPub", "Failed to compact saved tracking pings: " + e.getMessage());
+            closeQuietly(writer);
+            tempFile.delete();
+        }
+    }
+
+    /*
+     * Returns the log line for a record: the record, its checksum and a newline.
+     */
+    static String formatRecord(String record) {
+        return record + "\t" + checksum(record) + "\n";
+    }
+
+    private static String checksum(String record) {
+        CRC32 crc = new CRC32();
+        try {
+            crc.update(record.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        return Long.toHexString(crc.getValue());
+    }
+
+    static String addRecordFor(Beacon beacon) {
+        String userAgent = (beacon.mUserAgent != null) ? beacon.mUserAgent : "";
+        return "A\t" + beacon.mId + "\t" + beacon.mCreatedAt + "\t" + beacon.mDescription + 
+                "\t" + userAgent + "\t" + beacon.mUrl;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing more we can do.
+        }
+    }
+}
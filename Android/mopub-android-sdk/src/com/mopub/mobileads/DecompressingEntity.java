@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/*
+ * Wraps a gzip- or deflate-encoded response entity so that its content is decoded as it is 
+ * read. Counts the bytes received on the wire and the bytes produced after decoding, both for 
+ * this response and (through MoPubHttpClient) for the whole process.
+ */
+public class DecompressingEntity extends HttpEntityWrapper {
+    public static final String ENCODING_GZIP = "gzip";
+    public static final String ENCODING_DEFLATE = "deflate";
+
+    private final String mEncoding;
+    private InputStream mContent;
+    private long mCompressedByteCount;
+    private long mUncompressedByteCount;
+
+    public DecompressingEntity(HttpEntity wrapped, String encoding) {
+        super(wrapped);
+        mEncoding = encoding;
+    }
+
+    /*
+     * Returns the encoding to decode, or null if the entity isn't compressed in a way we support.
+     */
+    public static String supportedEncodingOf(HttpEntity entity) {
+        Header header = entity.getContentEncoding();
+        if (header == null) return null;
+
+        String value = header.getValue().trim();
+        if (value.equalsIgnoreCase(ENCODING_GZIP)) return ENCODING_GZIP;
+        if (value.equalsIgnoreCase(ENCODING_DEFLATE)) return ENCODING_DEFLATE;
+        return null;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        if (mContent != null) return mContent;
+
+        InputStream wire = new CountingInputStream(wrappedEntity.getContent(), true);
+        InputStream decoded = (ENCODING_GZIP.equals(mEncoding)) 
+                ? new GZIPInputStream(wire) 
+                : newInflaterInputStream(wire);
+        mContent = new CountingInputStream(decoded, false);
+        return mContent;
+    }
+
+    /*
+     * "deflate" is supposed to mean zlib-wrapped data, but some servers send a raw deflate 
+     * stream. Peek at the first two bytes to tell the two apart.
+     */
+    private static InputStream newInflaterInputStream(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        byte[] header = new byte[2];
+        int n = pushback.read(header);
+        if (n > 0) pushback.unread(header, 0, n);
+
+        boolean isZlib = (n == 2) && ((header[0] & 0x0F) == 8) &&
+                ((((header[0] & 0xFF) << 8) | (header[1] & 0xFF)) % 31 == 0);
+        return new InflaterInputStream(pushback, new Inflater(!isZlib));
+    }
+
+    @Override
+    public Header getContentEncoding() {
+        // The content is handed out already decoded.
+        return null;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return true;
+    }
+
+    @Override
+    public void consumeContent() throws IOException {
+        // Drain the raw stream rather than decoding what's left of it.
+        wrappedEntity.consumeContent();
+    }
+
+    public String getEncoding() {
+        return mEncoding;
+    }
+
+    public long getCompressedByteCount() {
+        return mCompressedByteCount;
+    }
+
+    public long getUncompressedByteCount() {
+        return mUncompressedByteCount;
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+        private final boolean mCountsWireBytes;
+
+        CountingInputStream(InputStream in, boolean countsWireBytes) {
+            super(in);
+            mCountsWireBytes = countsWireBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) count(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) count(n);
+            return n;
+        }
+
+        private void count(int n) {
+            if (mCountsWireBytes) {
+                mCompressedByteCount += n;
+                MoPubHttpClient.recordTransfer(n, 0);
+            } else {
+                mUncompressedByteCount += n;
+                MoPubHttpClient.recordTransfer(0, n);
+            }
+        }
+    }
+}
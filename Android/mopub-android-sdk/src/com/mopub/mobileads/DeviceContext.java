@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.provider.Settings.Secure;
+
+import java.util.TimeZone;
+
+/*
+ * Process-wide snapshot of the device attributes sent with every ad request. Each value is worked 
+ * out once and then reused until it actually changes:
+ * - the hashed ANDROID_ID never changes while the process is alive;
+ * - the time zone is swapped when ACTION_TIMEZONE_CHANGED is broadcast, and the formatted offset 
+ *   is only rebuilt when the zone's offset moves (e.g. at a DST transition);
+ * - orientation and density are re-derived only when the current Configuration / DisplayMetrics 
+ *   values differ from the ones last seen, which are plain field reads;
+ * - the connection type is looked up again after each CONNECTIVITY_ACTION broadcast.
+ * 
+ * Meant to be used from the main thread, except for getConnectionType(), which is also safe to 
+ * call from background threads.
+ */
+public class DeviceContext implements AdRequestEngine.DeviceInfo {
+    public static final String CONNECTION_TYPE_NONE = "none";
+    public static final String CONNECTION_TYPE_UNKNOWN = "unknown";
+
+    private static DeviceContext sInstance;
+
+    private final Context mContext;
+    private String mUdidDigest;
+
+    private volatile TimeZone mTimeZone;
+    private int mTimeZoneOffsetMilliseconds;
+    private String mTimeZoneOffset;
+
+    private int mOrientation = -1;
+    private String mOrientationString;
+
+    private float mDensity = -1f;
+    private String mDensityString;
+
+    private volatile String mConnectionType;
+
+    public static synchronized DeviceContext getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DeviceContext(context.getApplicationContext());
+            sInstance.registerTimeZoneReceiver();
+            sInstance.registerConnectivityReceiver();
+        }
+        return sInstance;
+    }
+
+    private DeviceContext(Context appContext) {
+        mContext = appContext;
+    }
+
+    private void registerTimeZoneReceiver() {
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            public void onReceive(Context context, Intent intent) {
+                // The process default may not have been updated yet, so prefer the new zone's id.
+                String id = intent.getStringExtra("time-zone");
+                mTimeZone = (id != null) ? TimeZone.getTimeZone(id) : null;
+            }
+        };
+        mContext.registerReceiver(receiver, new IntentFilter(Intent.ACTION_TIMEZONE_CHANGED));
+    }
+
+    private void registerConnectivityReceiver() {
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            public void onReceive(Context context, Intent intent) {
+                mConnectionType = null;
+            }
+        };
+        mContext.registerReceiver(receiver, 
+                new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    /*
+     * Returns the SHA-1 digest of the device's ANDROID_ID, or "" if it has none.
+     */
+    public synchronized String getUdidDigest() {
+        if (mUdidDigest == null) {
+            String udid = Secure.getString(mContext.getContentResolver(), Secure.ANDROID_ID);
+            mUdidDigest = (udid == null) ? "" : Utils.sha1(udid);
+        }
+        return mUdidDigest;
+    }
+
+    /*
+     * Returns the current UTC offset in RFC 822 form (e.g. "-0800"), as SimpleDateFormat("Z") 
+     * would format it.
+     */
+    public synchronized String getTimeZoneOffset() {
+        TimeZone timeZone = mTimeZone;
+        if (timeZone == null) {
+            timeZone = TimeZone.getDefault();
+            mTimeZone = timeZone;
+            mTimeZoneOffset = null;
+        }
+
+        int offset = timeZone.getOffset(System.currentTimeMillis());
+        if (mTimeZoneOffset == null || offset != mTimeZoneOffsetMilliseconds) {
+            mTimeZoneOffsetMilliseconds = offset;
+            mTimeZoneOffset = formatTimeZoneOffset(offset);
+        }
+        return mTimeZoneOffset;
+    }
+
+    static String formatTimeZoneOffset(int offsetMilliseconds) {
+        int minutes = offsetMilliseconds / 60000;
+        char sign = '+';
+        if (minutes < 0) {
+            sign = '-';
+            minutes = -minutes;
+        }
+        int hours = minutes / 60;
+        minutes = minutes % 60;
+
+        char[] chars = new char[5];
+        chars[0] = sign;
+        chars[1] = (char) ('0' + hours / 10);
+        chars[2] = (char) ('0' + hours % 10);
+        chars[3] = (char) ('0' + minutes / 10);
+        chars[4] = (char) ('0' + minutes % 10);
+        return new String(chars);
+    }
+
+    /*
+     * Returns one of the AdView.DEVICE_ORIENTATION_* values.
+     */
+    public synchronized String getOrientation() {
+        int orientation = mContext.getResources().getConfiguration().orientation;
+        if (orientation != mOrientation || mOrientationString == null) {
+            mOrientation = orientation;
+            if (orientation == Configuration.ORIENTATION_PORTRAIT) {
+                mOrientationString = AdView.DEVICE_ORIENTATION_PORTRAIT;
+            } else if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
+                mOrientationString = AdView.DEVICE_ORIENTATION_LANDSCAPE;
+            } else if (orientation == Configuration.ORIENTATION_SQUARE) {
+                mOrientationString = AdView.DEVICE_ORIENTATION_SQUARE;
+            } else {
+                mOrientationString = AdView.DEVICE_ORIENTATION_UNKNOWN;
+            }
+        }
+        return mOrientationString;
+    }
+
+    /*
+     * Returns the display's logical density, formatted for the ad request.
+     */
+    public synchronized String getDensity() {
+        Resources resources = mContext.getResources();
+        float density = resources.getDisplayMetrics().density;
+        if (density != mDensity || mDensityString == null) {
+            mDensity = density;
+            mDensityString = String.valueOf(density);
+        }
+        return mDensityString;
+    }
+
+    /*
+     * Returns a short name for the active network, such as "wifi" or "mobile/EDGE", "none" when 
+     * there is no connection, or CONNECTION_TYPE_UNKNOWN when the app lacks the 
+     * ACCESS_NETWORK_STATE permission.
+     */
+    public String getConnectionType() {
+        String connectionType = mConnectionType;
+        if (connectionType == null) {
+            connectionType = lookUpConnectionType();
+            mConnectionType = connectionType;
+        }
+        return connectionType;
+    }
+
+    private String lookUpConnectionType() {
+        if (mContext.checkCallingOrSelfPermission("android.permission.ACCESS_NETWORK_STATE") != 
+                PackageManager.PERMISSION_GRANTED) {
+            return CONNECTION_TYPE_UNKNOWN;
+        }
+
+        ConnectivityManager manager = 
+                (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = (manager != null) ? manager.getActiveNetworkInfo() : null;
+        if (info == null || !info.isConnected()) return CONNECTION_TYPE_NONE;
+
+        String type = info.getTypeName();
+        if (type == null) return CONNECTION_TYPE_UNKNOWN;
+        type = type.toLowerCase();
+
+        String subtype = info.getSubtypeName();
+        return (subtype != null && subtype.length() > 0) ? type + "/" + subtype : type;
+    }
+}
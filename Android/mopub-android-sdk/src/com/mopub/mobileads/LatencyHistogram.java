@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+/*
+ * Fixed-size histogram of durations, in microseconds. Buckets grow logarithmically: each power 
+ * of two is split into eight sub-buckets, so a reported percentile is within 12.5% of the true 
+ * value, from 1 microsecond up to about 70 minutes. Recording a value never allocates.
+ * 
+ * Thread-safe.
+ */
+public class LatencyHistogram {
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 32;
+    private static final int BUCKET_COUNT = 
+            LINEAR_BUCKETS + (MAX_EXPONENT - 4 + 1) * SUB_BUCKETS;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mSum;
+    private long mMax;
+    
+    public LatencyHistogram() {
+    }
+    
+    private LatencyHistogram(LatencyHistogram other) {
+        synchronized (other) {
+            System.arraycopy(other.mCounts, 0, mCounts, 0, BUCKET_COUNT);
+            mCount = other.mCount;
+            mSum = other.mSum;
+            mMax = other.mMax;
+        }
+    }
+    
+    static int bucketOf(long micros) {
+        if (micros < LINEAR_BUCKETS) return (micros > 0) ? (int) micros : 0;
+        if (micros > MAX_VALUE) micros = MAX_VALUE;
+        
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + subBucket;
+    }
+    
+    static long upperBoundOf(int bucket) {
+        if (bucket < LINEAR_BUCKETS) return bucket;
+        
+        int exponent = 4 + (bucket - LINEAR_BUCKETS) / SUB_BUCKETS;
+        int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (((long) (SUB_BUCKETS + subBucket + 1)) << shift) - 1;
+    }
+    
+    public synchronized void record(long micros) {
+        if (micros < 0) micros = 0;
+        mCounts[bucketOf(micros)]++;
+        mCount++;
+        mSum += micros;
+        if (micros > mMax) mMax = micros;
+    }
+    
+    /*
+     * Returns the given percentile (e.g. 95 for p95) in milliseconds, or 0 if nothing has been 
+     * recorded.
+     */
+    public synchronized double getPercentile(double percentile) {
+        if (mCount == 0) return 0;
+        
+        long rank = (long) Math.ceil(mCount * Math.min(Math.max(percentile, 0), 100) / 100);
+        if (rank < 1) rank = 1;
+        
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) return Math.min(upperBoundOf(i), mMax) / 1000.0;
+        }
+        return mMax / 1000.0;
+    }
+    
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) mCounts[i] = 0;
+        mCount = 0;
+        mSum = 0;
+        mMax = 0;
+    }
+    
+    /*
+     * Returns a copy that won't change as more values are recorded.
+     */
+    public LatencyHistogram snapshot() {
+        return new LatencyHistogram(this);
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    
+    public synchronized long getCount() {
+        return mCount;
+    }
+    
+    /*
+     * Mean duration in milliseconds.
+     */
+    public synchronized double getMean() {
+        return (mCount > 0) ? mSum / 1000.0 / mCount : 0;
+    }
+    
+    /*
+     * Longest duration recorded, in milliseconds.
+     */
+    public synchronized double getMax() {
+        return mMax / 1000.0;
+    }
+}
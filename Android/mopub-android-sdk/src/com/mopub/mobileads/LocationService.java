@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import android.content.Context;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.Looper;
+import android.util.Log;
+
+import com.mopub.mobileads.MoPubView.LocationAwareness;
+
+import java.math.BigDecimal;
+import java.util.HashMap;
+
+/*
+ * Process-wide source of the device location used for ad targeting. Rather than querying the 
+ * location providers on every ad request, it listens to the passive provider (which only reports 
+ * fixes other apps have already asked for, so it costs no extra power) and keeps the freshest fix. 
+ * On platforms without a passive provider it falls back to polling the GPS and network providers' 
+ * last known locations, at most once per poll interval.
+ * 
+ * Each (awareness, precision) setting gets its own truncated copy of the current fix, computed 
+ * once per fix. Fixes older than the maximum age are not reported. The platform's Location 
+ * objects are never modified.
+ */
+public class LocationService {
+    public static final long DEFAULT_MAX_LOCATION_AGE_MILLISECONDS = 60 * 60 * 1000;
+    private static final long FALLBACK_POLL_INTERVAL_MILLISECONDS = 60 * 1000;
+    private static final long PASSIVE_MIN_TIME_MILLISECONDS = 30 * 1000;
+    // LocationManager.PASSIVE_PROVIDER, which only exists from API level 8.
+    private static final String PASSIVE_PROVIDER = "passive";
+
+    private static LocationService sInstance;
+    private static volatile long sMaxLocationAgeMilliseconds = 
+            DEFAULT_MAX_LOCATION_AGE_MILLISECONDS;
+
+    private final LocationManager mLocationManager;
+    private boolean mIsListeningPassively;
+    private long mLastPollTime;
+    private Location mLocation;
+    private final HashMap<Integer, Location> mSnapshots = new HashMap<Integer, Location>();
+
+    private final LocationListener mPassiveListener = new LocationListener() {
+        public void onLocationChanged(Location location) {
+            updateLocation(location);
+        }
+
+        public void onProviderDisabled(String provider) {
+        }
+
+        public void onProviderEnabled(String provider) {
+        }
+
+        public void onStatusChanged(String provider, int status, Bundle extras) {
+        }
+    };
+
+    public static synchronized LocationService getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            sInstance = new LocationService(
+                    (LocationManager) appContext.getSystemService(Context.LOCATION_SERVICE));
+        }
+        return sInstance;
+    }
+
+    private LocationService(LocationManager locationManager) {
+        mLocationManager = locationManager;
+        pollLastKnownLocations();
+        startPassiveUpdates();
+    }
+
+    private void startPassiveUpdates() {
+        if (mLocationManager == null) return;
+        try {
+            mLocationManager.requestLocationUpdates(PASSIVE_PROVIDER, 
+                    PASSIVE_MIN_TIME_MILLISECONDS, 0, mPassiveListener, Looper.getMainLooper());
+            mIsListeningPassively = true;
+        } catch (SecurityException e) {
+            Log.d("MoPub", "Passive location updates unavailable: access appears to be disabled.");
+        } catch (IllegalArgumentException e) {
+            Log.d("MoPub", "Passive location updates unavailable: device has no passive provider.");
+        }
+    }
+
+    /*
+     * Returns the current location with the given awareness and precision applied, or null if 
+     * location awareness is disabled or no sufficiently recent fix is known. The result is shared 
+     * and must not be modified.
+     */
+    public synchronized Location getLocation(LocationAwareness awareness, int precision) {
+        if (awareness == LocationAwareness.LOCATION_AWARENESS_DISABLED) return null;
+
+        if (!mIsListeningPassively && 
+                System.currentTimeMillis() - mLastPollTime >= FALLBACK_POLL_INTERVAL_MILLISECONDS) {
+            pollLastKnownLocations();
+        }
+
+        Location location = mLocation;
+        if (location == null) return null;
+        if (System.currentTimeMillis() - location.getTime() > sMaxLocationAgeMilliseconds) {
+            return null;
+        }
+
+        if (awareness != LocationAwareness.LOCATION_AWARENESS_TRUNCATED) return location;
+
+        Integer key = Integer.valueOf(precision);
+        Location snapshot = mSnapshots.get(key);
+        if (snapshot == null) {
+            snapshot = truncate(location, precision);
+            mSnapshots.put(key, snapshot);
+        }
+        return snapshot;
+    }
+
+    private synchronized void updateLocation(Location location) {
+        if (location == null) return;
+        if (mLocation != null && mLocation.getTime() > location.getTime()) return;
+
+        // Keep a private copy so later changes by the caller can't leak into ad requests.
+        mLocation = new Location(location);
+        mSnapshots.clear();
+    }
+
+    private void pollLastKnownLocations() {
+        mLastPollTime = System.currentTimeMillis();
+        if (mLocationManager == null) return;
+        updateLocation(getLastKnownLocation(LocationManager.GPS_PROVIDER, "GPS"));
+        updateLocation(getLastKnownLocation(LocationManager.NETWORK_PROVIDER, "network"));
+    }
+
+    private Location getLastKnownLocation(String provider, String description) {
+        try {
+            return mLocationManager.getLastKnownLocation(provider);
+        } catch (SecurityException e) {
+            Log.d("MoPub", "Failed to retrieve " + description + 
+                    " location: access appears to be disabled.");
+        } catch (IllegalArgumentException e) {
+            Log.d("MoPub", "Failed to retrieve " + description + 
+                    " location: device has no " + description + " provider.");
+        }
+        return null;
+    }
+
+    /*
+     * Returns a copy of the location with latitude/longitude truncated to the given number of 
+     * decimal digits.
+     */
+    private static Location truncate(Location location, int precision) {
+        Location result = new Location(location);
+        result.setLatitude(BigDecimal.valueOf(location.getLatitude())
+                .setScale(precision, BigDecimal.ROUND_HALF_DOWN)
+                .doubleValue());
+        result.setLongitude(BigDecimal.valueOf(location.getLongitude())
+                .setScale(precision, BigDecimal.ROUND_HALF_DOWN)
+                .doubleValue());
+        return result;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /*
+     * Sets how old a fix may be before it is no longer sent with ad requests.
+     */
+    public static void setMaxLocationAge(long milliseconds) {
+        sMaxLocationAgeMilliseconds = milliseconds;
+    }
+
+    public static long getMaxLocationAge() {
+        return sMaxLocationAgeMilliseconds;
+    }
+}
@@ -67,6 +67,8 @@ public class MoPubActivity extends Activity implements OnAdLoadedListener {
         String clickthroughUrl = getIntent().getStringExtra("com.mopub.mobileads.ClickthroughUrl");
         String source = getIntent().getStringExtra("com.mopub.mobileads.Source");
         int timeout = getIntent().getIntExtra("com.mopub.mobileads.Timeout", 0);
+        boolean impressionTracked = 
+                getIntent().getBooleanExtra("com.mopub.mobileads.ImpressionTracked", true);
 
         if (adUnitId == null) {
             throw new RuntimeException("AdUnitId isn't set in " +
@@ -81,7 +83,8 @@ public class MoPubActivity extends Activity implements OnAdLoadedListener {
         mMoPubView.setOnAdLoadedListener(this);
         
         if (source != null) {
-            source = sourceWithImpressionTrackingDisabled(source);
+            // The impression has normally been counted already when the ad was loaded.
+            if (impressionTracked) source = sourceWithImpressionTrackingDisabled(source);
             mMoPubView.loadHtmlString(source);
         }
 
@@ -131,7 +134,7 @@ public class MoPubActivity extends Activity implements OnAdLoadedListener {
         super.onDestroy();
     }
     
-    private String sourceWithImpressionTrackingDisabled(String source) {
+    static String sourceWithImpressionTrackingDisabled(String source) {
         // TODO: Temporary fix. Disables impression tracking by renaming the pixel tracker's URL.
         return source.replaceAll("http://ads.mopub.com/m/imp", "mopub://null");
     }
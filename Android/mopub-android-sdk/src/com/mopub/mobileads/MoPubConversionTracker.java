@@ -43,8 +43,8 @@ import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 
 import java.io.IOException;
 
@@ -81,28 +81,34 @@ public class MoPubConversionTracker {
             String url = sz.toString();
             Log.d("MoPub", "Conversion track: " + url);
 
-            DefaultHttpClient httpclient = new DefaultHttpClient();
+            HttpClient httpclient = MoPubHttpClient.getHttpClient();
             HttpGet httpget = new HttpGet(url);
             HttpResponse response;
             try {
                 response = httpclient.execute(httpget);
             } catch (ClientProtocolException e) {
+                httpget.abort();
                 // Just fail silently. We'll try the next time the app opens
                 Log.d("MoPub", "Conversion track failed: ClientProtocolException (no signal?)");
                 return;
             } catch (IOException e) {
+                httpget.abort();
                 // Just fail silently. We'll try the next time the app opens
                 Log.d("MoPub", "Conversion track failed: IOException (no signal?)");
                 return;
             }
 
+            // Release the connection back to the shared pool; we only care about the headers.
+            HttpEntity entity = response.getEntity();
+            long contentLength = (entity != null) ? entity.getContentLength() : 0;
+            MoPubHttpClient.consumeResponse(response);
+
             if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
                 Log.d("MoPub", "Conversion track failed: Status code != 200");
                 return;
             }
 
-            HttpEntity entity = response.getEntity();
-            if (entity == null || entity.getContentLength() == 0) {
+            if (entity == null || contentLength == 0) {
                 Log.d("MoPub", "Conversion track failed: Response was empty");
                 return;
             }
@@ -0,0 +1,254 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import android.util.Log;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Process-wide HTTP client shared by ad requests, impression/click beacons and conversion 
+ * tracking. Backed by a thread-safe connection manager so that persistent connections to the 
+ * ad server are reused across requests instead of paying for a new TCP handshake each time.
+ * 
+ * Every request advertises gzip and deflate support, and compressed responses are decoded 
+ * transparently as they are read (see DecompressingEntity).
+ * 
+ * Connection limits must be configured before the first request is made; they are read once 
+ * when the client is created.
+ */
+public class MoPubHttpClient {
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 4;
+    public static final int DEFAULT_MAX_TOTAL_CONNECTIONS = 8;
+    public static final long DEFAULT_IDLE_CONNECTION_TIMEOUT_MILLISECONDS = 30000;
+    public static final long DEFAULT_CONNECTION_POOL_TIMEOUT_MILLISECONDS = 10000;
+    private static final int SOCKET_BUFFER_SIZE = 8192;
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String ACCEPTED_ENCODINGS = "gzip, deflate";
+
+    private static DefaultHttpClient sHttpClient;
+    private static int sMaxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+    private static int sMaxTotalConnections = DEFAULT_MAX_TOTAL_CONNECTIONS;
+    private static long sIdleConnectionTimeoutMilliseconds = 
+            DEFAULT_IDLE_CONNECTION_TIMEOUT_MILLISECONDS;
+    private static long sLastEvictionTime;
+    
+    private static final AtomicLong sCompressedResponseCount = new AtomicLong();
+    private static final AtomicLong sCompressedByteCount = new AtomicLong();
+    private static final AtomicLong sUncompressedByteCount = new AtomicLong();
+
+    private MoPubHttpClient() {}
+
+    /*
+     * Returns the shared client, creating it on first use. Connections that have been idle 
+     * longer than the idle timeout are evicted opportunistically on each call.
+     */
+    public static synchronized HttpClient getHttpClient() {
+        if (sHttpClient == null) sHttpClient = createHttpClient();
+        else evictIdleConnectionsIfNecessary();
+        return sHttpClient;
+    }
+
+    private static DefaultHttpClient createHttpClient() {
+        HttpParams params = new BasicHttpParams();
+
+        ConnManagerParams.setMaxTotalConnections(params, sMaxTotalConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, 
+                new ConnPerRouteBean(sMaxConnectionsPerRoute));
+        ConnManagerParams.setTimeout(params, DEFAULT_CONNECTION_POOL_TIMEOUT_MILLISECONDS);
+
+        // Set the buffer size to avoid OutOfMemoryError exceptions on certain HTC devices.
+        // http://stackoverflow.com/questions/5358014/android-httpclient-oom-on-4g-lte-htc-thunderbolt
+        HttpConnectionParams.setSocketBufferSize(params, SOCKET_BUFFER_SIZE);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        HttpProtocolParams.setUseExpectContinue(params, false);
+
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        schemeRegistry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+
+        ClientConnectionManager manager = new ThreadSafeClientConnManager(params, schemeRegistry);
+        sLastEvictionTime = System.currentTimeMillis();
+        DefaultHttpClient client = new DefaultHttpClient(manager, params);
+        
+        client.addRequestInterceptor(new HttpRequestInterceptor() {
+            public void process(HttpRequest request, HttpContext context) {
+                if (!request.containsHeader(HEADER_ACCEPT_ENCODING)) {
+                    request.addHeader(HEADER_ACCEPT_ENCODING, ACCEPTED_ENCODINGS);
+                }
+                
+                // Interceptors run once the connection is established, which marks the end of 
+                // the connect phase for AdLoadMetrics.
+                if (AdLoadMetrics.isEnabled()) {
+                    context.setAttribute(AdLoadMetrics.CONNECTED_TIME_ATTRIBUTE, 
+                            Long.valueOf(System.nanoTime()));
+                }
+            }
+        });
+        
+        client.addResponseInterceptor(new HttpResponseInterceptor() {
+            public void process(HttpResponse response, HttpContext context) {
+                HttpEntity entity = response.getEntity();
+                if (entity == null) return;
+                
+                String encoding = DecompressingEntity.supportedEncodingOf(entity);
+                if (encoding != null) {
+                    sCompressedResponseCount.incrementAndGet();
+                    response.setEntity(new DecompressingEntity(entity, encoding));
+                }
+            }
+        });
+        
+        return client;
+    }
+    
+    static void recordTransfer(long compressedBytes, long uncompressedBytes) {
+        if (compressedBytes > 0) sCompressedByteCount.addAndGet(compressedBytes);
+        if (uncompressedBytes > 0) sUncompressedByteCount.addAndGet(uncompressedBytes);
+    }
+
+    private static void evictIdleConnectionsIfNecessary() {
+        long now = System.currentTimeMillis();
+        if (now - sLastEvictionTime < sIdleConnectionTimeoutMilliseconds / 2) return;
+
+        sLastEvictionTime = now;
+        ClientConnectionManager manager = sHttpClient.getConnectionManager();
+        manager.closeExpiredConnections();
+        manager.closeIdleConnections(sIdleConnectionTimeoutMilliseconds, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Consumes whatever is left of the response body so that the underlying connection is 
+     * released back to the pool and can be kept alive for the next request.
+     */
+    public static void consumeResponse(HttpResponse response) {
+        if (response == null) return;
+        HttpEntity entity = response.getEntity();
+        if (entity == null) return;
+
+        try {
+            entity.consumeContent();
+        } catch (IOException e) {
+            Log.d("MoPub", "Failed to release HTTP connection: " + e.getMessage());
+        }
+    }
+
+    /*
+     * Closes every pooled connection. The next call to getHttpClient() creates a fresh client.
+     */
+    public static synchronized void shutdown() {
+        if (sHttpClient == null) return;
+        sHttpClient.getConnectionManager().shutdown();
+        sHttpClient = null;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    public static synchronized void setMaxConnectionsPerRoute(int maxConnections) {
+        if (sHttpClient != null) {
+            Log.w("MoPub", "The shared HTTP client already exists; connection limits will apply " + 
+                    "after the next shutdown().");
+        }
+        sMaxConnectionsPerRoute = (maxConnections > 0) ? maxConnections : 1;
+    }
+
+    public static synchronized int getMaxConnectionsPerRoute() {
+        return sMaxConnectionsPerRoute;
+    }
+
+    public static synchronized void setMaxTotalConnections(int maxConnections) {
+        if (sHttpClient != null) {
+            Log.w("MoPub", "The shared HTTP client already exists; connection limits will apply " + 
+                    "after the next shutdown().");
+        }
+        sMaxTotalConnections = (maxConnections > 0) ? maxConnections : 1;
+    }
+
+    public static synchronized int getMaxTotalConnections() {
+        return sMaxTotalConnections;
+    }
+
+    /*
+     * Number of responses that arrived gzip- or deflate-encoded.
+     */
+    public static long getCompressedResponseCount() {
+        return sCompressedResponseCount.get();
+    }
+    
+    /*
+     * Bytes of compressed response bodies read from the network.
+     */
+    public static long getCompressedByteCount() {
+        return sCompressedByteCount.get();
+    }
+    
+    /*
+     * Bytes those compressed bodies decoded to. The difference from getCompressedByteCount() is 
+     * the bandwidth saved by compression.
+     */
+    public static long getUncompressedByteCount() {
+        return sUncompressedByteCount.get();
+    }
+
+    public static synchronized void setIdleConnectionTimeout(long milliseconds) {
+        sIdleConnectionTimeoutMilliseconds = (milliseconds > 0) ? milliseconds : 0;
+    }
+
+    public static synchronized long getIdleConnectionTimeout() {
+        return sIdleConnectionTimeoutMilliseconds;
+    }
+}
@@ -46,16 +46,40 @@ import android.util.Log;
 
 public class MoPubInterstitial {
     
+    public static final long DEFAULT_PREFETCH_TTL_MILLISECONDS = 5 * 60 * 1000;
+    
     private MoPubInterstitialView mInterstitialView;
     private MoPubInterstitialListener mListener;
     private Activity mActivity;
     private String mAdUnitId;
+    private BaseInterstitialAdapter mCurrentAdapter;
+    
+    private boolean mIsPrefetching;
+    private PrefetchedAd mPrefetchedAd;
+    private long mPrefetchTtlMilliseconds = DEFAULT_PREFETCH_TTL_MILLISECONDS;
+    private final HashMap<String, Long> mAdapterTimeouts = new HashMap<String, Long>();
+    private int mPrefetchHitCount;
+    private int mPrefetchMissCount;
+    private int mPrefetchExpiredCount;
     
     public interface MoPubInterstitialListener {
         public void OnInterstitialLoaded();
         public void OnInterstitialFailed();
     }
     
+    /*
+     * An interstitial that has been fetched ahead of time. Exactly one of the source, adapter or 
+     * native params is set, depending on how far the ad could be loaded without showing it.
+     */
+    private static class PrefetchedAd {
+        long mLoadedAt;
+        String mSource;
+        String mClickthroughUrl;
+        BaseInterstitialAdapter mAdapter;
+        HashMap<String, String> mParamsHash;
+        NativeAdParams mNativeParams;
+    }
+    
     public class MoPubInterstitialView extends MoPubView {
         
         public MoPubInterstitialView(Context context) {
@@ -63,29 +87,24 @@ public class MoPubInterstitial {
         }
 
         @Override
-        protected void loadNativeSDK(HashMap<String, String> paramsHash) {
+        protected void loadNativeSDK(HashMap<String, String> paramsHash, 
+                NativeAdParams nativeParams) {
             if (paramsHash == null) return;
             
             MoPubInterstitial interstitial = MoPubInterstitial.this;
-            String type = paramsHash.get("X-Adtype");
-
-            if (type != null && type.equals("interstitial")) {
-                String interstitialType = paramsHash.get("X-Fulladtype");
-                
-                Log.i("MoPub", "Loading native adapter for interstitial type: " + interstitialType);
-                BaseInterstitialAdapter adapter =
-                        BaseInterstitialAdapter.getAdapterForType(interstitialType);
-                
-                if (adapter != null) {
-                    String jsonParams = paramsHash.get("X-Nativeparams");
-                    adapter.init(interstitial, jsonParams);
-                    adapter.loadInterstitial();
-                    return;
-                }
+            if (interstitial.mIsPrefetching) {
+                interstitial.prefetchNativeAd(paramsHash, nativeParams);
+            } else {
+                interstitial.loadNativeAd(paramsHash, nativeParams);
             }
-            
-            Log.i("MoPub", "Couldn't load native adapter. Trying next ad...");
-            interstitial.interstitialFailed();
+        }
+        
+        @Override
+        protected String prepareHtmlForRendering(String html) {
+            // A prefetched ad may never be shown, so its impression is only counted once 
+            // MoPubActivity displays it.
+            if (!mIsPrefetching) return html;
+            return MoPubActivity.sourceWithImpressionTrackingDisabled(html);
         }
         
         protected void trackImpression() {
@@ -102,24 +121,25 @@ public class MoPubInterstitial {
         mInterstitialView.setAdUnitId(mAdUnitId);
         mInterstitialView.setOnAdLoadedListener(new OnAdLoadedListener() {
             public void OnAdLoaded(MoPubView m) {
+                if (mIsPrefetching) {
+                    PrefetchedAd ad = new PrefetchedAd();
+                    ad.mSource = mInterstitialView.getResponseString();
+                    ad.mClickthroughUrl = mInterstitialView.getClickthroughUrl();
+                    cachePrefetchedAd(ad);
+                    return;
+                }
+                
                 if (mListener != null) {
                     mListener.OnInterstitialLoaded();
                 }
                 
-                if (mActivity != null) {
-                    String responseString = mInterstitialView.getResponseString();
-                    Intent i = new Intent(mActivity, MoPubActivity.class);
-                    i.putExtra("com.mopub.mobileads.AdUnitId", mAdUnitId);
-                    i.putExtra("com.mopub.mobileads.Keywords", mInterstitialView.getKeywords());
-                    i.putExtra("com.mopub.mobileads.Source", responseString);
-                    i.putExtra("com.mopub.mobileads.ClickthroughUrl",
-                            mInterstitialView.getClickthroughUrl());
-                    mActivity.startActivity(i);
-                }
+                showHtmlInterstitial(mInterstitialView.getResponseString(),
+                        mInterstitialView.getClickthroughUrl(), true);
             }
         });
         mInterstitialView.setOnAdFailedListener(new OnAdFailedListener() {
             public void OnAdFailed(MoPubView m) {
+                mIsPrefetching = false;
                 if (mListener != null) {
                     mListener.OnInterstitialFailed();
                 }
@@ -132,17 +152,138 @@ public class MoPubInterstitial {
     }
     
     public void showAd() {
+        mIsPrefetching = false;
         mInterstitialView.loadAd();
     }
-/* TODO:
-    public void prefetchAd() {
     
+    /*
+     * Fetches an interstitial (and loads its native network SDK, where the network allows the 
+     * ad to be loaded without being shown) so that a later call to showPrefetchedAd() can display 
+     * it without waiting on the network. The listener's OnInterstitialLoaded() is called once 
+     * the ad is ready to be shown.
+     */
+    public void prefetchAd() {
+        discardPrefetchedAd();
+        mIsPrefetching = true;
+        mInterstitialView.loadAd();
     }
     
+    /*
+     * Shows the ad loaded by prefetchAd(). If there is no prefetched ad, or it has been cached 
+     * for longer than the prefetch TTL, this falls back to showAd().
+     */
     public void showPrefetchedAd() {
+        PrefetchedAd ad = mPrefetchedAd;
+        mPrefetchedAd = null;
+        
+        if (ad == null) {
+            mPrefetchMissCount++;
+            Log.d("MoPub", "No prefetched interstitial available; loading one now.");
+            showAd();
+            return;
+        }
+        
+        if (System.currentTimeMillis() - ad.mLoadedAt > mPrefetchTtlMilliseconds) {
+            mPrefetchExpiredCount++;
+            Log.d("MoPub", "Prefetched interstitial expired; loading a new one.");
+            if (ad.mAdapter != null) ad.mAdapter.invalidate();
+            showAd();
+            return;
+        }
+        
+        mPrefetchHitCount++;
+        if (ad.mSource != null) {
+            showHtmlInterstitial(ad.mSource, ad.mClickthroughUrl, false);
+        } else if (ad.mAdapter != null) {
+            mCurrentAdapter = ad.mAdapter;
+            mInterstitialView.trackImpression();
+            ad.mAdapter.showInterstitial();
+        } else if (ad.mParamsHash != null) {
+            loadNativeAd(ad.mParamsHash, ad.mNativeParams);
+        }
+    }
+    
+    public boolean isPrefetchedAdReady() {
+        return mPrefetchedAd != null && 
+                System.currentTimeMillis() - mPrefetchedAd.mLoadedAt <= mPrefetchTtlMilliseconds;
+    }
+    
+    private void showHtmlInterstitial(String source, String clickthroughUrl, 
+            boolean impressionTracked) {
+        if (mActivity == null) return;
+        
+        Intent i = new Intent(mActivity, MoPubActivity.class);
+        i.putExtra("com.mopub.mobileads.AdUnitId", mAdUnitId);
+        i.putExtra("com.mopub.mobileads.Keywords", mInterstitialView.getKeywords());
+        i.putExtra("com.mopub.mobileads.Source", source);
+        i.putExtra("com.mopub.mobileads.ClickthroughUrl", clickthroughUrl);
+        i.putExtra("com.mopub.mobileads.ImpressionTracked", impressionTracked);
+        mActivity.startActivity(i);
+    }
+    
+    private void loadNativeAd(HashMap<String, String> paramsHash, NativeAdParams nativeParams) {
+        BaseInterstitialAdapter adapter = adapterForParams(paramsHash);
+        if (adapter == null) {
+            Log.i("MoPub", "Couldn't load native adapter. Trying next ad...");
+            interstitialFailed();
+            return;
+        }
         
+        mCurrentAdapter = adapter;
+        adapter.scheduleTimeout(getAdapterTimeout(adapter.mAdapterType));
+        adapter.init(this, nativeParams);
+        adapter.loadInterstitial();
+    }
+    
+    private void prefetchNativeAd(HashMap<String, String> paramsHash, 
+            NativeAdParams nativeParams) {
+        BaseInterstitialAdapter adapter = adapterForParams(paramsHash);
+        if (adapter == null) {
+            Log.i("MoPub", "Couldn't load native adapter. Trying next ad...");
+            interstitialFailed();
+            return;
+        }
+        
+        if (adapter.isPrefetchSupported()) {
+            // The adapter reports back through interstitialLoaded(), which caches it.
+            mCurrentAdapter = adapter;
+            adapter.scheduleTimeout(getAdapterTimeout(adapter.mAdapterType));
+            adapter.init(this, nativeParams);
+            adapter.loadInterstitial();
+        } else {
+            // This network shows its ad as soon as it loads, so only the MoPub response can be 
+            // cached. The network's own request will happen when the ad is shown.
+            PrefetchedAd ad = new PrefetchedAd();
+            ad.mParamsHash = paramsHash;
+            ad.mNativeParams = nativeParams;
+            cachePrefetchedAd(ad);
+        }
+    }
+    
+    private BaseInterstitialAdapter adapterForParams(HashMap<String, String> paramsHash) {
+        String type = paramsHash.get("X-Adtype");
+        if (type == null || !type.equals("interstitial")) return null;
+        
+        String interstitialType = paramsHash.get("X-Fulladtype");
+        Log.i("MoPub", "Loading native adapter for interstitial type: " + interstitialType);
+        return BaseInterstitialAdapter.getAdapterForType(interstitialType);
+    }
+    
+    private void cachePrefetchedAd(PrefetchedAd ad) {
+        mIsPrefetching = false;
+        ad.mLoadedAt = System.currentTimeMillis();
+        mPrefetchedAd = ad;
+        Log.d("MoPub", "Interstitial prefetched and ready to show.");
+        if (mListener != null) mListener.OnInterstitialLoaded();
+    }
+    
+    private void discardPrefetchedAd() {
+        if (mPrefetchedAd != null && mPrefetchedAd.mAdapter != null) {
+            mPrefetchedAd.mAdapter.invalidate();
+        }
+        mPrefetchedAd = null;
     }
-*/
+
     public void setListener(MoPubInterstitialListener listener) {
         mListener = listener;
     }
@@ -156,11 +297,22 @@ public class MoPubInterstitial {
     }
     
     protected void interstitialLoaded() {
+        if (mCurrentAdapter != null) mCurrentAdapter.cancelTimeout();
+        mInterstitialView.recordLoadOutcome(true);
+        if (mIsPrefetching) {
+            PrefetchedAd ad = new PrefetchedAd();
+            ad.mAdapter = mCurrentAdapter;
+            cachePrefetchedAd(ad);
+            return;
+        }
+        
         mInterstitialView.trackImpression();
         if (mListener != null) mListener.OnInterstitialLoaded();
+        if (mCurrentAdapter != null) mCurrentAdapter.showInterstitial();
     }
     
     protected void interstitialFailed() {
+        if (mCurrentAdapter != null) mCurrentAdapter.cancelTimeout();
         mInterstitialView.loadFailUrl();
     }
     
@@ -169,9 +321,44 @@ public class MoPubInterstitial {
     }
     
     public void destroy() {
+        discardPrefetchedAd();
+        if (mCurrentAdapter != null) mCurrentAdapter.invalidate();
         mInterstitialView.destroy();
     }
     
+    /*
+     * Sets how long a native interstitial adapter of the given type (e.g. "admob_full") may take 
+     * to load before the next ad is tried. Overrides BaseInterstitialAdapter.setDefaultTimeout().
+     */
+    public void setAdapterTimeout(String type, long milliseconds) {
+        mAdapterTimeouts.put(type, milliseconds);
+    }
+    
+    public long getAdapterTimeout(String type) {
+        Long timeout = mAdapterTimeouts.get(type);
+        return (timeout != null) ? timeout : BaseInterstitialAdapter.getDefaultTimeout(type);
+    }
+    
+    public void setPrefetchTtl(long milliseconds) {
+        mPrefetchTtlMilliseconds = milliseconds;
+    }
+    
+    public long getPrefetchTtl() {
+        return mPrefetchTtlMilliseconds;
+    }
+    
+    public int getPrefetchHitCount() {
+        return mPrefetchHitCount;
+    }
+    
+    public int getPrefetchMissCount() {
+        return mPrefetchMissCount;
+    }
+    
+    public int getPrefetchExpiredCount() {
+        return mPrefetchExpiredCount;
+    }
+    
     public void setLocationAwareness(LocationAwareness awareness) {
         mInterstitialView.setLocationAwareness(awareness);
     }
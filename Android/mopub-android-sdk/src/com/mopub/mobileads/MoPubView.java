@@ -39,12 +39,14 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.location.Location;
 import android.os.Build;
+import android.os.Handler;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.Gravity;
+import android.view.ViewGroup;
 import android.webkit.WebViewDatabase;
 import android.widget.FrameLayout;
 
-import org.apache.http.HttpResponse;
 
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
@@ -79,13 +81,43 @@ public class MoPubView extends FrameLayout {
     public static final String HOST = "ads.mopub.com";
     public static final String AD_HANDLER = "/m/ad";
     public static final int DEFAULT_LOCATION_PRECISION = 6;
+    public static final long DEFAULT_PRERENDER_LEAD_MILLISECONDS = 2000;
+    public static final int DEFAULT_MAX_SPECULATIVE_FAILOVER_DEPTH = 
+            AdRequestEngine.DEFAULT_MAX_SPECULATIVE_FAILOVER_DEPTH;
+    public static final int DEFAULT_MAX_SPECULATIVE_FAILOVER_BYTES = 
+            AdRequestEngine.DEFAULT_MAX_SPECULATIVE_FAILOVER_BYTES;
 
     protected AdView mAdView;
     protected BaseAdapter mAdapter;
     
+    // Off-screen ad view used for double-buffered refreshes. See setDoubleBufferingEnabled().
+    private AdView mBackAdView;
+    private boolean mIsDoubleBufferingEnabled;
+    private long mPrerenderLeadMilliseconds = DEFAULT_PRERENDER_LEAD_MILLISECONDS;
+    private long mBackLoadStartTime;
+    private long mBackLoadFinishTime;
+    private long mSwapDeadline;
+    private long mLastPrerenderTimeMilliseconds;
+    private long mLastSwapWaitMilliseconds;
+    private int mSwapCount;
+    private final Handler mSwapHandler = new Handler();
+    private final Runnable mSwapRunnable = new Runnable() {
+        public void run() {
+            swapInBackAdView();
+        }
+    };
+    
     private Context mContext;
     private BroadcastReceiver mScreenStateReceiver;
     private boolean mIsInForeground;
+    private boolean mIsClickPreResolutionEnabled;
+    private boolean mIsSpeculativeFailoverEnabled;
+    private boolean mIsAdaptiveTimeoutEnabled;
+    private long mAdapterStartTime;
+    private String mAdapterType;
+    private final HashMap<String, Long> mAdapterTimeouts = new HashMap<String, Long>();
+    private int mMaxSpeculativeFailoverDepth = DEFAULT_MAX_SPECULATIVE_FAILOVER_DEPTH;
+    private int mMaxSpeculativeFailoverBytes = DEFAULT_MAX_SPECULATIVE_FAILOVER_BYTES;
     private LocationAwareness mLocationAwareness;
     private int mLocationPrecision;
 
@@ -107,6 +139,9 @@ public class MoPubView extends FrameLayout {
         mLocationAwareness = LocationAwareness.LOCATION_AWARENESS_NORMAL;
         mLocationPrecision = DEFAULT_LOCATION_PRECISION;
         
+        // Load the native network adapters before the first waterfall step needs one.
+        AdapterRegistry.warmUpInBackground();
+        
         setHorizontalScrollBarEnabled(false);
         setVerticalScrollBarEnabled(false);
         
@@ -127,46 +162,69 @@ public class MoPubView extends FrameLayout {
     }
     
     private void initVersionDependentAdView(Context context) {
+        mAdView = createAdView(context);
+    }
+    
+    private AdView createAdView(Context context) {
+        AdView adView = AdViewPool.obtain(context, this);
+        return (adView != null) ? adView : newAdView(context, this);
+    }
+    
+    // Resolved once per process; looking the class up reflectively is slow on older devices.
+    private static Constructor<?> sHTML5AdViewConstructor;
+    private static boolean sHasLookedUpHTML5AdView;
+    
+    static AdView newAdView(Context context, MoPubView view) {
         int sdkVersion = (new Integer(Build.VERSION.SDK)).intValue();
-        if (sdkVersion < 7) {
-            mAdView = new AdView(context, this);
-        } else {
-            // On Android 2.1 (Eclair) and up, try to load our HTML5-enabled AdView class.
-            Class<?> HTML5AdViewClass = null;
-            try {
-                HTML5AdViewClass = (Class<?>) Class.forName("com.mopub.mobileads.HTML5AdView");
-            } catch (ClassNotFoundException e) {
-                mAdView = new AdView(context, this);
-                return;
-            } 
-
-            Class<?>[] parameterTypes = new Class[2];
-            parameterTypes[0] = Context.class;
-            parameterTypes[1] = MoPubView.class;
-
-            Object[] args = new Object[2];
-            args[0] = context;
-            args[1] = this;
-
-            try {
-                Constructor<?> constructor = HTML5AdViewClass.getConstructor(parameterTypes);
-                mAdView = (AdView) constructor.newInstance(args);
-            } catch (SecurityException e) {
-                Log.e("MoPub", "Could not load HTML5AdView.");
-            } catch (NoSuchMethodException e) {
-                Log.e("MoPub", "Could not load HTML5AdView.");
-            } catch (IllegalArgumentException e) {
-                Log.e("MoPub", "Could not load HTML5AdView.");
-            } catch (InstantiationException e) {
-                Log.e("MoPub", "Could not load HTML5AdView.");
-            } catch (IllegalAccessException e) {
-                Log.e("MoPub", "Could not load HTML5AdView.");
-            } catch (InvocationTargetException e) {
-                Log.e("MoPub", "Could not load HTML5AdView.");
-            }
+        if (sdkVersion < 7) return new AdView(context, view);
+        
+        // On Android 2.1 (Eclair) and up, try to load our HTML5-enabled AdView class.
+        Constructor<?> constructor = getHTML5AdViewConstructor();
+        if (constructor == null) return new AdView(context, view);
+
+        Object[] args = new Object[2];
+        args[0] = context;
+        args[1] = view;
+
+        AdView adView = null;
+        try {
+            adView = (AdView) constructor.newInstance(args);
+        } catch (IllegalArgumentException e) {
+            Log.e("MoPub", "Could not load HTML5AdView.");
+        } catch (InstantiationException e) {
+            Log.e("MoPub", "Could not load HTML5AdView.");
+        } catch (IllegalAccessException e) {
+            Log.e("MoPub", "Could not load HTML5AdView.");
+        } catch (InvocationTargetException e) {
+            Log.e("MoPub", "Could not load HTML5AdView.");
+        }
 
-            if (mAdView == null) mAdView = new AdView(context, this);
+        return (adView != null) ? adView : new AdView(context, view);
+    }
+    
+    private static synchronized Constructor<?> getHTML5AdViewConstructor() {
+        if (sHasLookedUpHTML5AdView) return sHTML5AdViewConstructor;
+        sHasLookedUpHTML5AdView = true;
+        
+        Class<?> HTML5AdViewClass = null;
+        try {
+            HTML5AdViewClass = (Class<?>) Class.forName("com.mopub.mobileads.HTML5AdView");
+        } catch (ClassNotFoundException e) {
+            return null;
+        } 
+
+        Class<?>[] parameterTypes = new Class[2];
+        parameterTypes[0] = Context.class;
+        parameterTypes[1] = MoPubView.class;
+
+        try {
+            sHTML5AdViewConstructor = HTML5AdViewClass.getConstructor(parameterTypes);
+        } catch (SecurityException e) {
+            Log.e("MoPub", "Could not load HTML5AdView.");
+        } catch (NoSuchMethodException e) {
+            Log.e("MoPub", "Could not load HTML5AdView.");
         }
+        return sHTML5AdViewConstructor;
     }
 
     private void registerScreenStateBroadcastReceiver() {
@@ -211,18 +269,141 @@ public class MoPubView extends FrameLayout {
      */
     public void destroy() {
         unregisterScreenStateBroadcastReceiver();
+        releaseBackAdView();
         
         if (mAdView != null) {
             mAdView.cleanup();
+            removeView(mAdView);
+            AdViewPool.recycle(mAdView);
             mAdView = null;
         }
     }
+    
+    /*
+     * Called when the refresh timer fires. With double buffering enabled and an HTML ad on 
+     * screen, the next ad is loaded into the off-screen ad view and swapped in once it has 
+     * finished rendering, so the visible ad never goes blank.
+     */
+    protected void refreshAd() {
+        if (mAdView == null) return;
+        
+        if (!mIsDoubleBufferingEnabled || mAdView.getParent() != this) {
+            mAdView.loadAd();
+            return;
+        }
+        
+        if (mBackAdView == null) mBackAdView = createAdView(mContext);
+        mBackAdView.setAdUnitId(mAdView.getAdUnitId());
+        mBackAdView.setKeywords(mAdView.getKeywords());
+        mBackAdView.setLocation(mAdView.getLocation());
+        mBackAdView.setTimeout(mAdView.getTimeout());
+        mBackAdView.setAutorefreshEnabled(false);
+        
+        // Keep the back view in the hierarchy (but invisible) so it is laid out and ready to be 
+        // drawn the moment it becomes visible.
+        mBackAdView.setVisibility(INVISIBLE);
+        if (mBackAdView.getParent() != this) {
+            if (mBackAdView.getParent() != null) {
+                ((ViewGroup) mBackAdView.getParent()).removeView(mBackAdView);
+            }
+            addView(mBackAdView, 0, new FrameLayout.LayoutParams(
+                    FrameLayout.LayoutParams.WRAP_CONTENT,
+                    FrameLayout.LayoutParams.WRAP_CONTENT,
+                    Gravity.CENTER));
+        }
+        
+        mBackLoadStartTime = System.currentTimeMillis();
+        mSwapDeadline = mBackLoadStartTime + getRefreshLeadTime();
+        mBackAdView.loadAd();
+    }
+    
+    /*
+     * How long before the refresh deadline the next ad should start loading.
+     */
+    protected long getRefreshLeadTime() {
+        if (!mIsDoubleBufferingEnabled || mAdView == null || mAdView.getParent() != this) return 0;
+        return mPrerenderLeadMilliseconds;
+    }
+    
+    protected boolean isBackAdView(AdView adView) {
+        return adView != null && adView == mBackAdView;
+    }
+    
+    protected void backAdViewDidLoad() {
+        mBackLoadFinishTime = System.currentTimeMillis();
+        mLastPrerenderTimeMilliseconds = mBackLoadFinishTime - mBackLoadStartTime;
+        
+        long delay = mSwapDeadline - mBackLoadFinishTime;
+        if (delay > 0) mSwapHandler.postDelayed(mSwapRunnable, delay);
+        else swapInBackAdView();
+    }
+    
+    protected void backAdViewDidFail() {
+        // Keep showing the current ad and try again at the next refresh.
+        if (mAdView != null) mAdView.scheduleRefreshTimerIfEnabled();
+        adFailed();
+    }
+    
+    private void swapInBackAdView() {
+        if (mAdView == null || mBackAdView == null) return;
+        
+        AdView oldAdView = mAdView;
+        AdView newAdView = mBackAdView;
+        
+        // Both views are already laid out, so flipping visibility swaps them within one frame 
+        // without a relayout.
+        newAdView.setVisibility(VISIBLE);
+        oldAdView.setVisibility(INVISIBLE);
+        oldAdView.clearView();
+        
+        mAdView = newAdView;
+        mBackAdView = oldAdView;
+        newAdView.setAutorefreshEnabled(oldAdView.getAutorefreshEnabled());
+        oldAdView.setAutorefreshEnabled(false);
+        if (mIsClickPreResolutionEnabled) newAdView.preResolveClick();
+        
+        mSwapCount++;
+        mLastSwapWaitMilliseconds = System.currentTimeMillis() - mBackLoadFinishTime;
+        Log.d("MoPub", "Swapped in pre-rendered ad (rendered in " + mLastPrerenderTimeMilliseconds 
+                + " ms, waited " + mLastSwapWaitMilliseconds + " ms).");
+        adLoaded();
+    }
+    
+    /*
+     * Makes the back ad view the current one without showing it. Used when the back view 
+     * receives a response that is not rendered in a WebView (e.g. a native network ad), since 
+     * adapters and failover always go through the current ad view. The promoted view stays 
+     * invisible until it renders an HTML ad itself (see AdView.adDidLoad()).
+     */
+    protected void promoteBackAdView() {
+        if (mAdView == null || mBackAdView == null) return;
+        
+        AdView oldAdView = mAdView;
+        mAdView = mBackAdView;
+        mBackAdView = oldAdView;
+        
+        mAdView.setAutorefreshEnabled(oldAdView.getAutorefreshEnabled());
+        mAdView.cancelRefreshTimer();
+        oldAdView.setAutorefreshEnabled(false);
+    }
+    
+    private void releaseBackAdView() {
+        mSwapHandler.removeCallbacks(mSwapRunnable);
+        if (mBackAdView == null) return;
+        
+        mBackAdView.cleanup();
+        removeView(mBackAdView);
+        mBackAdView.destroy();
+        mBackAdView = null;
+    }
 
     protected void loadFailUrl() {
+        if (mAdapter != null) mAdapter.cancelTimeout();
+        finishAdapterTiming(false);
         if (mAdView != null) mAdView.loadFailUrl();
     }
 
-    protected void loadNativeSDK(HashMap<String, String> paramsHash) {
+    protected void loadNativeSDK(HashMap<String, String> paramsHash, NativeAdParams nativeParams) {
         if (mAdapter != null) mAdapter.invalidate();
 
         String type = paramsHash.get("X-Adtype");
@@ -230,8 +411,10 @@ public class MoPubView extends FrameLayout {
 
         if (mAdapter != null) {
             Log.i("MoPub", "Loading native adapter for type: " + type);
-            String jsonParams = paramsHash.get("X-Nativeparams");
-            mAdapter.init(this, jsonParams);
+            mAdapterStartTime = AdLoadMetrics.isEnabled() ? System.nanoTime() : 0;
+            mAdapterType = type;
+            mAdapter.scheduleTimeout(getAdapterTimeout(type));
+            mAdapter.init(this, nativeParams);
             mAdapter.loadAd();
         } else {
             Log.i("MoPub", "Couldn't load native adapter. Trying next ad...");
@@ -239,6 +422,13 @@ public class MoPubView extends FrameLayout {
         }
     }
 
+    private void finishAdapterTiming(boolean success) {
+        if (mAdapterStartTime == 0) return;
+        long nanos = System.nanoTime() - mAdapterStartTime;
+        mAdapterStartTime = 0;
+        if (mAdView != null) mAdView.recordAdapterTiming(mAdapterType, nanos, success);
+    }
+
     protected void registerClick() {
         if (mAdView != null) {
             mAdView.registerClick();
@@ -248,6 +438,13 @@ public class MoPubView extends FrameLayout {
         }
     }
     
+    /*
+     * Gives subclasses a chance to rewrite an HTML creative before it is rendered.
+     */
+    protected String prepareHtmlForRendering(String html) {
+        return html;
+    }
+    
     protected void loadHtmlString(String html) {
         if (mAdView != null) mAdView.loadResponseString(html);
     }
@@ -280,10 +477,14 @@ public class MoPubView extends FrameLayout {
 
     protected void adLoaded() {
         Log.d("MoPub", "adLoaded");
+        
+        // The waterfall ended here, so any steps fetched ahead of it won't be needed.
+        if (mAdView != null) mAdView.discardSpeculativeLoads();
         if (mOnAdLoadedListener != null) mOnAdLoadedListener.OnAdLoaded(this);
     }
 
     protected void adFailed() {
+        if (mAdapter != null) mAdapter.cancelTimeout();
         if (mOnAdFailedListener != null) mOnAdFailedListener.OnAdFailed(this);
     }
 
@@ -295,8 +496,21 @@ public class MoPubView extends FrameLayout {
         if (mOnAdClickedListener != null) mOnAdClickedListener.OnAdClicked(this);
     }
     
+    /*
+     * Reports the outcome of a whole waterfall to the ad unit's circuit breaker and load metrics, 
+     * for ads that finish loading outside of the ad view (e.g. interstitial adapters).
+     */
+    void recordLoadOutcome(boolean success) {
+        if (mAdView != null) mAdView.recordLoadOutcome(success);
+    }
+    
     protected void nativeAdLoaded() {
-        if (mAdView != null) mAdView.scheduleRefreshTimerIfEnabled();
+        if (mAdapter != null) mAdapter.cancelTimeout();
+        finishAdapterTiming(true);
+        if (mAdView != null) {
+            mAdView.recordLoadOutcome(true);
+            mAdView.scheduleRefreshTimerIfEnabled();
+        }
         adLoaded();
     }
     
@@ -330,6 +544,28 @@ public class MoPubView extends FrameLayout {
         if (mAdView != null) mAdView.setTimeout(milliseconds);
     }
 
+    /*
+     * Returns the circuit breaker shared by every view using this view's ad unit ID, or null if 
+     * no ad unit ID is set. See AdUnitCircuitBreaker.
+     */
+    public AdUnitCircuitBreaker getCircuitBreaker() {
+        String adUnitId = (mAdView != null) ? mAdView.getAdUnitId() : null;
+        return (adUnitId != null) ? AdUnitCircuitBreaker.getInstance(adUnitId) : null;
+    }
+
+    /*
+     * Enables adaptive timeouts: each ad request's connect and read timeouts are derived from the 
+     * latency recently measured on the current type of connection (see AdaptiveTimeouts), instead 
+     * of the fixed value given to setTimeout(). Disabled by default.
+     */
+    public void setAdaptiveTimeoutEnabled(boolean enabled) {
+        mIsAdaptiveTimeoutEnabled = enabled;
+    }
+
+    public boolean getAdaptiveTimeoutEnabled() {
+        return mIsAdaptiveTimeoutEnabled;
+    }
+
     public int getAdWidth() {
         return (mAdView != null) ? mAdView.getAdWidth() : 0;
     }
@@ -338,7 +574,7 @@ public class MoPubView extends FrameLayout {
         return (mAdView != null) ? mAdView.getAdHeight() : 0;
     }
 
-    public HttpResponse getResponse() {
+    public AdResponse getResponse() {
         return (mAdView != null) ? mAdView.getResponse() : null;
     }
 
@@ -397,4 +633,118 @@ public class MoPubView extends FrameLayout {
     public void setAutorefreshEnabled(boolean enabled) {
         if (mAdView != null) mAdView.setAutorefreshEnabled(enabled);
     }
+    
+    /*
+     * Enables double-buffered refreshes: the next ad is fetched and rendered in a second, 
+     * off-screen ad view shortly before the refresh timer fires, then swapped in. This keeps a 
+     * second WebView alive for as long as it is enabled.
+     */
+    public void setDoubleBufferingEnabled(boolean enabled) {
+        mIsDoubleBufferingEnabled = enabled;
+        if (!enabled) releaseBackAdView();
+    }
+    
+    public boolean getDoubleBufferingEnabled() {
+        return mIsDoubleBufferingEnabled;
+    }
+    
+    /*
+     * Enables resolving the destination of a creative's click-through link in the background 
+     * once the creative is on screen, so that taps open the browser immediately. Only the link 
+     * the server marks as safe to request early (X-Preresolveurl) is resolved; if that link 
+     * passes through a click tracker anyway, the tracker will count a click for every 
+     * impression and see nothing on the actual tap, which gets only the MoPub click ping. 
+     * Disabled by default.
+     */
+    public void setClickPreResolutionEnabled(boolean enabled) {
+        mIsClickPreResolutionEnabled = enabled;
+    }
+    
+    public boolean getClickPreResolutionEnabled() {
+        return mIsClickPreResolutionEnabled;
+    }
+    
+    /*
+     * Enables speculative failover: whenever a response names a fail URL, the next step of the 
+     * waterfall is fetched in parallel and held, so that it can be used immediately if the current 
+     * step fails. It is discarded, untracked, if the current step succeeds. Costs an extra request 
+     * for most ads. Disabled by default.
+     */
+    public void setSpeculativeFailoverEnabled(boolean enabled) {
+        mIsSpeculativeFailoverEnabled = enabled;
+        if (!enabled && mAdView != null) mAdView.discardSpeculativeLoads();
+    }
+    
+    public boolean getSpeculativeFailoverEnabled() {
+        return mIsSpeculativeFailoverEnabled;
+    }
+    
+    /*
+     * Sets how many waterfall steps may be fetched ahead of the current one.
+     */
+    public void setMaxSpeculativeFailoverDepth(int depth) {
+        mMaxSpeculativeFailoverDepth = (depth >= 0) ? depth : 0;
+    }
+    
+    public int getMaxSpeculativeFailoverDepth() {
+        return mMaxSpeculativeFailoverDepth;
+    }
+    
+    /*
+     * Sets the largest response body a speculative fetch will download. Larger responses are 
+     * abandoned and fetched normally if they turn out to be needed.
+     */
+    public void setMaxSpeculativeFailoverBytes(int bytes) {
+        mMaxSpeculativeFailoverBytes = (bytes > 0) ? bytes : 0;
+    }
+    
+    public int getMaxSpeculativeFailoverBytes() {
+        return mMaxSpeculativeFailoverBytes;
+    }
+    
+    /*
+     * Sets how long a native adapter of the given type (e.g. "admob_native") may take to load 
+     * before this ad unit moves on to the next ad. Overrides BaseAdapter.setDefaultTimeout().
+     */
+    public void setAdapterTimeout(String type, long milliseconds) {
+        mAdapterTimeouts.put(type, milliseconds);
+    }
+    
+    public long getAdapterTimeout(String type) {
+        Long timeout = mAdapterTimeouts.get(type);
+        return (timeout != null) ? timeout : BaseAdapter.getDefaultTimeout(type);
+    }
+    
+    public void setPrerenderLead(long milliseconds) {
+        mPrerenderLeadMilliseconds = (milliseconds >= 0) ? milliseconds : 0;
+    }
+    
+    public long getPrerenderLead() {
+        return mPrerenderLeadMilliseconds;
+    }
+    
+    /*
+     * Number of ad views (and therefore WebViews) currently held by this MoPubView.
+     */
+    public int getAdViewCount() {
+        return ((mAdView != null) ? 1 : 0) + ((mBackAdView != null) ? 1 : 0);
+    }
+    
+    public int getSwapCount() {
+        return mSwapCount;
+    }
+    
+    /*
+     * Time from the start of the last off-screen load until its creative finished rendering.
+     */
+    public long getLastPrerenderTime() {
+        return mLastPrerenderTimeMilliseconds;
+    }
+    
+    /*
+     * Time the last pre-rendered ad waited for the refresh deadline before being swapped in.
+     */
+    public long getLastSwapWaitTime() {
+        return mLastSwapWaitMilliseconds;
+    }
 }
\ No newline at end of file
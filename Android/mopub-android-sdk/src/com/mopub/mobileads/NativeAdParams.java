@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Parsed form of the X-Nativeparams header handed to native adapters. The keys every network 
+ * uses are exposed directly; anything else can be read through the generic getters. Instances 
+ * are immutable, and since the same few creatives tend to be served over and over, parsed 
+ * params are cached by their raw JSON string.
+ */
+public class NativeAdParams {
+    private static final int CACHE_SIZE = 16;
+
+    private static final LinkedHashMap<String, NativeAdParams> sCache = 
+            new LinkedHashMap<String, NativeAdParams>(CACHE_SIZE, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, NativeAdParams> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private final String mRawParams;
+    // Never exposed, so never modified after parsing.
+    private final JSONObject mJsonObject;
+    private final String mAdUnitId;
+    private final double mAdWidth;
+    private final double mAdHeight;
+
+    private NativeAdParams(String rawParams, JSONObject jsonObject) {
+        mRawParams = rawParams;
+        mJsonObject = jsonObject;
+        mAdUnitId = jsonObject.optString("adUnitID", null);
+        mAdWidth = jsonObject.optDouble("adWidth");
+        mAdHeight = jsonObject.optDouble("adHeight");
+    }
+
+    /*
+     * Parses an X-Nativeparams value, or returns the cached result of parsing an identical one. 
+     * Throws JSONException if it isn't a JSON object.
+     */
+    public static NativeAdParams parse(String rawParams) throws JSONException {
+        if (rawParams == null) throw new JSONException("No native params.");
+
+        synchronized (sCache) {
+            NativeAdParams cached = sCache.get(rawParams);
+            if (cached != null) return cached;
+        }
+
+        Object value = new JSONTokener(rawParams).nextValue();
+        if (!(value instanceof JSONObject)) {
+            throw new JSONException("Native params are not a JSON object: " + rawParams);
+        }
+        NativeAdParams params = new NativeAdParams(rawParams, (JSONObject) value);
+
+        synchronized (sCache) {
+            sCache.put(rawParams, params);
+        }
+        return params;
+    }
+
+    public String getRawParams() {
+        return mRawParams;
+    }
+
+    /*
+     * The network's own ad unit / publisher ID ("adUnitID"), or null if absent.
+     */
+    public String getAdUnitId() {
+        return mAdUnitId;
+    }
+
+    public boolean hasAdSize() {
+        return !Double.isNaN(mAdWidth) && !Double.isNaN(mAdHeight);
+    }
+
+    /*
+     * "adWidth", or NaN if absent.
+     */
+    public double getAdWidth() {
+        return mAdWidth;
+    }
+
+    /*
+     * "adHeight", or NaN if absent.
+     */
+    public double getAdHeight() {
+        return mAdHeight;
+    }
+
+    public boolean has(String key) {
+        return mJsonObject.has(key);
+    }
+
+    public String getString(String key, String fallback) {
+        return mJsonObject.optString(key, fallback);
+    }
+
+    public double getDouble(String key, double fallback) {
+        return mJsonObject.optDouble(key, fallback);
+    }
+
+    public int getInt(String key, int fallback) {
+        return mJsonObject.optInt(key, fallback);
+    }
+
+    public boolean getBoolean(String key, boolean fallback) {
+        return mJsonObject.optBoolean(key, fallback);
+    }
+
+    @Override
+    public String toString() {
+        return mRawParams;
+    }
+}
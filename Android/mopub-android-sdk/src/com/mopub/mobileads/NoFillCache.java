@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Remembers, for a short while, which requests the ad server answered with "clear" (no ad), so 
+ * that the same request isn't sent again while it would almost certainly come back empty.
+ * 
+ * Requests are considered the same when they are for the same ad unit with the same keywords 
+ * from roughly the same place (coordinates rounded to one decimal, about 11 km). An entry lasts 
+ * as long as the response's Retry-After header asks, capped at the maximum TTL, or for the 
+ * default TTL if it has none.
+ * 
+ * All methods are thread-safe.
+ */
+public class NoFillCache {
+    public static final long DEFAULT_TTL_MILLISECONDS = 60000;
+    public static final long DEFAULT_MAX_TTL_MILLISECONDS = 10 * 60000;
+    private static final int MAX_ENTRIES = 64;
+    
+    private static NoFillCache sInstance;
+    
+    // Expiry times, least recently stored first.
+    private final LinkedHashMap<String, Long> mExpiryTimes = new LinkedHashMap<String, Long>();
+    private final HashMap<String, Long> mHitCounts = new HashMap<String, Long>();
+    private boolean mIsEnabled = true;
+    private long mDefaultTtlMilliseconds = DEFAULT_TTL_MILLISECONDS;
+    private long mMaxTtlMilliseconds = DEFAULT_MAX_TTL_MILLISECONDS;
+    private long mLookupCount;
+    private long mHitCount;
+    private long mStoreCount;
+    
+    public static synchronized NoFillCache getInstance() {
+        if (sInstance == null) sInstance = new NoFillCache();
+        return sInstance;
+    }
+    
+    NoFillCache() {
+    }
+    
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+    
+    /*
+     * Builds the key identifying a request's targeting inputs. Any of the arguments may be null.
+     */
+    public static String getKey(String adUnitId, String keywords, Double latitude, 
+            Double longitude) {
+        StringBuilder key = new StringBuilder();
+        key.append(adUnitId).append('|');
+        if (keywords != null) key.append(keywords);
+        key.append('|');
+        if (latitude != null && longitude != null) {
+            key.append(Math.round(latitude * 10)).append(',').append(Math.round(longitude * 10));
+        }
+        return key.toString();
+    }
+    
+    /*
+     * Returns whether a request with this key recently came back empty. A true result counts 
+     * as a request saved.
+     */
+    public synchronized boolean isNoFill(String key) {
+        if (!mIsEnabled || key == null) return false;
+        
+        mLookupCount++;
+        Long expiryTime = mExpiryTimes.get(key);
+        if (expiryTime == null) return false;
+        if (now() >= expiryTime) {
+            mExpiryTimes.remove(key);
+            return false;
+        }
+        
+        mHitCount++;
+        String adUnitId = key.substring(0, key.indexOf('|'));
+        Long hits = mHitCounts.get(adUnitId);
+        mHitCounts.put(adUnitId, (hits != null) ? hits + 1 : 1);
+        return true;
+    }
+    
+    /*
+     * Records that a request with this key came back empty. retryAfterMilliseconds is the 
+     * server's hint, or -1 if there was none.
+     */
+    public synchronized void putNoFill(String key, long retryAfterMilliseconds) {
+        if (!mIsEnabled || key == null) return;
+        
+        long ttl = (retryAfterMilliseconds >= 0) ? 
+                Math.min(retryAfterMilliseconds, mMaxTtlMilliseconds) : mDefaultTtlMilliseconds;
+        if (ttl <= 0) return;
+        
+        mExpiryTimes.remove(key);
+        mExpiryTimes.put(key, now() + ttl);
+        mStoreCount++;
+        
+        if (mExpiryTimes.size() > MAX_ENTRIES) {
+            Iterator<String> oldest = mExpiryTimes.keySet().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+    }
+    
+    /*
+     * Forgets that a request came back empty, e.g. because one with the same key just filled.
+     */
+    public synchronized void remove(String key) {
+        if (key != null) mExpiryTimes.remove(key);
+    }
+    
+    public synchronized void clear() {
+        mExpiryTimes.clear();
+    }
+    
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+    
+    public synchronized void setEnabled(boolean enabled) {
+        mIsEnabled = enabled;
+        if (!enabled) mExpiryTimes.clear();
+    }
+    
+    public synchronized boolean isEnabled() {
+        return mIsEnabled;
+    }
+    
+    /*
+     * How long to remember an empty response that came without a Retry-After header.
+     */
+    public synchronized void setDefaultTtl(long milliseconds) {
+        mDefaultTtlMilliseconds = (milliseconds > 0) ? milliseconds : 0;
+    }
+    
+    public synchronized long getDefaultTtl() {
+        return mDefaultTtlMilliseconds;
+    }
+    
+    /*
+     * The longest a Retry-After header can make an empty response be remembered.
+     */
+    public synchronized void setMaxTtl(long milliseconds) {
+        mMaxTtlMilliseconds = (milliseconds > 0) ? milliseconds : 0;
+    }
+    
+    public synchronized long getMaxTtl() {
+        return mMaxTtlMilliseconds;
+    }
+    
+    /*
+     * Number of ad requests checked against the cache.
+     */
+    public synchronized long getLookupCount() {
+        return mLookupCount;
+    }
+    
+    /*
+     * Number of ad requests that were skipped because they were cached as empty.
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+    
+    public synchronized long getHitCount(String adUnitId) {
+        Long hits = mHitCounts.get(adUnitId);
+        return (hits != null) ? hits : 0;
+    }
+    
+    /*
+     * Skipped requests per ad unit ID.
+     */
+    public synchronized Map<String, Long> getHitCounts() {
+        return new HashMap<String, Long>(mHitCounts);
+    }
+    
+    /*
+     * Number of empty responses recorded.
+     */
+    public synchronized long getStoreCount() {
+        return mStoreCount;
+    }
+    
+    public synchronized int size() {
+        return mExpiryTimes.size();
+    }
+}
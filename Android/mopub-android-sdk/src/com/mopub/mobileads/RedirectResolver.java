@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Follows a click URL's redirect chain to its final destination without downloading any bodies. 
+ * Each hop is a HEAD request (falling back to a GET, aborted once its headers arrive, for servers 
+ * that reject HEAD) over the shared, pooled HttpClient with automatic redirects turned off. The 
+ * chain is cut short as soon as a Location with a non-HTTP scheme (e.g. market://) shows up, and 
+ * is bounded by a maximum hop count, a per-hop timeout and an overall deadline.
+ * 
+ * resolve() blocks and must not be called on the main thread.
+ */
+public class RedirectResolver {
+    public static final int DEFAULT_MAX_HOPS = 10;
+    public static final int DEFAULT_HOP_TIMEOUT_MILLISECONDS = 5000;
+    public static final int DEFAULT_TOTAL_TIMEOUT_MILLISECONDS = 10000;
+
+    private final HttpClient mHttpClient;
+    private int mMaxHops = DEFAULT_MAX_HOPS;
+    private int mHopTimeoutMilliseconds = DEFAULT_HOP_TIMEOUT_MILLISECONDS;
+    private int mTotalTimeoutMilliseconds = DEFAULT_TOTAL_TIMEOUT_MILLISECONDS;
+
+    public RedirectResolver() {
+        this(null);
+    }
+
+    /*
+     * Uses the given client instead of the shared one.
+     */
+    public RedirectResolver(HttpClient httpClient) {
+        mHttpClient = httpClient;
+    }
+
+    /*
+     * A single request in a redirect chain.
+     */
+    public static class Hop {
+        public final String mUrl;
+        public final String mMethod;
+        public final int mStatusCode;
+        public final long mLatencyMilliseconds;
+
+        Hop(String url, String method, int statusCode, long latencyMilliseconds) {
+            mUrl = url;
+            mMethod = method;
+            mStatusCode = statusCode;
+            mLatencyMilliseconds = latencyMilliseconds;
+        }
+    }
+
+    public static class Result {
+        public static final int STATUS_RESOLVED = 0;
+        public static final int STATUS_NON_HTTP_SCHEME = 1;
+        public static final int STATUS_CYCLE = 2;
+        public static final int STATUS_TOO_MANY_HOPS = 3;
+        public static final int STATUS_TIMED_OUT = 4;
+        public static final int STATUS_ERROR = 5;
+
+        private final String mUrl;
+        private final int mStatus;
+        private final List<Hop> mHops;
+
+        Result(String url, int status, List<Hop> hops) {
+            mUrl = url;
+            mStatus = status;
+            mHops = Collections.unmodifiableList(hops);
+        }
+
+        /*
+         * The destination to open: the end of the chain, or the last URL reached if resolution 
+         * was cut short. "" if there is nothing sensible to open (e.g. a redirect cycle).
+         */
+        public String getUrl() {
+            return mUrl;
+        }
+
+        public int getStatus() {
+            return mStatus;
+        }
+
+        public List<Hop> getHops() {
+            return mHops;
+        }
+
+        public long getTotalLatency() {
+            long total = 0;
+            for (int i = 0; i < mHops.size(); i++) total += mHops.get(i).mLatencyMilliseconds;
+            return total;
+        }
+    }
+
+    public Result resolve(String startingUrl, String userAgent) {
+        List<Hop> hops = new ArrayList<Hop>(4);
+        if (startingUrl == null) return new Result("", Result.STATUS_ERROR, hops);
+        if (!isHttpUrl(startingUrl)) {
+            // Could still be a "valid" URL with a custom scheme; let the system handle it.
+            return new Result(startingUrl, Result.STATUS_NON_HTTP_SCHEME, hops);
+        }
+
+        long deadline = System.currentTimeMillis() + mTotalTimeoutMilliseconds;
+        Set<String> visited = new HashSet<String>();
+        visited.add(startingUrl);
+        String url = startingUrl;
+
+        HttpClient client = (mHttpClient != null) ? mHttpClient : MoPubHttpClient.getHttpClient();
+
+        for (int hopCount = 0; hopCount < mMaxHops; hopCount++) {
+            String location;
+            try {
+                location = nextLocation(client, url, userAgent, deadline, hops);
+            } catch (DeadlineExceededException e) {
+                return new Result(url, Result.STATUS_TIMED_OUT, hops);
+            } catch (IOException e) {
+                // The last URL we tried to reach could still be "valid" in the browser.
+                return new Result(url, Result.STATUS_ERROR, hops);
+            }
+
+            // Not a redirect: this is the destination.
+            if (location == null) return new Result(url, Result.STATUS_RESOLVED, hops);
+
+            if (!isHttpUrl(location)) {
+                return new Result(location, Result.STATUS_NON_HTTP_SCHEME, hops);
+            }
+
+            if (!visited.add(location)) return new Result("", Result.STATUS_CYCLE, hops);
+            url = location;
+        }
+
+        return new Result(url, Result.STATUS_TOO_MANY_HOPS, hops);
+    }
+
+    /*
+     * Requests a URL and returns the absolute target of its redirect, or null if it isn't one.
+     */
+    private String nextLocation(HttpClient client, String url, String userAgent, long deadline, 
+            List<Hop> hops) throws IOException {
+        HttpResponse response = execute(client, new HttpHead(url), userAgent, deadline, hops);
+        int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode >= 400) {
+            // Plenty of trackers don't implement HEAD; ask again with a GET.
+            response = execute(client, new HttpGet(url), userAgent, deadline, hops);
+            statusCode = response.getStatusLine().getStatusCode();
+        }
+
+        if (!isStatusCodeForRedirection(statusCode)) return null;
+
+        Header header = response.getFirstHeader("Location");
+        if (header == null) return null;
+        String location = header.getValue().trim();
+        try {
+            return URI.create(url).resolve(location).toString();
+        } catch (IllegalArgumentException e) {
+            // Not something URI can parse (e.g. an unescaped custom-scheme URL); pass it through.
+            return location;
+        }
+    }
+
+    private HttpResponse execute(HttpClient client, HttpRequestBase request, String userAgent, 
+            long deadline, List<Hop> hops) throws IOException {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) throw new DeadlineExceededException();
+        int timeout = (int) Math.min(mHopTimeoutMilliseconds, remaining);
+
+        HttpParams params = request.getParams();
+        HttpClientParams.setRedirecting(params, false);
+        HttpConnectionParams.setConnectionTimeout(params, timeout);
+        HttpConnectionParams.setSoTimeout(params, timeout);
+        if (userAgent != null) request.addHeader("User-Agent", userAgent);
+
+        long start = System.currentTimeMillis();
+        HttpResponse response;
+        try {
+            response = client.execute(request);
+        } catch (IOException e) {
+            request.abort();
+            hops.add(new Hop(request.getURI().toString(), request.getMethod(), -1, 
+                    System.currentTimeMillis() - start));
+            if (System.currentTimeMillis() >= deadline) throw new DeadlineExceededException();
+            throw e;
+        }
+        hops.add(new Hop(request.getURI().toString(), request.getMethod(), 
+                response.getStatusLine().getStatusCode(), System.currentTimeMillis() - start));
+
+        // Only the headers matter. A HEAD response has no body, so its connection goes straight 
+        // back to the pool; a GET's body is dropped along with its connection.
+        if (request instanceof HttpHead) {
+            HttpEntity entity = response.getEntity();
+            if (entity != null) entity.consumeContent();
+        } else {
+            request.abort();
+        }
+        return response;
+    }
+
+    private static boolean isHttpUrl(String url) {
+        return url.regionMatches(true, 0, "http://", 0, 7) || 
+                url.regionMatches(true, 0, "https://", 0, 8);
+    }
+
+    private static boolean isStatusCodeForRedirection(int statusCode) {
+        return (statusCode == HttpStatus.SC_MOVED_TEMPORARILY ||
+                statusCode == HttpStatus.SC_MOVED_PERMANENTLY ||
+                statusCode == HttpStatus.SC_TEMPORARY_REDIRECT ||
+                statusCode == HttpStatus.SC_SEE_OTHER);
+    }
+
+    private static class DeadlineExceededException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    public void setMaxHops(int maxHops) {
+        mMaxHops = (maxHops > 0) ? maxHops : 1;
+    }
+
+    public int getMaxHops() {
+        return mMaxHops;
+    }
+
+    public void setHopTimeout(int milliseconds) {
+        mHopTimeoutMilliseconds = milliseconds;
+    }
+
+    public int getHopTimeout() {
+        return mHopTimeoutMilliseconds;
+    }
+
+    public void setTotalTimeout(int milliseconds) {
+        mTotalTimeoutMilliseconds = milliseconds;
+    }
+
+    public int getTotalTimeout() {
+        return mTotalTimeoutMilliseconds;
+    }
+}
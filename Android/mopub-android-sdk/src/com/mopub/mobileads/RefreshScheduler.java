@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * Process-wide timer for ad refreshes. Rather than each ad view waking up on its own schedule, 
+ * refreshes that fall due within the alignment window of one another are fired together, so that 
+ * several banners on screen share a single radio wake-up.
+ * 
+ * A refresh is never fired before it is due (so X-Refreshtime and the minimum refresh time are 
+ * always honored); it may only be held back by up to the alignment window to join a batch. Ad 
+ * views cancel their refresh when autorefresh is disabled, e.g. when they leave the foreground.
+ * 
+ * Must be used from the main thread.
+ */
+public class RefreshScheduler implements AdRequestEngine.Scheduler {
+    public static final long DEFAULT_ALIGNMENT_WINDOW_MILLISECONDS = 3000;
+
+    private static RefreshScheduler sInstance;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<Batch> mBatches = new ArrayList<Batch>();
+    private final HashMap<Runnable, Batch> mBatchForTask = new HashMap<Runnable, Batch>();
+    private long mAlignmentWindowMilliseconds = DEFAULT_ALIGNMENT_WINDOW_MILLISECONDS;
+    private int mRefreshCount;
+    private int mCoalescedRefreshCount;
+
+    /*
+     * Refreshes that will be fired together.
+     */
+    private class Batch implements Runnable {
+        long mFireTime;
+        // The latest time the batch can fire without delaying any member by more than the window.
+        long mLatestFireTime = Long.MAX_VALUE;
+        final ArrayList<Runnable> mTasks = new ArrayList<Runnable>(2);
+
+        public void run() {
+            fire(this);
+        }
+    }
+
+    public static synchronized RefreshScheduler getInstance() {
+        if (sInstance == null) sInstance = new RefreshScheduler();
+        return sInstance;
+    }
+
+    private RefreshScheduler() {
+    }
+
+    /*
+     * Runs the refresh task after at least the given delay, replacing any pending schedule for it.
+     */
+    public void schedule(Runnable task, long delayMilliseconds) {
+        cancel(task);
+
+        long due = SystemClock.uptimeMillis() + Math.max(delayMilliseconds, 0);
+        long latest = due + mAlignmentWindowMilliseconds;
+
+        // Prefer a batch that already fires inside this task's window; failing that, one firing 
+        // a little earlier that can be pushed back to this task's due time.
+        Batch target = null;
+        boolean needsMove = false;
+        for (int i = 0; i < mBatches.size(); i++) {
+            Batch batch = mBatches.get(i);
+            if (batch.mFireTime >= due && batch.mFireTime <= latest) {
+                if (target == null || needsMove || batch.mFireTime < target.mFireTime) {
+                    target = batch;
+                    needsMove = false;
+                }
+            } else if (batch.mFireTime < due && batch.mLatestFireTime >= due && target == null) {
+                target = batch;
+                needsMove = true;
+            }
+        }
+
+        if (target == null) {
+            target = new Batch();
+            target.mFireTime = due;
+            mBatches.add(target);
+            mHandler.postAtTime(target, due);
+        } else if (needsMove) {
+            target.mFireTime = due;
+            mHandler.removeCallbacks(target);
+            mHandler.postAtTime(target, due);
+        }
+
+        target.mTasks.add(task);
+        target.mLatestFireTime = Math.min(target.mLatestFireTime, latest);
+        mBatchForTask.put(task, target);
+    }
+
+    public void cancel(Runnable task) {
+        Batch batch = mBatchForTask.remove(task);
+        if (batch == null) return;
+
+        batch.mTasks.remove(task);
+        if (batch.mTasks.isEmpty()) {
+            mHandler.removeCallbacks(batch);
+            mBatches.remove(batch);
+        }
+        // The remaining members' windows still bound mLatestFireTime, so leaving it is safe.
+    }
+
+    private void fire(Batch batch) {
+        mBatches.remove(batch);
+        ArrayList<Runnable> tasks = new ArrayList<Runnable>(batch.mTasks);
+        for (int i = 0; i < tasks.size(); i++) mBatchForTask.remove(tasks.get(i));
+
+        mRefreshCount += tasks.size();
+        mCoalescedRefreshCount += tasks.size() - 1;
+        for (int i = 0; i < tasks.size(); i++) tasks.get(i).run();
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /*
+     * Sets how long a refresh may be held back so it can go out together with others.
+     */
+    public void setAlignmentWindow(long milliseconds) {
+        mAlignmentWindowMilliseconds = (milliseconds >= 0) ? milliseconds : 0;
+    }
+
+    public long getAlignmentWindow() {
+        return mAlignmentWindowMilliseconds;
+    }
+
+    public int getPendingRefreshCount() {
+        return mBatchForTask.size();
+    }
+
+    public int getRefreshCount() {
+        return mRefreshCount;
+    }
+
+    /*
+     * Number of refreshes that shared a wake-up with an earlier refresh in the same batch.
+     */
+    public int getCoalescedRefreshCount() {
+        return mCoalescedRefreshCount;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/*
+ * Reads an HTTP response body into a String. The body is decoded as a stream using the charset 
+ * from the Content-Type header (UTF-8 if none is given), so multi-byte characters are never 
+ * split across read boundaries. The output buffer is pre-sized from Content-Length, read 
+ * buffers are pooled, and reading stops with an IOException once the body exceeds the maximum 
+ * size, which protects low-memory devices from oversized creatives.
+ * 
+ * If reading fails, the content stream is left open and the request should be aborted.
+ */
+public class ResponseBodyReader {
+    public static final int DEFAULT_MAX_BODY_SIZE = 512 * 1024;
+    public static final String DEFAULT_CHARSET = "UTF-8";
+    private static final int BUFFER_SIZE = 4096;
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    private static final ArrayList<char[]> sBufferPool = new ArrayList<char[]>(MAX_POOLED_BUFFERS);
+    private static volatile int sMaxBodySize = DEFAULT_MAX_BODY_SIZE;
+
+    private ResponseBodyReader() {}
+
+    public static String readBody(HttpEntity entity) throws IOException {
+        return readBody(entity, sMaxBodySize);
+    }
+
+    public static String readBody(HttpEntity entity, int maxBytes) throws IOException {
+        long contentLength = entity.getContentLength();
+        if (contentLength > maxBytes) throw new BodyTooLargeException(maxBytes);
+
+        Charset charset = charsetForEntity(entity);
+        InputStream stream = entity.getContent();
+        if (stream == null) return "";
+
+        // Decoded text is never longer (in chars) than the encoded body is in bytes.
+        int capacity = (contentLength > 0) ? (int) contentLength : BUFFER_SIZE;
+        StringBuilder out = new StringBuilder(capacity);
+
+        Reader reader = new InputStreamReader(new BoundedInputStream(stream, maxBytes), charset);
+        char[] buffer = obtainBuffer();
+        try {
+            for (int n; (n = reader.read(buffer)) != -1;) {
+                out.append(buffer, 0, n);
+            }
+        } finally {
+            releaseBuffer(buffer);
+        }
+        
+        // Only close once the body has been read in full. Closing a managed stream early would 
+        // drain the rest of it in order to reuse the connection; on failure the caller should 
+        // abort the request instead.
+        reader.close();
+        return out.toString();
+    }
+
+    static Charset charsetForEntity(HttpEntity entity) {
+        String name = null;
+        try {
+            name = EntityUtils.getContentCharSet(entity);
+        } catch (RuntimeException e) {
+            // Malformed Content-Type header; fall back to the default.
+        }
+
+        if (name != null) {
+            try {
+                return Charset.forName(name);
+            } catch (RuntimeException e) {
+                // Illegal or unsupported charset name; fall back to the default.
+            }
+        }
+        return Charset.forName(DEFAULT_CHARSET);
+    }
+
+    private static char[] obtainBuffer() {
+        synchronized (sBufferPool) {
+            int size = sBufferPool.size();
+            if (size > 0) return sBufferPool.remove(size - 1);
+        }
+        return new char[BUFFER_SIZE];
+    }
+
+    private static void releaseBuffer(char[] buffer) {
+        synchronized (sBufferPool) {
+            if (sBufferPool.size() < MAX_POOLED_BUFFERS) sBufferPool.add(buffer);
+        }
+    }
+
+    public static void setMaxBodySize(int maxBytes) {
+        sMaxBodySize = (maxBytes > 0) ? maxBytes : DEFAULT_MAX_BODY_SIZE;
+    }
+
+    public static int getMaxBodySize() {
+        return sMaxBodySize;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    public static class BodyTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public BodyTooLargeException(int maxBytes) {
+            super("Response body exceeds the maximum size of " + maxBytes + " bytes.");
+        }
+    }
+
+    /*
+     * Fails as soon as more than the allowed number of bytes has been read.
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+        private final int mMaxBytes;
+        private int mBytesRead;
+
+        BoundedInputStream(InputStream in, int maxBytes) {
+            super(in);
+            mMaxBytes = maxBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) count(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) count(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            if (skipped > 0) count((int) skipped);
+            return skipped;
+        }
+
+        private void count(int n) throws IOException {
+            mBytesRead += n;
+            if (mBytesRead > mMaxBytes) throw new BodyTooLargeException(mMaxBytes);
+        }
+    }
+}
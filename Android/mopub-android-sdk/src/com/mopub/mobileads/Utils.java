@@ -36,6 +36,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class Utils {
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
 	public static String sha1(String s) {
 		try { 
@@ -43,13 +44,14 @@ public class Utils {
 			digest.update(s.getBytes());
 			byte messageDigest[] = digest.digest();
 			
-			StringBuffer hexString = new StringBuffer();
+			char[] hexChars = new char[messageDigest.length * 2];
 			for (int i = 0; i < messageDigest.length; i++) {
-				hexString.append(Integer.toHexString((0xFF & messageDigest[i]) | 0x100).substring(1));
+				hexChars[2 * i] = HEX_DIGITS[(messageDigest[i] >> 4) & 0x0F];
+				hexChars[2 * i + 1] = HEX_DIGITS[messageDigest[i] & 0x0F];
 			}
-			return hexString.toString();
+			return new String(hexChars);
 		} catch (NoSuchAlgorithmException e) {
 			return "";
 		}
 	}
-}
\ No newline at end of file
+}
@@ -1,11 +1,13 @@
 package com.mopub.simpleadsdemo;
 
 import com.mopub.mobileads.MoPubView;
+import com.mopub.mobileads.MoPubView.OnAdLoadedListener;
 import com.mopub.simpleadsdemo.R;
 
 import android.app.Activity;
 import android.content.Context;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.inputmethod.InputMethodManager;
@@ -29,6 +31,14 @@ public class BannersTab extends Activity {
 
         mBanner = (MoPubView) findViewById(R.id.bannerview);
         mBanner.setAdUnitId(SimpleAdsDemoConstants.PUB_ID_320x50);
+        // Refreshes load into an off-screen view first. Whatever kind of ad arrives (HTML, native 
+        // or custom, in any order), the banner must end up showing it.
+        mBanner.setDoubleBufferingEnabled(true);
+        mBanner.setOnAdLoadedListener(new OnAdLoadedListener() {
+            public void OnAdLoaded(MoPubView m) {
+                if (!hasVisibleChild(m)) Log.w("MoPub", "Banner loaded an ad but shows nothing.");
+            }
+        });
         mBanner.loadAd();
 
         mSearchText = (EditText) findViewById(R.id.searchtext);
@@ -47,6 +57,13 @@ public class BannersTab extends Activity {
         });
     }
     
+    private static boolean hasVisibleChild(MoPubView view) {
+        for (int i = 0; i < view.getChildCount(); i++) {
+            if (view.getChildAt(i).getVisibility() == View.VISIBLE) return true;
+        }
+        return false;
+    }
+
     @Override
     protected void onDestroy() {
         mBanner.destroy();
@@ -1,5 +1,6 @@
 package com.mopub.simpleadsdemo;
 
+import com.mopub.mobileads.AdResponse;
 import com.mopub.mobileads.MoPubView;
 import com.mopub.simpleadsdemo.R;
 import com.mopub.mobileads.MoPubView.OnAdFailedListener;
@@ -17,10 +18,7 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.TextView;
 
-import org.apache.http.Header;
-import org.apache.http.HeaderIterator;
-import org.apache.http.HttpResponse;
-import org.apache.http.StatusLine;
+import java.util.Map;
 
 public class ConsoleTab extends Activity {
     private MoPubView mBanner;
@@ -80,18 +78,13 @@ public class ConsoleTab extends Activity {
 
     private void printHeaders(MoPubView a) {
         outputLine("Server response received: {");
-        HttpResponse response = a.getResponse();
+        AdResponse response = a.getResponse();
         if (response != null) {
-            StatusLine sl = response.getStatusLine();
-            if (sl != null) {
-                outputLine("  Status code: "+sl.getStatusCode()+" "+sl.getReasonPhrase());
-                HeaderIterator hi = response.headerIterator();
-                while (hi.hasNext()) {
-                    Header h = hi.nextHeader();
-                    outputLine("  \""+h.getName()+"\" = \""+h.getValue()+"\";");
-                }
-                outputLine("}");
+            outputLine("  Status code: "+response.getStatusCode());
+            for (Map.Entry<String, String> h : response.getHeaders().entrySet()) {
+                outputLine("  \""+h.getKey()+"\" = \""+h.getValue()+"\";");
             }
+            outputLine("}");
         }
     }
     
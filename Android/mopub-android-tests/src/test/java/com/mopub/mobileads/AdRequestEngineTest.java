@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/*
+ * Whole ad loads through AdRequestEngine, with FakeHttpClient as the ad server. Requests and 
+ * callbacks run synchronously on the test thread.
+ */
+public class AdRequestEngineTest {
+    private static final String FAIL_URL = "http://ads.test/m/ad?failover=1";
+
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static int sAdUnitCount;
+
+    private FakeHttpClient mHttpClient;
+    private AdRequestEngine mEngine;
+    private RecordingListener mListener;
+    private String mAdUnitId;
+
+    /*
+     * Records which callbacks were made, and reports HTML ads back as rendered or failed.
+     */
+    private class RecordingListener implements AdRequestEngine.Listener {
+        final ArrayList<String> mEvents = new ArrayList<String>();
+        boolean mFailHtmlAds;
+
+        public void onAdRequest(String url) {
+            mEvents.add("request");
+        }
+
+        public void onAdResponse(AdResponse adResponse) {
+        }
+
+        public void onHtmlAd(AdResponse adResponse, String html) {
+            mEvents.add("html");
+            if (mFailHtmlAds) mEngine.loadFailUrl();
+            else mEngine.adDidLoad();
+        }
+
+        public void onNativeAd(AdResponse adResponse, NativeAdParams nativeParams) {
+            mEvents.add("native");
+        }
+
+        public void onCustomEvent(AdResponse adResponse) {
+            mEvents.add("custom");
+        }
+
+        public void onAdFailed() {
+            mEvents.add("failed");
+        }
+
+        public void onAdSkipped(String reason) {
+            mEvents.add("skipped");
+        }
+
+        public void onRefresh() {
+        }
+
+        public void onLog(String message) {
+        }
+    }
+
+    private static class TestDeviceInfo implements AdRequestEngine.DeviceInfo {
+        public String getUdidDigest() {
+            return "udid";
+        }
+
+        public String getTimeZoneOffset() {
+            return "+0000";
+        }
+
+        public String getOrientation() {
+            return "p";
+        }
+
+        public String getDensity() {
+            return "1.0";
+        }
+
+        public String getConnectionType() {
+            return "wifi";
+        }
+    }
+
+    private static class NoOpScheduler implements AdRequestEngine.Scheduler {
+        public void schedule(Runnable task, long delayMilliseconds) {
+        }
+
+        public void cancel(Runnable task) {
+        }
+    }
+
+    private static FakeHttpClient.Response html() {
+        return new FakeHttpClient.Response(200).header("X-Adtype", "html")
+                .body("<html></html>");
+    }
+
+    private static FakeHttpClient.Response clear() {
+        return new FakeHttpClient.Response(200).header("X-Adtype", "clear");
+    }
+
+    @Before
+    public void setUp() {
+        NoFillCache.getInstance().clear();
+        // Breakers are shared per ad unit, so give each test its own.
+        mAdUnitId = "test-unit-" + (++sAdUnitCount);
+
+        mHttpClient = new FakeHttpClient();
+        mListener = new RecordingListener();
+        mEngine = newEngine(mListener, mAdUnitId);
+    }
+
+    private AdRequestEngine newEngine(AdRequestEngine.Listener listener, String adUnitId) {
+        AdRequestEngine engine = new AdRequestEngine("ads.test", "/m/ad", new TestDeviceInfo(), 
+                DIRECT_EXECUTOR, DIRECT_EXECUTOR, new NoOpScheduler());
+        engine.setHttpClient(mHttpClient);
+        engine.setListener(listener);
+        engine.setAdUnitId(adUnitId);
+        return engine;
+    }
+
+    @After
+    public void tearDown() {
+        NoFillCache.getInstance().clear();
+    }
+
+    private boolean isCachedAsNoFill() {
+        return NoFillCache.getInstance().isNoFill(
+                NoFillCache.getKey(mAdUnitId, null, null, null));
+    }
+
+    @Test
+    public void clearWithEmptyBodyIsCached() {
+        mHttpClient.setDefault(clear().header("Content-Length", "0"));
+
+        mEngine.loadAd();
+        mEngine.loadAd();
+
+        assertEquals("[request, failed, skipped]", mListener.mEvents.toString());
+        assertEquals(1, mHttpClient.getRequests().size());
+    }
+
+    @Test
+    public void clearOnFailoverIsNotCached() {
+        mHttpClient.setDefault(html().header("X-Failurl", FAIL_URL)).put(FAIL_URL, clear());
+        mListener.mFailHtmlAds = true;
+
+        mEngine.loadAd();
+
+        assertEquals("[request, html, failed]", mListener.mEvents.toString());
+        assertFalse(isCachedAsNoFill());
+    }
+
+    @Test
+    public void speculativeClearIsNotCached() {
+        mHttpClient.setDefault(html().header("X-Failurl", FAIL_URL)).put(FAIL_URL, clear());
+        mEngine.setSpeculativeFailoverEnabled(true);
+
+        mEngine.loadAd();
+
+        assertEquals(2, mHttpClient.getRequests().size());
+        assertFalse(isCachedAsNoFill());
+    }
+
+    @Test
+    public void speculativeFailoverServesFailUrl() {
+        mHttpClient.setDefault(html().header("X-Failurl", FAIL_URL)).put(FAIL_URL, html());
+        mEngine.setSpeculativeFailoverEnabled(true);
+        mEngine.setListener(new RecordingListener() {
+            @Override
+            public void onHtmlAd(AdResponse adResponse, String html) {
+                mEvents.add("html");
+                // Only the first ad fails to render.
+                if (adResponse.getFailUrl() != null) mEngine.loadFailUrl();
+                else mEngine.adDidLoad();
+            }
+        });
+
+        mEngine.loadAd();
+
+        assertEquals(2, mHttpClient.getRequests().size());
+        assertEquals(1, mEngine.getSpeculativeFailoverHitCount());
+    }
+
+    @Test
+    public void secondLoadAdDuringWaterfallKeepsSpeculativeLoads() {
+        mHttpClient.setDefault(html().header("X-Failurl", FAIL_URL)).put(FAIL_URL, html());
+        mEngine.setSpeculativeFailoverEnabled(true);
+        mListener = new RecordingListener() {
+            @Override
+            public void onHtmlAd(AdResponse adResponse, String html) {
+                // Leave the first ad rendering; the test decides how it ends.
+                mEvents.add("html");
+                if (adResponse.getFailUrl() == null) mEngine.adDidLoad();
+            }
+        };
+        mEngine.setListener(mListener);
+
+        mEngine.loadAd();
+        mEngine.loadAd();
+        mEngine.loadFailUrl();
+
+        assertEquals("[request, html, html]", mListener.mEvents.toString());
+        assertEquals(2, mHttpClient.getRequests().size());
+        assertEquals(1, mEngine.getSpeculativeFailoverHitCount());
+    }
+
+    @Test
+    public void successfulLoadForgetsNoFill() {
+        mHttpClient.setDefault(html());
+        final String key = NoFillCache.getKey(mAdUnitId, null, null, null);
+        mListener = new RecordingListener() {
+            @Override
+            public void onHtmlAd(AdResponse adResponse, String html) {
+                // Another view with the same targeting got a clear in the meantime.
+                NoFillCache.getInstance().putNoFill(key, -1);
+                mEngine.adDidLoad();
+            }
+        };
+        mEngine.setListener(mListener);
+
+        mEngine.loadAd();
+
+        assertFalse(isCachedAsNoFill());
+    }
+
+    @Test
+    public void batchedPartsWithoutBodyAreAccepted() {
+        AdRequestEngine.BatchedLoad load = mEngine.beginBatchedLoad();
+        load.finish(new FakeHttpClient.Response(200).header("X-Adtype", "admob")
+                .header("X-Nativeparams", "{\"adUnitID\":\"a14e\"}").toHttpResponse()).run();
+
+        load = mEngine.beginBatchedLoad();
+        load.finish(new FakeHttpClient.Response(200).header("X-Adtype", "custom")
+                .header("X-Customselector", "showAd").toHttpResponse()).run();
+
+        assertEquals("[request, native, request, custom]", mListener.mEvents.toString());
+    }
+
+    @Test
+    public void batchedHtmlPartWithoutBodyFails() {
+        AdRequestEngine.BatchedLoad load = mEngine.beginBatchedLoad();
+        load.finish(new FakeHttpClient.Response(200).header("X-Adtype", "html")
+                .toHttpResponse()).run();
+
+        assertEquals("[request, failed]", mListener.mEvents.toString());
+    }
+
+    @Test
+    public void batchIsSplitByAdUnit() {
+        RecordingListener otherListener = new RecordingListener();
+        AdRequestEngine other = newEngine(otherListener, "other-" + mAdUnitId);
+        List<AdRequestEngine.BatchedLoad> loads = new ArrayList<AdRequestEngine.BatchedLoad>();
+        loads.add(mEngine.beginBatchedLoad());
+        loads.add(other.beginBatchedLoad());
+
+        String body = "--b\r\n" + 
+                "X-Adunit: other-" + mAdUnitId + "\r\nX-Adtype: clear\r\n\r\n\r\n" + 
+                "--b\r\n" + 
+                "X-Adunit: " + mAdUnitId + "\r\nX-Adtype: html\r\n\r\n<html></html>\r\n" + 
+                "--b--\r\n";
+        mHttpClient.setDefault(new FakeHttpClient.Response(200)
+                .header("Content-Type", "multipart/mixed; boundary=b").body(body));
+        List<Runnable> finishes = AdRequestEngine.loadBatch("http://ads.test/m/ads", loads);
+        for (int i = 0; i < finishes.size(); i++) finishes.get(i).run();
+
+        assertEquals("[request, html]", mListener.mEvents.toString());
+        assertEquals("[request, failed]", otherListener.mEvents.toString());
+        assertTrue(NoFillCache.getInstance().isNoFill(
+                NoFillCache.getKey("other-" + mAdUnitId, null, null, null)));
+    }
+
+    @Test
+    public void failedBatchFailsEveryLoad() {
+        RecordingListener otherListener = new RecordingListener();
+        AdRequestEngine other = newEngine(otherListener, "other-" + mAdUnitId);
+        List<AdRequestEngine.BatchedLoad> loads = new ArrayList<AdRequestEngine.BatchedLoad>();
+        loads.add(mEngine.beginBatchedLoad());
+        loads.add(other.beginBatchedLoad());
+
+        mHttpClient.setDefault(new FakeHttpClient.Response(503));
+        List<Runnable> finishes = AdRequestEngine.loadBatch("http://ads.test/m/ads", loads);
+        for (int i = 0; i < finishes.size(); i++) finishes.get(i).run();
+
+        assertEquals("[request, failed]", mListener.mEvents.toString());
+        assertEquals("[request, failed]", otherListener.mEvents.toString());
+    }
+}
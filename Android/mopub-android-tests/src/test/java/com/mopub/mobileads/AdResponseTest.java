@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.impl.cookie.DateUtils;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import java.util.Date;
+
+public class AdResponseTest {
+    private static AdResponse parse(String... headers) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, null);
+        for (int i = 0; i < headers.length; i += 2) response.addHeader(headers[i], headers[i + 1]);
+        return AdResponse.fromHttpResponse(response);
+    }
+
+    @Test
+    public void retryAfterInSeconds() {
+        assertEquals(120000, parse("Retry-After", "120").getRetryAfterMilliseconds());
+        assertEquals(5000, parse("retry-after", " 5 ").getRetryAfterMilliseconds());
+    }
+
+    @Test
+    public void retryAfterAsHttpDate() {
+        String date = DateUtils.formatDate(new Date(System.currentTimeMillis() + 60000));
+        long retryAfter = parse("Retry-After", date).getRetryAfterMilliseconds();
+        // The date only has second precision.
+        assertTrue(retryAfter > 58000 && retryAfter <= 60000);
+    }
+
+    @Test
+    public void retryAfterInThePastIsZero() {
+        String date = DateUtils.formatDate(new Date(System.currentTimeMillis() - 60000));
+        assertEquals(0, parse("Retry-After", date).getRetryAfterMilliseconds());
+    }
+
+    @Test
+    public void malformedOrMissingRetryAfterIsIgnored() {
+        assertEquals(-1, parse("Retry-After", "soon").getRetryAfterMilliseconds());
+        assertEquals(-1, parse("Retry-After", "-5").getRetryAfterMilliseconds());
+        assertEquals(-1, parse("X-Adtype", "clear").getRetryAfterMilliseconds());
+    }
+
+    @Test
+    public void firstRetryAfterWins() {
+        assertEquals(1000, parse("Retry-After", "1", "Retry-After", "2")
+                .getRetryAfterMilliseconds());
+    }
+
+    @Test
+    public void preResolveUrlIsOnlyTakenFromItsOwnHeader() {
+        assertEquals("http://example.com/landing",
+                parse("X-Preresolveurl", "http://example.com/landing").getPreResolveUrl());
+        assertNull(parse("X-Clickthrough", "http://ads.test/m/aclk").getPreResolveUrl());
+    }
+}
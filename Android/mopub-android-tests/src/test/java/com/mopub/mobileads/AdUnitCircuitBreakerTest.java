@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.mopub.mobileads.AdUnitCircuitBreaker.State;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AdUnitCircuitBreakerTest {
+    private static int sAdUnitCount;
+
+    private AdUnitCircuitBreaker mBreaker;
+
+    @Before
+    public void setUp() {
+        AdUnitCircuitBreaker.setFailureThreshold(3);
+        AdUnitCircuitBreaker.setOpenDuration(40);
+        AdUnitCircuitBreaker.setMaxOpenDuration(100);
+        // Breakers are shared per ad unit, so give each test its own.
+        mBreaker = AdUnitCircuitBreaker.getInstance("breaker-unit-" + (++sAdUnitCount));
+    }
+
+    @After
+    public void tearDown() {
+        AdUnitCircuitBreaker.setFailureThreshold(AdUnitCircuitBreaker.DEFAULT_FAILURE_THRESHOLD);
+        AdUnitCircuitBreaker.setOpenDuration(
+                AdUnitCircuitBreaker.DEFAULT_OPEN_DURATION_MILLISECONDS);
+        AdUnitCircuitBreaker.setMaxOpenDuration(
+                AdUnitCircuitBreaker.DEFAULT_MAX_OPEN_DURATION_MILLISECONDS);
+        AdUnitCircuitBreaker.setMaxBackoff(
+                AdUnitCircuitBreaker.DEFAULT_MAX_BACKOFF_MILLISECONDS);
+    }
+
+    private void recordFailures(int times) {
+        for (int i = 0; i < times; i++) mBreaker.recordFailure();
+    }
+
+    private void waitUntilHalfOpen() throws InterruptedException {
+        Thread.sleep(mBreaker.getRemainingOpenTime() + 10);
+        assertEquals(State.HALF_OPEN, mBreaker.getState());
+    }
+
+    @Test
+    public void staysClosedBelowThreshold() {
+        recordFailures(2);
+        assertEquals(State.CLOSED, mBreaker.getState());
+        assertTrue(mBreaker.allowRequest());
+    }
+
+    @Test
+    public void tripsAtThreshold() {
+        recordFailures(3);
+
+        assertEquals(State.OPEN, mBreaker.getState());
+        assertFalse(mBreaker.allowRequest());
+        assertEquals(1, mBreaker.getTripCount());
+        assertEquals(1, mBreaker.getRejectedRequestCount());
+    }
+
+    @Test
+    public void successResetsFailureStreak() {
+        recordFailures(2);
+        mBreaker.recordSuccess();
+        recordFailures(2);
+
+        assertEquals(State.CLOSED, mBreaker.getState());
+        assertEquals(2, mBreaker.getConsecutiveFailureCount());
+    }
+
+    @Test
+    public void halfOpenLetsOneProbeThrough() throws Exception {
+        recordFailures(3);
+        waitUntilHalfOpen();
+
+        assertTrue(mBreaker.allowRequest());
+        assertFalse(mBreaker.allowRequest());
+    }
+
+    @Test
+    public void successfulProbeCloses() throws Exception {
+        recordFailures(3);
+        waitUntilHalfOpen();
+        assertTrue(mBreaker.allowRequest());
+
+        mBreaker.recordSuccess();
+
+        assertEquals(State.CLOSED, mBreaker.getState());
+        assertEquals(0, mBreaker.getConsecutiveFailureCount());
+        assertTrue(mBreaker.allowRequest());
+        assertTrue(mBreaker.allowRequest());
+    }
+
+    @Test
+    public void failedProbeReopensForTwiceAsLong() throws Exception {
+        recordFailures(3);
+        waitUntilHalfOpen();
+        assertTrue(mBreaker.allowRequest());
+
+        mBreaker.recordFailure();
+
+        assertEquals(State.OPEN, mBreaker.getState());
+        assertEquals(2, mBreaker.getTripCount());
+        long remaining = mBreaker.getRemainingOpenTime();
+        assertTrue("remaining " + remaining, remaining > 40 && remaining <= 80);
+    }
+
+    @Test
+    public void reopenIsCappedAtMaxOpenDuration() throws Exception {
+        recordFailures(3);
+        for (int i = 0; i < 2; i++) {
+            waitUntilHalfOpen();
+            assertTrue(mBreaker.allowRequest());
+            mBreaker.recordFailure();
+        }
+
+        // 40 ms, then 80, then 160 capped to 100.
+        long remaining = mBreaker.getRemainingOpenTime();
+        assertTrue("remaining " + remaining, remaining > 80 && remaining <= 100);
+    }
+
+    @Test
+    public void resetAllCloses() {
+        recordFailures(3);
+        AdUnitCircuitBreaker.resetAll();
+
+        assertEquals(State.CLOSED, mBreaker.getState());
+        assertTrue(mBreaker.allowRequest());
+    }
+
+    @Test
+    public void refreshBacksOffWithFailures() {
+        assertEquals(1000, mBreaker.getRefreshDelay(1000));
+
+        recordFailures(2);
+        for (int i = 0; i < 20; i++) {
+            long delay = mBreaker.getRefreshDelay(1000);
+            assertTrue("delay " + delay, delay >= 2000 && delay <= 4000);
+        }
+
+        AdUnitCircuitBreaker.setMaxBackoff(3000);
+        for (int i = 0; i < 20; i++) {
+            long delay = mBreaker.getRefreshDelay(1000);
+            assertTrue("delay " + delay, delay >= 1500 && delay <= 3000);
+        }
+    }
+}
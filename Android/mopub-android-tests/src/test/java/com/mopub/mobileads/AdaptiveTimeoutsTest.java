@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AdaptiveTimeoutsTest {
+    private static final String WIFI = "wifi";
+    private static final double DELTA = 0.001;
+
+    @Before
+    public void setUp() {
+        AdaptiveTimeouts.reset();
+    }
+
+    @After
+    public void tearDown() {
+        AdaptiveTimeouts.reset();
+    }
+
+    private static void assertTimeouts(int connectMilliseconds, int readMilliseconds) {
+        AdaptiveTimeouts.Timeouts timeouts = AdaptiveTimeouts.getTimeouts(WIFI);
+        assertEquals(connectMilliseconds, timeouts.mConnectTimeoutMilliseconds);
+        assertEquals(readMilliseconds, timeouts.mReadTimeoutMilliseconds);
+    }
+
+    @Test
+    public void initialTimeoutBeforeAnySample() {
+        assertTimeouts(AdaptiveTimeouts.INITIAL_TIMEOUT_MILLISECONDS, 
+                AdaptiveTimeouts.INITIAL_TIMEOUT_MILLISECONDS);
+    }
+
+    @Test
+    public void firstSampleSetsRttAndHalfAsDeviation() {
+        AdaptiveTimeouts.recordResponse(WIFI, 1000);
+
+        AdaptiveTimeouts.Stats stats = AdaptiveTimeouts.getStats(WIFI);
+        assertEquals(1000, stats.getSmoothedRtt(), DELTA);
+        assertEquals(500, stats.getRttDeviation(), DELTA);
+        // SRTT + 4 * RTTVAR
+        assertTimeouts(3000, 3000);
+    }
+
+    @Test
+    public void laterSamplesAreSmoothed() {
+        AdaptiveTimeouts.recordResponse(WIFI, 1000);
+        AdaptiveTimeouts.recordResponse(WIFI, 2000);
+
+        // RTTVAR = 3/4 * 500 + 1/4 * |1000 - 2000|, SRTT = 7/8 * 1000 + 1/8 * 2000
+        AdaptiveTimeouts.Stats stats = AdaptiveTimeouts.getStats(WIFI);
+        assertEquals(625, stats.getRttDeviation(), DELTA);
+        assertEquals(1125, stats.getSmoothedRtt(), DELTA);
+        assertTimeouts(3625, 3625);
+    }
+
+    @Test
+    public void timeoutsAreClampedToBounds() {
+        AdaptiveTimeouts.recordResponse(WIFI, 10);
+        assertTimeouts(AdaptiveTimeouts.DEFAULT_MIN_CONNECT_TIMEOUT_MILLISECONDS, 
+                AdaptiveTimeouts.DEFAULT_MIN_READ_TIMEOUT_MILLISECONDS);
+
+        AdaptiveTimeouts.reset();
+        AdaptiveTimeouts.recordResponse(WIFI, 20000);
+        assertTimeouts(AdaptiveTimeouts.DEFAULT_MAX_CONNECT_TIMEOUT_MILLISECONDS, 
+                AdaptiveTimeouts.DEFAULT_MAX_READ_TIMEOUT_MILLISECONDS);
+    }
+
+    @Test
+    public void timeoutsDoubleUpToTheBackoffLimit() {
+        AdaptiveTimeouts.recordResponse(WIFI, 1000);
+
+        AdaptiveTimeouts.recordTimeout(WIFI, true);
+        assertTimeouts(6000, 6000);
+        AdaptiveTimeouts.recordTimeout(WIFI, false);
+        assertTimeouts(12000, 12000);
+        AdaptiveTimeouts.recordBodyTimeout(WIFI);
+        assertTimeouts(12000, 12000);
+
+        AdaptiveTimeouts.Stats stats = AdaptiveTimeouts.getStats(WIFI);
+        assertEquals(3, stats.getRequestCount());
+        assertEquals(1, stats.getConnectTimeoutCount());
+        assertEquals(2, stats.getReadTimeoutCount());
+    }
+
+    @Test
+    public void successfulSampleEndsBackoff() {
+        AdaptiveTimeouts.recordResponse(WIFI, 1000);
+        AdaptiveTimeouts.recordTimeout(WIFI, true);
+
+        AdaptiveTimeouts.recordResponse(WIFI, 1000);
+
+        // RTTVAR = 3/4 * 500, SRTT unchanged
+        assertTimeouts(2500, 2500);
+    }
+
+    @Test
+    public void connectionTypesAreTrackedSeparately() {
+        AdaptiveTimeouts.recordResponse("mobile/EDGE", 5000);
+        AdaptiveTimeouts.recordResponse(WIFI, 1000);
+
+        assertEquals(5000, AdaptiveTimeouts.getStats("mobile/EDGE").getSmoothedRtt(), DELTA);
+        assertTimeouts(3000, 3000);
+    }
+}
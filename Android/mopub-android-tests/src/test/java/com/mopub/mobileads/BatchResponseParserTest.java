@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import com.mopub.mobileads.BatchResponseParser.Part;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+public class BatchResponseParserTest {
+    private static List<Part> parse(String body) throws IOException {
+        return BatchResponseParser.parse(body.getBytes("ISO-8859-1"), "b");
+    }
+
+    private static void assertRejected(String body) {
+        try {
+            parse(body);
+            fail("Expected an IOException for: " + body);
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void splitsPartsInOrder() throws Exception {
+        List<Part> parts = parse("preamble\r\n" + 
+                "--b\r\nX-Adunit: one\r\nX-Adtype: html\r\n\r\n<html>1</html>\r\n" + 
+                "--b\r\nX-Adunit: two\r\nX-Adtype: html\r\n\r\n<html>2</html>\r\n" + 
+                "--b--\r\n");
+
+        assertEquals(2, parts.size());
+        assertEquals("one", parts.get(0).mAdUnitId);
+        assertEquals("<html>1</html>", EntityUtils.toString(parts.get(0).mResponse.getEntity()));
+        assertEquals("two", parts.get(1).mAdUnitId);
+        assertEquals("html", parts.get(1).mResponse.getFirstHeader("X-Adtype").getValue());
+        assertEquals(200, parts.get(1).mResponse.getStatusLine().getStatusCode());
+    }
+
+    @Test
+    public void partsMayHaveEmptyBodies() throws Exception {
+        List<Part> parts = parse(
+                "--b\r\nX-Adunit: native\r\nX-Adtype: admob\r\n\r\n\r\n" + 
+                "--b\r\nX-Adunit: clear\r\nX-Adtype: clear\r\n" + 
+                "--b--");
+
+        assertEquals(2, parts.size());
+        for (int i = 0; i < parts.size(); i++) {
+            assertEquals(0, parts.get(i).mResponse.getEntity().getContentLength());
+        }
+        assertEquals("clear", parts.get(1).mResponse.getFirstHeader("X-Adtype").getValue());
+    }
+
+    @Test
+    public void xStatusSetsPartStatus() throws Exception {
+        List<Part> parts = parse("--b\r\nX-Adunit: one\r\nX-Status: 503\r\n\r\n--b--");
+        assertEquals(503, parts.get(0).mResponse.getStatusLine().getStatusCode());
+    }
+
+    @Test
+    public void partWithoutAdUnitHasNullId() throws Exception {
+        assertNull(parse("--b\r\nX-Adtype: clear\r\n\r\n--b--").get(0).mAdUnitId);
+    }
+
+    @Test
+    public void malformedInputIsRejected() {
+        // Truncated: the last part never ends.
+        assertRejected("--b\r\nX-Adunit: one\r\n\r\n<html>");
+        assertRejected("--b\r\nX-Adunit: one\r\n\r\n<html></html>\r\n--b\r\nX-Adunit: two\r\n");
+        // No parts at all.
+        assertRejected("<html></html>");
+        assertRejected("--b\r\nX-Status: ok\r\n\r\n--b--");
+        assertRejected("--b\r\nnot a header\r\n\r\n--b--");
+    }
+
+    @Test
+    public void parsesMultipartResponse() throws Exception {
+        HttpResponse response = new FakeHttpClient.Response(200)
+                .header("Content-Type", "multipart/mixed; boundary=\"b\"")
+                .body("--b\r\nX-Adunit: one\r\n\r\n--b--").toHttpResponse();
+
+        assertEquals("one", BatchResponseParser.parse(response, 1024).get(0).mAdUnitId);
+    }
+
+    @Test
+    public void rejectsNonMultipartAndOversizedResponses() {
+        String body = "--b\r\nX-Adunit: one\r\n\r\n--b--";
+        HttpResponse plain = new FakeHttpClient.Response(200)
+                .header("Content-Type", "text/html").body(body).toHttpResponse();
+        HttpResponse large = new FakeHttpClient.Response(200)
+                .header("Content-Type", "multipart/mixed; boundary=b").body(body)
+                .toHttpResponse();
+
+        try {
+            BatchResponseParser.parse(plain, 1024);
+            fail("Expected a non-multipart response to be rejected.");
+        } catch (IOException e) {
+            // Expected.
+        }
+        try {
+            BatchResponseParser.parse(large, 8);
+            fail("Expected an oversized response to be rejected.");
+        } catch (ResponseBodyReader.BodyTooLargeException e) {
+            // Expected.
+        } catch (IOException e) {
+            fail("Expected BodyTooLargeException, got " + e);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.mopub.mobileads.BeaconDispatcher.Beacon;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+
+/*
+ * Replay of the beacon log (BeaconStore.readLog()), including logs left behind by a crash.
+ */
+public class BeaconStoreTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mLogFile;
+    private LinkedHashMap<String, Beacon> mPending;
+
+    @Before
+    public void setUp() throws IOException {
+        mLogFile = mFolder.newFile("mopub_beacons.log");
+        mPending = new LinkedHashMap<String, Beacon>();
+    }
+
+    private static Beacon beacon(String id) {
+        return new Beacon(id, 1000, "http://ads.test/imp?id=" + id, "agent", "Impression");
+    }
+
+    private static String added(String id) {
+        return BeaconStore.formatRecord(BeaconStore.addRecordFor(beacon(id)));
+    }
+
+    private static String delivered(String id) {
+        return BeaconStore.formatRecord("D\t" + id);
+    }
+
+    private void write(String contents, boolean append) throws IOException {
+        FileOutputStream out = new FileOutputStream(mLogFile, append);
+        try {
+            out.write(contents.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void replaysAddsAndDeliveries() throws Exception {
+        write(added("1") + added("2") + delivered("1"), false);
+
+        assertEquals(3, BeaconStore.readLog(mLogFile, mPending));
+
+        assertEquals(1, mPending.size());
+        Beacon beacon = mPending.get("2");
+        assertEquals(1000, beacon.mCreatedAt);
+        assertEquals("http://ads.test/imp?id=2", beacon.mUrl);
+        assertEquals("agent", beacon.mUserAgent);
+        assertEquals("Impression", beacon.mDescription);
+    }
+
+    @Test
+    public void tornFinalRecordIsCutOff() throws Exception {
+        String complete = added("1") + added("2");
+        String torn = added("3");
+        write(complete + torn.substring(0, torn.length() / 2), false);
+
+        assertEquals(2, BeaconStore.readLog(mLogFile, mPending));
+
+        assertEquals(2, mPending.size());
+        assertNull(mPending.get("3"));
+        assertEquals(complete.length(), mLogFile.length());
+    }
+
+    @Test
+    public void appendAfterTornRecordStartsOnFreshLine() throws Exception {
+        String torn = added("1");
+        write(torn.substring(0, torn.length() - 5), false);
+        BeaconStore.readLog(mLogFile, mPending);
+
+        write(added("2"), true);
+        mPending.clear();
+
+        assertEquals(1, BeaconStore.readLog(mLogFile, mPending));
+        assertEquals(1, mPending.size());
+        assertTrue(mPending.containsKey("2"));
+    }
+
+    @Test
+    public void recordFailingChecksumIsSkipped() throws Exception {
+        String damaged = added("2").replace("imp?id=2", "imp?id=9");
+        write(added("1") + damaged + added("3"), false);
+
+        assertEquals(3, BeaconStore.readLog(mLogFile, mPending));
+
+        assertEquals(2, mPending.size());
+        assertTrue(mPending.containsKey("1"));
+        assertTrue(mPending.containsKey("3"));
+    }
+
+    @Test
+    public void recordWithoutChecksumIsSkipped() throws Exception {
+        write(BeaconStore.addRecordFor(beacon("1")) + "\n" + added("2"), false);
+
+        BeaconStore.readLog(mLogFile, mPending);
+
+        assertEquals(1, mPending.size());
+        assertTrue(mPending.containsKey("2"));
+    }
+
+    @Test
+    public void emptyLogHasNoRecords() throws Exception {
+        assertEquals(0, BeaconStore.readLog(mLogFile, mPending));
+        assertTrue(mPending.isEmpty());
+    }
+}
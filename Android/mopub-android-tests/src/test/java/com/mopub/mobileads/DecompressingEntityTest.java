@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class DecompressingEntityTest {
+    private static final String BODY = "<html><body>An ad, an ad, an ad, an ad.</body></html>";
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(data);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] data, boolean zlibWrapped) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, !zlibWrapped);
+        DeflaterOutputStream deflate = new DeflaterOutputStream(out, deflater);
+        deflate.write(data);
+        deflate.close();
+        return out.toByteArray();
+    }
+
+    private static DecompressingEntity entity(byte[] body, String encoding) {
+        ByteArrayEntity wrapped = new ByteArrayEntity(body);
+        wrapped.setContentEncoding(encoding);
+        return new DecompressingEntity(wrapped, DecompressingEntity.supportedEncodingOf(wrapped));
+    }
+
+    @Test
+    public void decodesGzip() throws IOException {
+        byte[] body = gzip(BODY.getBytes("UTF-8"));
+        DecompressingEntity entity = entity(body, "gzip");
+
+        assertEquals(BODY, EntityUtils.toString(entity, "UTF-8"));
+        assertEquals(body.length, entity.getCompressedByteCount());
+        assertEquals(BODY.length(), entity.getUncompressedByteCount());
+    }
+
+    @Test
+    public void decodesZlibWrappedDeflate() throws IOException {
+        DecompressingEntity entity = entity(deflate(BODY.getBytes("UTF-8"), true), "deflate");
+        assertEquals(BODY, EntityUtils.toString(entity, "UTF-8"));
+    }
+
+    @Test
+    public void decodesRawDeflate() throws IOException {
+        DecompressingEntity entity = entity(deflate(BODY.getBytes("UTF-8"), false), "Deflate ");
+        assertEquals(BODY, EntityUtils.toString(entity, "UTF-8"));
+    }
+
+    @Test
+    public void decodedEntityHidesEncodingAndLength() throws IOException {
+        DecompressingEntity entity = entity(gzip(BODY.getBytes("UTF-8")), "gzip");
+        assertNull(entity.getContentEncoding());
+        assertEquals(-1, entity.getContentLength());
+    }
+
+    @Test
+    public void unsupportedEncodingIsNotDecoded() {
+        ByteArrayEntity entity = new ByteArrayEntity(new byte[0]);
+        assertNull(DecompressingEntity.supportedEncodingOf(entity));
+        entity.setContentEncoding("br");
+        assertNull(DecompressingEntity.supportedEncodingOf(entity));
+    }
+}
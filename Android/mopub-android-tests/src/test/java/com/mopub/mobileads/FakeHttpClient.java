@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * An HttpClient that answers with canned responses instead of going to the network. Requests for 
+ * URLs with no response (and no default) fail with an IOException, like an unreachable host.
+ */
+public class FakeHttpClient implements HttpClient {
+    private final HashMap<String, Response> mResponses = new HashMap<String, Response>();
+    private final ArrayList<HttpUriRequest> mRequests = new ArrayList<HttpUriRequest>();
+    private final HttpParams mParams = new BasicHttpParams();
+    private Response mDefaultResponse;
+
+    /*
+     * A response to serve, built up with header() and body(). Each request gets a fresh copy.
+     */
+    public static class Response {
+        private final int mStatusCode;
+        private final ArrayList<String[]> mHeaders = new ArrayList<String[]>();
+        private byte[] mBody = new byte[0];
+
+        public Response(int statusCode) {
+            mStatusCode = statusCode;
+        }
+
+        public Response header(String name, String value) {
+            mHeaders.add(new String[] { name, value });
+            return this;
+        }
+
+        public Response body(String body) {
+            try {
+                mBody = body.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+            return this;
+        }
+
+        HttpResponse toHttpResponse() {
+            BasicHttpResponse response = 
+                    new BasicHttpResponse(HttpVersion.HTTP_1_1, mStatusCode, null);
+            ByteArrayEntity entity = new ByteArrayEntity(mBody);
+            for (int i = 0; i < mHeaders.size(); i++) {
+                String name = mHeaders.get(i)[0];
+                String value = mHeaders.get(i)[1];
+                response.addHeader(name, value);
+                if (name.equalsIgnoreCase("Content-Type")) entity.setContentType(value);
+            }
+            response.setEntity(entity);
+            return response;
+        }
+    }
+
+    public FakeHttpClient put(String url, Response response) {
+        mResponses.put(url, response);
+        return this;
+    }
+
+    /*
+     * Sets the response for one request method only, e.g. to reject HEAD but answer GET.
+     */
+    public FakeHttpClient put(String method, String url, Response response) {
+        mResponses.put(method + " " + url, response);
+        return this;
+    }
+
+    /*
+     * Sets the response for any URL that wasn't given one with put().
+     */
+    public FakeHttpClient setDefault(Response response) {
+        mDefaultResponse = response;
+        return this;
+    }
+
+    private HttpResponse respond(HttpUriRequest request) throws IOException {
+        mRequests.add(request);
+        String url = request.getURI().toString();
+        Response response = mResponses.get(request.getMethod() + " " + url);
+        if (response == null) response = mResponses.get(url);
+        if (response == null) response = mDefaultResponse;
+        if (response == null) throw new IOException("No response for " + request.getURI());
+        return response.toHttpResponse();
+    }
+
+    public HttpResponse execute(HttpUriRequest request) throws IOException {
+        return respond(request);
+    }
+
+    public HttpResponse execute(HttpUriRequest request, HttpContext context) throws IOException {
+        return respond(request);
+    }
+
+    public HttpResponse execute(HttpHost target, HttpRequest request) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    public HttpResponse execute(HttpHost target, HttpRequest request, HttpContext context) 
+            throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> handler) 
+            throws IOException, ClientProtocolException {
+        return handler.handleResponse(respond(request));
+    }
+
+    public <T> T execute(HttpUriRequest request, ResponseHandler<? extends T> handler, 
+            HttpContext context) throws IOException, ClientProtocolException {
+        return handler.handleResponse(respond(request));
+    }
+
+    public <T> T execute(HttpHost target, HttpRequest request, 
+            ResponseHandler<? extends T> handler) throws IOException, ClientProtocolException {
+        throw new UnsupportedOperationException();
+    }
+
+    public <T> T execute(HttpHost target, HttpRequest request, 
+            ResponseHandler<? extends T> handler, HttpContext context) 
+            throws IOException, ClientProtocolException {
+        throw new UnsupportedOperationException();
+    }
+
+    public HttpParams getParams() {
+        return mParams;
+    }
+
+    public ClientConnectionManager getConnectionManager() {
+        return null;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /*
+     * Every request executed so far, in order.
+     */
+    public List<HttpUriRequest> getRequests() {
+        return mRequests;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class LatencyHistogramTest {
+    private static final int LAST_BUCKET = LatencyHistogram.bucketOf(Long.MAX_VALUE);
+
+    private static void assertWithinEighth(double expected, double actual) {
+        assertTrue("Expected about " + expected + " but was " + actual, 
+                actual >= expected && actual <= expected * 1.125);
+    }
+
+    @Test
+    public void bucketBoundsRoundTrip() {
+        for (int bucket = 0; bucket <= LAST_BUCKET; bucket++) {
+            long upperBound = LatencyHistogram.upperBoundOf(bucket);
+            assertEquals(bucket, LatencyHistogram.bucketOf(upperBound));
+            if (bucket < LAST_BUCKET) {
+                assertEquals(bucket + 1, LatencyHistogram.bucketOf(upperBound + 1));
+            }
+        }
+    }
+
+    @Test
+    public void bucketUpperBoundIsWithinAnEighthOfValue() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long micros = 1 + (random.nextLong() >>> (1 + random.nextInt(40)));
+            if (micros > LatencyHistogram.upperBoundOf(LAST_BUCKET)) continue;
+            long upperBound = LatencyHistogram.upperBoundOf(LatencyHistogram.bucketOf(micros));
+            assertWithinEighth(micros, upperBound);
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinAnEighth() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int milliseconds = 1; milliseconds <= 10000; milliseconds++) {
+            histogram.record(milliseconds * 1000L);
+        }
+
+        assertWithinEighth(5000, histogram.getPercentile(50));
+        assertWithinEighth(9900, histogram.getPercentile(99));
+        assertEquals(10000, histogram.getPercentile(100), 0);
+        assertEquals(10000, histogram.getMax(), 0);
+        assertEquals(5000.5, histogram.getMean(), 0.001);
+    }
+
+    @Test
+    public void emptyHistogramReportsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50), 0);
+        assertEquals(0, histogram.getMean(), 0);
+    }
+
+    @Test
+    public void snapshotDoesNotChange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000);
+        LatencyHistogram snapshot = histogram.snapshot();
+        histogram.record(2000);
+
+        assertEquals(1, snapshot.getCount());
+        assertEquals(2, histogram.getCount());
+    }
+}
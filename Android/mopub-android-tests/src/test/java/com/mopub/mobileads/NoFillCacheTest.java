@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class NoFillCacheTest {
+    private static final String KEY = NoFillCache.getKey("unit", "kw", null, null);
+
+    private NoFillCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new NoFillCache();
+    }
+
+    @Test
+    public void entryWithoutRetryAfterLastsDefaultTtl() throws Exception {
+        mCache.setDefaultTtl(50);
+        mCache.putNoFill(KEY, -1);
+        assertTrue(mCache.isNoFill(KEY));
+
+        Thread.sleep(80);
+        assertFalse(mCache.isNoFill(KEY));
+    }
+
+    @Test
+    public void retryAfterOverridesDefaultTtl() throws Exception {
+        mCache.setDefaultTtl(NoFillCache.DEFAULT_MAX_TTL_MILLISECONDS);
+        mCache.putNoFill(KEY, 50);
+        assertTrue(mCache.isNoFill(KEY));
+
+        Thread.sleep(80);
+        assertFalse(mCache.isNoFill(KEY));
+    }
+
+    @Test
+    public void retryAfterIsCappedAtMaxTtl() throws Exception {
+        mCache.setMaxTtl(50);
+        mCache.putNoFill(KEY, 10 * 60000);
+        assertTrue(mCache.isNoFill(KEY));
+
+        Thread.sleep(80);
+        assertFalse(mCache.isNoFill(KEY));
+    }
+
+    @Test
+    public void zeroRetryAfterIsNotCached() {
+        mCache.putNoFill(KEY, 0);
+        assertFalse(mCache.isNoFill(KEY));
+    }
+
+    @Test
+    public void oldestEntryIsEvictedAtCapacity() {
+        for (int i = 0; i <= 64; i++) mCache.putNoFill("unit" + i + "||", -1);
+
+        assertFalse(mCache.isNoFill("unit0||"));
+        assertTrue(mCache.isNoFill("unit1||"));
+        assertTrue(mCache.isNoFill("unit64||"));
+    }
+
+    @Test
+    public void storingAgainRefreshesEntryAge() {
+        for (int i = 0; i < 64; i++) mCache.putNoFill("unit" + i + "||", -1);
+        mCache.putNoFill("unit0||", -1);
+        mCache.putNoFill("unit64||", -1);
+
+        assertTrue(mCache.isNoFill("unit0||"));
+        assertFalse(mCache.isNoFill("unit1||"));
+    }
+
+    @Test
+    public void removeForgetsEntry() {
+        mCache.putNoFill(KEY, -1);
+        mCache.remove(KEY);
+        assertFalse(mCache.isNoFill(KEY));
+    }
+
+    @Test
+    public void disabledCacheStoresNothing() {
+        mCache.setEnabled(false);
+        mCache.putNoFill(KEY, -1);
+        mCache.setEnabled(true);
+        assertFalse(mCache.isNoFill(KEY));
+    }
+
+    @Test
+    public void hitsAreCountedPerAdUnit() {
+        mCache.putNoFill(KEY, -1);
+        mCache.isNoFill(KEY);
+        mCache.isNoFill(KEY);
+        mCache.isNoFill(NoFillCache.getKey("other", null, null, null));
+
+        assertEquals(3, mCache.getLookupCount());
+        assertEquals(2, mCache.getHitCount());
+        assertEquals(2, mCache.getHitCount("unit"));
+    }
+
+    @Test
+    public void keyRoundsLocationToOneDecimal() {
+        assertEquals(NoFillCache.getKey("unit", null, 40.71, -74.01), 
+                NoFillCache.getKey("unit", null, 40.74, -74.04));
+        assertFalse(NoFillCache.getKey("unit", null, 40.71, -74.01).equals(
+                NoFillCache.getKey("unit", null, 40.81, -74.01)));
+        assertFalse(NoFillCache.getKey("unit", "a", null, null).equals(
+                NoFillCache.getKey("unit", "b", null, null)));
+    }
+}
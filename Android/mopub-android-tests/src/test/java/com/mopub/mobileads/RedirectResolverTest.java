@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.mopub.mobileads.RedirectResolver.Result;
+
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.params.HttpClientParams;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RedirectResolverTest {
+    private static final String CLICK_URL = "http://ads.test/m/aclk?id=1";
+    private static final String TRACKER_URL = "http://tracker.test/t?c=2";
+    private static final String LANDING_URL = "http://www.example.com/";
+    private static final String MARKET_URL = "market://details?id=com.example";
+
+    private FakeHttpClient mHttpClient;
+    private RedirectResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mHttpClient = new FakeHttpClient();
+        mResolver = new RedirectResolver(mHttpClient);
+    }
+
+    private static FakeHttpClient.Response redirect(int statusCode, String location) {
+        return new FakeHttpClient.Response(statusCode).header("Location", location);
+    }
+
+    private static FakeHttpClient.Response ok() {
+        return new FakeHttpClient.Response(200);
+    }
+
+    @Test
+    public void followsChainToDestination() {
+        mHttpClient.put(CLICK_URL, redirect(302, TRACKER_URL))
+                .put(TRACKER_URL, redirect(301, LANDING_URL))
+                .put(LANDING_URL, ok());
+
+        Result result = mResolver.resolve(CLICK_URL, "agent");
+
+        assertEquals(Result.STATUS_RESOLVED, result.getStatus());
+        assertEquals(LANDING_URL, result.getUrl());
+        assertEquals(3, result.getHops().size());
+        for (int i = 0; i < mHttpClient.getRequests().size(); i++) {
+            HttpUriRequest request = mHttpClient.getRequests().get(i);
+            assertEquals("HEAD", request.getMethod());
+            assertEquals("agent", request.getFirstHeader("User-Agent").getValue());
+            assertFalse(HttpClientParams.isRedirecting(request.getParams()));
+        }
+    }
+
+    @Test
+    public void resolvesRelativeLocation() {
+        mHttpClient.put(CLICK_URL, redirect(303, "/landing?x=1"))
+                .put("http://ads.test/landing?x=1", ok());
+
+        Result result = mResolver.resolve(CLICK_URL, null);
+
+        assertEquals(Result.STATUS_RESOLVED, result.getStatus());
+        assertEquals("http://ads.test/landing?x=1", result.getUrl());
+    }
+
+    @Test
+    public void stopsAtNonHttpScheme() {
+        mHttpClient.put(CLICK_URL, redirect(302, MARKET_URL));
+
+        Result result = mResolver.resolve(CLICK_URL, null);
+
+        assertEquals(Result.STATUS_NON_HTTP_SCHEME, result.getStatus());
+        assertEquals(MARKET_URL, result.getUrl());
+        assertEquals(1, mHttpClient.getRequests().size());
+    }
+
+    @Test
+    public void nonHttpStartingUrlIsNotRequested() {
+        Result result = mResolver.resolve(MARKET_URL, null);
+
+        assertEquals(Result.STATUS_NON_HTTP_SCHEME, result.getStatus());
+        assertEquals(MARKET_URL, result.getUrl());
+        assertTrue(mHttpClient.getRequests().isEmpty());
+    }
+
+    @Test
+    public void fallsBackToGetWhenHeadIsRejected() {
+        mHttpClient.put("HEAD", CLICK_URL, new FakeHttpClient.Response(405))
+                .put("GET", CLICK_URL, redirect(302, LANDING_URL))
+                .put(LANDING_URL, ok());
+
+        Result result = mResolver.resolve(CLICK_URL, null);
+
+        assertEquals(Result.STATUS_RESOLVED, result.getStatus());
+        assertEquals(LANDING_URL, result.getUrl());
+        assertEquals(3, result.getHops().size());
+        assertEquals("GET", result.getHops().get(1).mMethod);
+    }
+
+    @Test
+    public void detectsCycle() {
+        mHttpClient.put(CLICK_URL, redirect(302, TRACKER_URL))
+                .put(TRACKER_URL, redirect(302, CLICK_URL));
+
+        assertEquals(Result.STATUS_CYCLE, mResolver.resolve(CLICK_URL, null).getStatus());
+    }
+
+    @Test
+    public void stopsAfterMaxHops() {
+        mHttpClient.put(CLICK_URL, redirect(302, TRACKER_URL))
+                .put(TRACKER_URL, redirect(302, LANDING_URL))
+                .put(LANDING_URL, ok());
+        mResolver.setMaxHops(2);
+
+        Result result = mResolver.resolve(CLICK_URL, null);
+
+        assertEquals(Result.STATUS_TOO_MANY_HOPS, result.getStatus());
+        assertEquals(LANDING_URL, result.getUrl());
+        assertEquals(2, mHttpClient.getRequests().size());
+    }
+
+    @Test
+    public void connectionErrorReturnsLastUrl() {
+        mHttpClient.put(CLICK_URL, redirect(302, TRACKER_URL));
+
+        Result result = mResolver.resolve(CLICK_URL, null);
+
+        assertEquals(Result.STATUS_ERROR, result.getStatus());
+        assertEquals(TRACKER_URL, result.getUrl());
+        assertEquals(-1, result.getHops().get(1).mStatusCode);
+    }
+
+    @Test
+    public void redirectWithoutLocationIsDestination() {
+        mHttpClient.put(CLICK_URL, new FakeHttpClient.Response(302));
+
+        Result result = mResolver.resolve(CLICK_URL, null);
+
+        assertEquals(Result.STATUS_RESOLVED, result.getStatus());
+        assertEquals(CLICK_URL, result.getUrl());
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2011, MoPub Inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'MoPub Inc.' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.mopub.mobileads;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+public class ResponseBodyReaderTest {
+    private static ByteArrayEntity entity(byte[] body, String contentType) {
+        ByteArrayEntity entity = new ByteArrayEntity(body);
+        if (contentType != null) entity.setContentType(contentType);
+        return entity;
+    }
+
+    // Like a chunked response: no Content-Length, so only the stream itself can be capped.
+    private static InputStreamEntity streamedEntity(byte[] body) {
+        return new InputStreamEntity(new ByteArrayInputStream(body), -1);
+    }
+
+    @Test
+    public void decodesUsingContentTypeCharset() throws IOException {
+        byte[] body = "caf\u00e9".getBytes("ISO-8859-1");
+        String text = ResponseBodyReader.readBody(entity(body, "text/html; charset=ISO-8859-1"));
+        assertEquals("caf\u00e9", text);
+    }
+
+    @Test
+    public void defaultsToUtf8() throws IOException {
+        byte[] body = "\u00fcber \u20ac".getBytes("UTF-8");
+        assertEquals("\u00fcber \u20ac", ResponseBodyReader.readBody(entity(body, "text/html")));
+        assertEquals("\u00fcber \u20ac", ResponseBodyReader.readBody(entity(body, null)));
+    }
+
+    @Test
+    public void unknownCharsetFallsBackToUtf8() throws IOException {
+        byte[] body = "\u00e9".getBytes("UTF-8");
+        String text = ResponseBodyReader.readBody(entity(body, "text/html; charset=no-such-set"));
+        assertEquals("\u00e9", text);
+    }
+
+    @Test
+    public void multiByteCharactersSurviveBufferBoundaries() throws IOException {
+        // Longer than one read buffer, with every character taking three bytes.
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 5000; i++) expected.append('\u20ac');
+        byte[] body = expected.toString().getBytes("UTF-8");
+
+        assertEquals(expected.toString(), ResponseBodyReader.readBody(streamedEntity(body)));
+    }
+
+    @Test
+    public void bodyAtTheCapIsRead() throws IOException {
+        assertEquals("12345", ResponseBodyReader.readBody(streamedEntity("12345".getBytes()), 5));
+    }
+
+    @Test
+    public void declaredLengthOverTheCapFails() throws IOException {
+        try {
+            ResponseBodyReader.readBody(entity("123456".getBytes(), null), 5);
+            fail("Expected BodyTooLargeException");
+        } catch (ResponseBodyReader.BodyTooLargeException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void streamedBodyOverTheCapFails() throws IOException {
+        try {
+            ResponseBodyReader.readBody(streamedEntity("123456".getBytes()), 5);
+            fail("Expected BodyTooLargeException");
+        } catch (ResponseBodyReader.BodyTooLargeException e) {
+            // Expected.
+        }
+    }
+}